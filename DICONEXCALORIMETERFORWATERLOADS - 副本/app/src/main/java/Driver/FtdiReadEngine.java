@@ -0,0 +1,313 @@
+package Driver;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbRequest;
+import android.util.Log;
+
+import Util.UsbTrace;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Continuously reads from the bulk IN endpoint of an FTDI device. Instead of
+ * queueing a single {@link UsbRequest} per {@link UsbSerialPort#read(byte[], int)}
+ * call, the engine keeps a fixed number of requests in flight, each on its own
+ * direct {@link ByteBuffer}. A completed request is copied out and queued again
+ * at once, so the endpoint never idles while the payload is being handled and
+ * the chip's buffer does not fill up at high baud rates.
+ *
+ * The modem status bytes that start every packet are removed before the
+ * payload is handed to the {@link Listener}. Requests on one endpoint complete
+ * in the order they were queued, so the payload arrives in order.
+ *
+ * Like {@link Util.SerialInputOutputManager} the engine services the port in
+ * its {@link #run()} method, which should be called from a dedicated thread.
+ * While it runs it owns {@link UsbDeviceConnection#requestWait()} of the
+ * connection; {@link UsbSerialPort#read(byte[], int)} must not be used.
+ *
+ * Relies on {@link UsbRequest} reporting the number of bytes read in the
+ * position of the buffer (see http://b.android.com/28023).
+ */
+public class FtdiReadEngine implements Runnable {
+
+    private static final String TAG = FtdiReadEngine.class.getSimpleName();
+
+    public static final int DEFAULT_NUM_REQUESTS = 4;
+    public static final int DEFAULT_REQUEST_SIZE = 4096;
+
+    public interface Listener {
+        /**
+         * Called on the engine thread for every completed transfer that
+         * carried payload. The array is reused for the next transfer, copy
+         * the data if it is needed after the call returns.
+         */
+        public void onNewData(byte[] data, int offset, int length);
+
+        /**
+         * Called when {@link FtdiReadEngine#run()} aborts due to an error.
+         */
+        public void onRunError(Exception e);
+    }
+
+    private enum State {
+        STOPPED,
+        RUNNING,
+        STOPPING
+    }
+
+    private final UsbDeviceConnection mConnection;
+    private final UsbEndpoint mEndpoint;
+    private final FtdiStatusStripper mStatusStripper;
+    private final Listener mListener;
+    private final int mMaxPacketSize;
+    private final int mRequestSize;
+    private final UsbRequest[] mRequests;
+    private final ByteBuffer[] mBuffers;
+
+    /** Payload of the transfer being handled, only used by the engine thread. */
+    private final byte[] mPayload;
+
+    // Synchronized by 'this'
+    private State mState = State.STOPPED;
+
+    // Synchronized by 'this'
+    private int mNumQueued = 0;
+
+    private volatile long mNumTransfers = 0;
+    private volatile long mNumBytes = 0;
+
+    /**
+     * Creates an engine. The buffers are allocated here, nothing is queued
+     * before {@link #run()} is called.
+     *
+     * @param connection the open connection of the device
+     * @param endpoint the bulk IN endpoint
+     * @param numRequests the number of requests to keep in flight
+     * @param requestSize the size of each request in bytes, rounded down to a
+     *            multiple of the max packet size of the endpoint
+     * @param statusStripper removes the status bytes and counts line errors
+     */
+    public FtdiReadEngine(UsbDeviceConnection connection, UsbEndpoint endpoint,
+            int numRequests, int requestSize, FtdiStatusStripper statusStripper,
+            Listener listener) {
+        if (numRequests < 1) {
+            throw new IllegalArgumentException("numRequests must be at least 1: " + numRequests);
+        }
+        mConnection = connection;
+        mEndpoint = endpoint;
+        mStatusStripper = statusStripper;
+        mListener = listener;
+        mMaxPacketSize = endpoint.getMaxPacketSize();
+        mRequestSize = Math.max(1, requestSize / mMaxPacketSize) * mMaxPacketSize;
+        mRequests = new UsbRequest[numRequests];
+        mBuffers = new ByteBuffer[numRequests];
+        for (int i = 0; i < numRequests; i++) {
+            mBuffers[i] = ByteBuffer.allocateDirect(mRequestSize);
+        }
+        mPayload = new byte[mRequestSize];
+    }
+
+    public int getRequestSize() {
+        return mRequestSize;
+    }
+
+    public FtdiStatusStripper getStatusStripper() {
+        return mStatusStripper;
+    }
+
+    public int getNumberOfRequests() {
+        return mRequests.length;
+    }
+
+    /**
+     * Returns the number of completed transfers.
+     */
+    public long getNumberOfTransfers() {
+        return mNumTransfers;
+    }
+
+    /**
+     * Returns the number of payload bytes handed to the listener.
+     */
+    public long getNumberOfBytes() {
+        return mNumBytes;
+    }
+
+    public synchronized boolean isRunning() {
+        return mState != State.STOPPED;
+    }
+
+    /**
+     * Stops the engine. The requests in flight are cancelled, {@link #run()}
+     * returns once all of them were reaped.
+     */
+    public synchronized void stop() {
+        if (mState == State.RUNNING) {
+            Log.i(TAG, "Stop requested");
+            mState = State.STOPPING;
+            for (UsbRequest request : mRequests) {
+                if (request != null) {
+                    request.cancel();
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits until {@link #run()} has returned after {@link #stop()}. The
+     * connection must not be closed before, the engine thread still reaps
+     * and closes its requests.
+     *
+     * @param timeoutMillis the maximum time to wait
+     * @return true if the engine is stopped, false if the timeout elapsed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized boolean awaitStopped(long timeoutMillis) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (mState != State.STOPPED) {
+            final long timeLeft = deadline - System.currentTimeMillis();
+            if (timeLeft <= 0) {
+                return false;
+            }
+            wait(timeLeft);
+        }
+        return true;
+    }
+
+    /**
+     * Queues all requests and hands the payload of every completed request to
+     * the listener until {@link #stop()} is called or an error occurs.
+     */
+    @Override
+    public void run() {
+        synchronized (this) {
+            if (mState != State.STOPPED) {
+                throw new IllegalStateException("Already running.");
+            }
+            mState = State.RUNNING;
+        }
+
+        Log.i(TAG, "Running with " + mRequests.length + " requests of " + mRequestSize + " bytes");
+        try {
+            for (int i = 0; i < mRequests.length; i++) {
+                final UsbRequest request = new UsbRequest();
+                if (!request.initialize(mConnection, mEndpoint)) {
+                    throw new IOException("Error initializing request " + i);
+                }
+                request.setClientData(mBuffers[i]);
+                mRequests[i] = request;
+                synchronized (this) {
+                    if (mState != State.RUNNING) {
+                        break;
+                    }
+                    queue(request, mBuffers[i]);
+                }
+            }
+            loop();
+        } catch (Exception e) {
+            Log.w(TAG, "Run ending due to exception: " + e.getMessage(), e);
+            stop();
+            if (mListener != null) {
+                mListener.onRunError(e);
+            }
+        } finally {
+            drain();
+            for (int i = 0; i < mRequests.length; i++) {
+                if (mRequests[i] != null) {
+                    mRequests[i].close();
+                    mRequests[i] = null;
+                }
+            }
+            synchronized (this) {
+                mState = State.STOPPED;
+                notifyAll();
+                Log.i(TAG, "Stopped.");
+            }
+        }
+    }
+
+    private void loop() throws IOException {
+        while (true) {
+            synchronized (this) {
+                if (mState != State.RUNNING) {
+                    return;
+                }
+            }
+            final UsbRequest request = mConnection.requestWait();
+            if (request == null) {
+                throw new IOException("Null response");
+            }
+            final Object clientData = request.getClientData();
+            if (!isOwnBuffer(clientData)) {
+                // not queued by this engine
+                continue;
+            }
+            final ByteBuffer buffer = (ByteBuffer) clientData;
+
+            final int length;
+            synchronized (this) {
+                mNumQueued--;
+                if (mState != State.RUNNING) {
+                    return;
+                }
+                length = buffer.position();
+                buffer.position(0);
+                buffer.get(mPayload, 0, length);
+                queue(request, buffer);
+            }
+
+            mNumTransfers++;
+            UsbTrace.trace(UsbTrace.DIRECTION_IN, mPayload, 0, length);
+            final int payloadLength = mStatusStripper.strip(mPayload, 0, length, mMaxPacketSize);
+            if (payloadLength > 0) {
+                mNumBytes += payloadLength;
+                if (mListener != null) {
+                    mListener.onNewData(mPayload, 0, payloadLength);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reaps the requests that are still queued after the engine was stopped.
+     */
+    private void drain() {
+        while (true) {
+            synchronized (this) {
+                if (mNumQueued <= 0) {
+                    return;
+                }
+            }
+            final UsbRequest request = mConnection.requestWait();
+            if (request == null) {
+                return;
+            }
+            if (isOwnBuffer(request.getClientData())) {
+                synchronized (this) {
+                    mNumQueued--;
+                }
+            }
+        }
+    }
+
+    // Synchronized by 'this'
+    private void queue(UsbRequest request, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        if (!request.queue(buffer, mRequestSize)) {
+            throw new IOException("Error queueing request.");
+        }
+        mNumQueued++;
+    }
+
+    private boolean isOwnBuffer(Object clientData) {
+        for (ByteBuffer buffer : mBuffers) {
+            if (buffer == clientData) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -118,6 +118,31 @@ public class FtdiSerialDriver implements UsbSerialDriver {
         return Collections.singletonList(mPort);
     }
 
+    /**
+     * Creates a {@link FtdiReadEngine} for the open port of this driver. While
+     * the engine runs, {@link UsbSerialPort#read(byte[], int)} fails; closing
+     * the port stops the engine.
+     *
+     * @param numRequests the number of requests to keep in flight
+     * @param requestSize the size of each request in bytes
+     * @param listener receives the payload
+     * @return the engine, call {@link FtdiReadEngine#run()} from a dedicated thread
+     * @throws IOException if the port is not open
+     */
+    public FtdiReadEngine createReadEngine(int numRequests, int requestSize,
+            FtdiReadEngine.Listener listener) throws IOException {
+        return ((FtdiSerialPort) mPort).createReadEngine(numRequests, requestSize, listener);
+    }
+
+    /**
+     * Returns the stripper that removes the status bytes from the data read
+     * from the port. It holds the last modem and line status and counts line
+     * errors.
+     */
+    public FtdiStatusStripper getStatusStripper() {
+        return ((FtdiSerialPort) mPort).mStatusStripper;
+    }
+
     private class FtdiSerialPort extends CommonUsbSerialPort {
 
         public static final int USB_TYPE_STANDARD = 0x00 << 5;
@@ -136,6 +161,12 @@ public class FtdiSerialDriver implements UsbSerialDriver {
         public static final int USB_WRITE_TIMEOUT_MILLIS = 5000;
         public static final int USB_READ_TIMEOUT_MILLIS = 5000;
 
+        /**
+         * Time to wait in {@link #close()} for the read engine to reap its
+         * requests before the connection is closed.
+         */
+        private static final int READ_ENGINE_STOP_TIMEOUT_MILLIS = 1000;
+
         // From ftdi.h
         /**
          * Reset the port.
@@ -192,6 +223,10 @@ public class FtdiSerialDriver implements UsbSerialDriver {
          */
         private static final boolean ENABLE_ASYNC_READS = false;
 
+        private final FtdiStatusStripper mStatusStripper = new FtdiStatusStripper();
+
+        private FtdiReadEngine mReadEngine = null;
+
         public FtdiSerialPort(UsbDevice device, int portNumber) {
             super(device, portNumber);
         }
@@ -201,32 +236,17 @@ public class FtdiSerialDriver implements UsbSerialDriver {
             return FtdiSerialDriver.this;
         }
 
-        /**
-         * Filter FTDI status bytes from buffer
-         * @param src The source buffer (which contains status bytes)
-         * @param dest The destination buffer to write the status bytes into (can be src)
-         * @param totalBytesRead Number of bytes read to src
-         * @param maxPacketSize The USB endpoint max packet size
-         * @return The number of payload bytes
-         */
-        private final int filterStatusBytes(byte[] src, byte[] dest, int totalBytesRead, int maxPacketSize) {
-            final int packetsCount = totalBytesRead / maxPacketSize + (totalBytesRead % maxPacketSize == 0 ? 0 : 1);
-            for (int packetIdx = 0; packetIdx < packetsCount; ++packetIdx) {
-                final int count = (packetIdx == (packetsCount - 1))
-                        ? (totalBytesRead % maxPacketSize) - MODEM_STATUS_HEADER_LENGTH
-                        : maxPacketSize - MODEM_STATUS_HEADER_LENGTH;
-                if (count > 0) {
-                    System.arraycopy(src,
-                            packetIdx * maxPacketSize + MODEM_STATUS_HEADER_LENGTH,
-                            dest,
-                            packetIdx * (maxPacketSize - MODEM_STATUS_HEADER_LENGTH),
-                            count);
-                }
+        FtdiReadEngine createReadEngine(int numRequests, int requestSize,
+                FtdiReadEngine.Listener listener) throws IOException {
+            if (mConnection == null) {
+                throw new IOException("Not open");
             }
-
-          //return totalBytesRead - (packetsCount * 2);
-            //totalBytesRead vaut 2
-            return totalBytesRead;
+            if (mReadEngine != null && mReadEngine.isRunning()) {
+                throw new IOException("Read engine already running");
+            }
+            mReadEngine = new FtdiReadEngine(mConnection, mDevice.getInterface(0).getEndpoint(0),
+                    numRequests, requestSize, mStatusStripper, listener);
+            return mReadEngine;
         }
 
         public void reset() throws IOException {
@@ -271,6 +291,17 @@ public class FtdiSerialDriver implements UsbSerialDriver {
             if (mConnection == null) {
                 throw new IOException("Already closed");
             }
+            if (mReadEngine != null) {
+                mReadEngine.stop();
+                try {
+                    if (!mReadEngine.awaitStopped(READ_ENGINE_STOP_TIMEOUT_MILLIS)) {
+                        Log.w(TAG, "Read engine did not stop in time");
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                mReadEngine = null;
+            }
             try {
                 mConnection.close();
             } finally {
@@ -281,6 +312,9 @@ public class FtdiSerialDriver implements UsbSerialDriver {
         @Override
         public int read(byte[] dest, int timeoutMillis) throws IOException {
             final UsbEndpoint endpoint = mDevice.getInterface(0).getEndpoint(0);
+            if (mReadEngine != null && mReadEngine.isRunning()) {
+                throw new IOException("Reads are serviced by a read engine");
+            }
 
             //if (ENABLE_ASYNC_READS) {
             if (!ENABLE_ASYNC_READS) {
@@ -303,9 +337,10 @@ public class FtdiSerialDriver implements UsbSerialDriver {
                     throw new IOException("Null response");
                 }
 
-                final int payloadBytesRead = buf.position() - MODEM_STATUS_HEADER_LENGTH;
+                UsbTrace.trace(UsbTrace.DIRECTION_IN, dest, 0, buf.position());
+                final int payloadBytesRead = mStatusStripper.strip(dest, 0, buf.position(),
+                        endpoint.getMaxPacketSize());
                 if (payloadBytesRead > 0) {
-                    Log.d(TAG, HexDump.dumpHexString(dest, 0, Math.min(32, dest.length)));
                     return payloadBytesRead;
                 } else {
                     return 0;
@@ -316,12 +351,14 @@ public class FtdiSerialDriver implements UsbSerialDriver {
                     final int readAmt = Math.min(dest.length, mReadBuffer.length);
                     totalBytesRead = mConnection.bulkTransfer(endpoint, mReadBuffer,
                             readAmt, timeoutMillis);
+                    UsbTrace.trace(UsbTrace.DIRECTION_IN, mReadBuffer, 0, totalBytesRead);
 
                     if (totalBytesRead < MODEM_STATUS_HEADER_LENGTH) {
                         throw new IOException("Expected at least " + MODEM_STATUS_HEADER_LENGTH + " bytes");
                     }
 
-                    return filterStatusBytes(mReadBuffer, dest, totalBytesRead, endpoint.getMaxPacketSize());
+                    return mStatusStripper.strip(mReadBuffer, 0, totalBytesRead, dest, 0,
+                            endpoint.getMaxPacketSize());
 
                 }
             }
@@ -350,6 +387,7 @@ public class FtdiSerialDriver implements UsbSerialDriver {
 
                     amtWritten = mConnection.bulkTransfer(endpoint, writeBuffer, writeLength,
                             timeoutMillis);
+                    UsbTrace.trace(UsbTrace.DIRECTION_OUT, writeBuffer, 0, amtWritten);
                 }
 
                 if (amtWritten <= 0) {
@@ -357,7 +395,6 @@ public class FtdiSerialDriver implements UsbSerialDriver {
                             + " bytes at offset " + offset + " length=" + src.length);
                 }
 
-                Log.d(TAG, "Wrote amtWritten=" + amtWritten + " attempted=" + writeLength);
                 offset += amtWritten;
             }
             return offset;
@@ -514,17 +551,17 @@ public class FtdiSerialDriver implements UsbSerialDriver {
 
         @Override
         public boolean getCD() throws IOException {
-            return false;
+            return (mStatusStripper.getModemStatus() & FtdiStatusStripper.MODEM_STATUS_CD) != 0;
         }
 
         @Override
         public boolean getCTS() throws IOException {
-            return false;
+            return (mStatusStripper.getModemStatus() & FtdiStatusStripper.MODEM_STATUS_CTS) != 0;
         }
 
         @Override
         public boolean getDSR() throws IOException {
-            return false;
+            return (mStatusStripper.getModemStatus() & FtdiStatusStripper.MODEM_STATUS_DSR) != 0;
         }
 
         @Override
@@ -538,7 +575,7 @@ public class FtdiSerialDriver implements UsbSerialDriver {
 
         @Override
         public boolean getRI() throws IOException {
-            return false;
+            return (mStatusStripper.getModemStatus() & FtdiStatusStripper.MODEM_STATUS_RI) != 0;
         }
 
         @Override
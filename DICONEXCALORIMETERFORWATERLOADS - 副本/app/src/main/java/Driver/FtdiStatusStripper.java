@@ -0,0 +1,165 @@
+package Driver;
+
+/**
+ * Removes the two status bytes that an FTDI device sends at the start of
+ * every packet on its bulk IN endpoint, and keeps track of them.
+ *
+ * The first status byte holds the modem status (CTS, DSR, RI, CD), the second
+ * the line status of the UART. The last status seen is available through
+ * {@link #getModemStatus()} and {@link #getLineStatus()}; overrun, parity,
+ * framing errors and breaks are counted.
+ *
+ * Stripping does not allocate. A stripper is meant to be used by the one
+ * thread reading the port; the getters may be called from any thread.
+ */
+public class FtdiStatusStripper {
+
+    /**
+     * Length of the modem status header, transmitted with every packet.
+     */
+    public static final int MODEM_STATUS_HEADER_LENGTH = 2;
+
+    /** Modem status: clear to send. */
+    public static final int MODEM_STATUS_CTS = 0x10;
+    /** Modem status: data set ready. */
+    public static final int MODEM_STATUS_DSR = 0x20;
+    /** Modem status: ring indicator. */
+    public static final int MODEM_STATUS_RI = 0x40;
+    /** Modem status: receive line signal detect (carrier detect). */
+    public static final int MODEM_STATUS_CD = 0x80;
+
+    /** Line status: data was lost because the receive buffer was full. */
+    public static final int LINE_STATUS_OVERRUN_ERROR = 0x02;
+    /** Line status: parity error. */
+    public static final int LINE_STATUS_PARITY_ERROR = 0x04;
+    /** Line status: framing error. */
+    public static final int LINE_STATUS_FRAMING_ERROR = 0x08;
+    /** Line status: break interrupt. */
+    public static final int LINE_STATUS_BREAK = 0x10;
+
+    private static final int LINE_STATUS_ERRORS = LINE_STATUS_OVERRUN_ERROR
+            | LINE_STATUS_PARITY_ERROR | LINE_STATUS_FRAMING_ERROR | LINE_STATUS_BREAK;
+
+    private volatile int mModemStatus = 0;
+    private volatile int mLineStatus = 0;
+
+    private volatile long mNumOverrunErrors = 0;
+    private volatile long mNumParityErrors = 0;
+    private volatile long mNumFramingErrors = 0;
+    private volatile long mNumBreaks = 0;
+
+    /**
+     * Strips the status bytes in place, moving the payload of all packets to
+     * the start of the range.
+     *
+     * @param buffer the bytes read from the endpoint
+     * @param offset the offset of the first packet
+     * @param length the number of bytes read
+     * @param maxPacketSize the max packet size of the endpoint
+     * @return the number of payload bytes, starting at offset
+     */
+    public int strip(byte[] buffer, int offset, int length, int maxPacketSize) {
+        return strip(buffer, offset, length, buffer, offset, maxPacketSize);
+    }
+
+    /**
+     * Copies the payload of all packets to dest, without the status bytes.
+     * src and dest may be the same array if destOffset is not larger than
+     * srcOffset.
+     *
+     * @param src the bytes read from the endpoint
+     * @param srcOffset the offset of the first packet
+     * @param length the number of bytes read
+     * @param dest receives the payload
+     * @param destOffset the offset of the payload in dest
+     * @param maxPacketSize the max packet size of the endpoint
+     * @return the number of payload bytes
+     */
+    public int strip(byte[] src, int srcOffset, int length, byte[] dest, int destOffset,
+            int maxPacketSize) {
+        if (length < MODEM_STATUS_HEADER_LENGTH) {
+            return 0;
+        }
+        final int end = srcOffset + length;
+        int modemStatus = 0;
+        int lineStatus = 0;
+        int payloadLength = 0;
+        for (int packet = srcOffset; packet < end; packet += maxPacketSize) {
+            final int packetEnd = Math.min(packet + maxPacketSize, end);
+            if (packetEnd - packet < MODEM_STATUS_HEADER_LENGTH) {
+                // truncated header, nothing to keep
+                break;
+            }
+            modemStatus = src[packet] & 0xff;
+            lineStatus = src[packet + 1] & 0xff;
+            if ((lineStatus & LINE_STATUS_ERRORS) != 0) {
+                countErrors(lineStatus);
+            }
+            final int count = packetEnd - packet - MODEM_STATUS_HEADER_LENGTH;
+            if (count > 0) {
+                System.arraycopy(src, packet + MODEM_STATUS_HEADER_LENGTH,
+                        dest, destOffset + payloadLength, count);
+                payloadLength += count;
+            }
+        }
+        mModemStatus = modemStatus;
+        mLineStatus = lineStatus;
+        return payloadLength;
+    }
+
+    private void countErrors(int lineStatus) {
+        if ((lineStatus & LINE_STATUS_OVERRUN_ERROR) != 0) {
+            mNumOverrunErrors++;
+        }
+        if ((lineStatus & LINE_STATUS_PARITY_ERROR) != 0) {
+            mNumParityErrors++;
+        }
+        if ((lineStatus & LINE_STATUS_FRAMING_ERROR) != 0) {
+            mNumFramingErrors++;
+        }
+        if ((lineStatus & LINE_STATUS_BREAK) != 0) {
+            mNumBreaks++;
+        }
+    }
+
+    /**
+     * Returns the modem status byte of the last packet.
+     */
+    public int getModemStatus() {
+        return mModemStatus;
+    }
+
+    /**
+     * Returns the line status byte of the last packet.
+     */
+    public int getLineStatus() {
+        return mLineStatus;
+    }
+
+    public long getNumberOfOverrunErrors() {
+        return mNumOverrunErrors;
+    }
+
+    public long getNumberOfParityErrors() {
+        return mNumParityErrors;
+    }
+
+    public long getNumberOfFramingErrors() {
+        return mNumFramingErrors;
+    }
+
+    public long getNumberOfBreaks() {
+        return mNumBreaks;
+    }
+
+    /**
+     * Resets the error counters.
+     */
+    public void resetCounters() {
+        mNumOverrunErrors = 0;
+        mNumParityErrors = 0;
+        mNumFramingErrors = 0;
+        mNumBreaks = 0;
+    }
+
+}
@@ -0,0 +1,142 @@
+package MBUS;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Holds the AES keys of encrypted meters (encryption mode 5, AES-CBC with IV) together with ready to use cipher state.
+ * Meters are identified by their 8 byte secondary address packed into a long (see {@link SecondaryAddress#asLong()}),
+ * so a lookup neither allocates a key object nor builds a hex string.
+ *
+ * Telegrams are decrypted in place. Before the payload is overwritten, the first block is decrypted separately and
+ * checked for the two 0x2F bytes every decrypted payload starts with, so a telegram decrypted with a wrong key stays
+ * intact.
+ *
+ * The registry is thread-safe. Telegrams of different meters are decrypted concurrently, telegrams of the same meter one
+ * after the other because a Cipher can not be used concurrently.
+ */
+public class AesKeyRegistry {
+
+	private final static int BLOCK_SIZE = 16;
+
+	private static class Entry {
+		final SecretKeySpec key;
+		final Cipher cipher;
+
+		// Synchronized by the entry
+		final byte[] initializationVector = new byte[BLOCK_SIZE];
+		final byte[] firstBlock = new byte[BLOCK_SIZE];
+
+		Entry(SecretKeySpec key, Cipher cipher) {
+			this.key = key;
+			this.cipher = cipher;
+		}
+	}
+
+	// Synchronized by 'this'
+	private final LongMap<Entry> entries = new LongMap<Entry>();
+
+	/**
+	 * Registers the key of a meter, replacing a previously registered key.
+	 *
+	 * @param secondaryAddress
+	 *            the packed secondary address of the meter.
+	 * @param key
+	 *            the 16 byte AES key.
+	 * @throws IllegalArgumentException
+	 *             if the key is not 16 bytes long or AES is not available.
+	 */
+	public synchronized void put(long secondaryAddress, byte[] key) {
+		if (key.length != BLOCK_SIZE) {
+			throw new IllegalArgumentException("AES key must be 16 bytes long");
+		}
+		Cipher cipher;
+		try {
+			cipher = Cipher.getInstance("AES/CBC/NoPadding");
+		} catch (GeneralSecurityException e) {
+			throw new IllegalArgumentException(e);
+		}
+		entries.put(secondaryAddress, new Entry(new SecretKeySpec(key, "AES"), cipher));
+	}
+
+	public void put(SecondaryAddress secondaryAddress, byte[] key) {
+		put(secondaryAddress.asLong(), key);
+	}
+
+	/**
+	 * Removes the key of a meter.
+	 *
+	 * @return true if a key was registered for the meter.
+	 */
+	public synchronized boolean remove(long secondaryAddress) {
+		return entries.remove(secondaryAddress) != null;
+	}
+
+	public synchronized boolean contains(long secondaryAddress) {
+		return entries.containsKey(secondaryAddress);
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Decrypts the encrypted blocks of a telegram in place. The initialization vector is built from the secondary
+	 * address and the access number as defined by EN 13757-3 for encryption mode 5.
+	 *
+	 * @param secondaryAddress
+	 *            the packed secondary address of the meter.
+	 * @param accessNumber
+	 *            the access number of the telegram.
+	 * @param buffer
+	 *            the buffer containing the encrypted data.
+	 * @param offset
+	 *            the position of the first encrypted block.
+	 * @param length
+	 *            the length of the encrypted data, a multiple of 16.
+	 * @throws DecodingException
+	 *             if no key is registered for the meter, the length is invalid or the data could not be decrypted with
+	 *             the registered key. The buffer is not changed in this case.
+	 */
+	public void decrypt(long secondaryAddress, int accessNumber, byte[] buffer, int offset, int length)
+			throws DecodingException {
+		if (length <= 0 || length % BLOCK_SIZE != 0) {
+			throw new DecodingException("Length of encrypted data is not a multiple of 16: " + length);
+		}
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(secondaryAddress);
+		}
+		if (entry == null) {
+			throw new DecodingException("No AES key registered for secondary address: "
+					+ String.format("%016X", Long.reverseBytes(secondaryAddress)));
+		}
+
+		synchronized (entry) {
+			byte[] initializationVector = entry.initializationVector;
+			long address = secondaryAddress;
+			for (int i = 0; i < 8; i++) {
+				initializationVector[i] = (byte) address;
+				address >>>= 8;
+				initializationVector[8 + i] = (byte) accessNumber;
+			}
+			IvParameterSpec parameterSpec = new IvParameterSpec(initializationVector);
+
+			try {
+				entry.cipher.init(Cipher.DECRYPT_MODE, entry.key, parameterSpec);
+				entry.cipher.doFinal(buffer, offset, BLOCK_SIZE, entry.firstBlock, 0);
+				if (entry.firstBlock[0] != 0x2f || entry.firstBlock[1] != 0x2f) {
+					throw new DecodingException("Decryption unsuccessful! Wrong AES Key?");
+				}
+				entry.cipher.init(Cipher.DECRYPT_MODE, entry.key, parameterSpec);
+				entry.cipher.doFinal(buffer, offset, length, buffer, offset);
+			} catch (GeneralSecurityException e) {
+				throw new DecodingException(e);
+			}
+		}
+	}
+
+}
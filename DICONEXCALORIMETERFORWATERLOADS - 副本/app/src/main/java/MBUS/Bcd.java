@@ -31,6 +31,34 @@ package MBUS;
 public class Bcd extends Number {
 
 	private static final long serialVersionUID = 790515601507532939L;
+
+	/**
+	 * Returned by the static decode methods if a BCD contains a nibble A-F that is not a sign. Meters use these nibbles to
+	 * signal errors, e.g. a sensor failure.
+	 */
+	public final static long INVALID = Long.MIN_VALUE;
+
+	private final static char[] DIGITS = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E',
+			'F' };
+
+	/**
+	 * The value 0 to 99 of every BCD byte or -1 if one of its nibbles is not a decimal digit.
+	 */
+	private final static byte[] BYTE_VALUES = new byte[256];
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			int high = i >> 4;
+			int low = i & 0x0f;
+			if (high > 9 || low > 9) {
+				BYTE_VALUES[i] = -1;
+			}
+			else {
+				BYTE_VALUES[i] = (byte) (high * 10 + low);
+			}
+		}
+	}
+
 	private final byte[] value;
 
 	/**
@@ -44,42 +72,119 @@ public class Bcd extends Number {
 		value = bcdBytes;
 	}
 
+	/**
+	 * Decodes a BCD directly from a buffer. The least significant byte comes first. A most significant nibble F is the
+	 * minus sign (EN 13757-3, annex B).
+	 * 
+	 * @param buffer
+	 *            the buffer containing the BCD.
+	 * @param offset
+	 *            the position of the least significant byte.
+	 * @param length
+	 *            the number of bytes, at most 9.
+	 * @return the value or {@link #INVALID} if a nibble is not a decimal digit.
+	 */
+	public static long decode(byte[] buffer, int offset, int length) {
+		int i = offset + length - 1;
+		int top = buffer[i] & 0xff;
+		boolean negative = false;
+		if ((top & 0xf0) == 0xf0) {
+			negative = true;
+			top &= 0x0f;
+		}
+		long result = BYTE_VALUES[top];
+		if (result < 0) {
+			return INVALID;
+		}
+		for (i--; i >= offset; i--) {
+			int byteValue = BYTE_VALUES[buffer[i] & 0xff];
+			if (byteValue < 0) {
+				return INVALID;
+			}
+			result = result * 100 + byteValue;
+		}
+		return negative ? -result : result;
+	}
+
+	/**
+	 * Decodes a BCD whose bytes are packed into a long, least significant byte in the lowest bits.
+	 * 
+	 * @param bcd
+	 *            the bytes of the BCD.
+	 * @param length
+	 *            the number of bytes, at most 8.
+	 * @return the value or {@link #INVALID} if a nibble is not a decimal digit.
+	 * @see #decode(byte[], int, int)
+	 */
+	public static long decode(long bcd, int length) {
+		int shift = (length - 1) * 8;
+		int top = (int) (bcd >> shift) & 0xff;
+		boolean negative = false;
+		if ((top & 0xf0) == 0xf0) {
+			negative = true;
+			top &= 0x0f;
+		}
+		long result = BYTE_VALUES[top];
+		if (result < 0) {
+			return INVALID;
+		}
+		for (shift -= 8; shift >= 0; shift -= 8) {
+			int byteValue = BYTE_VALUES[(int) (bcd >> shift) & 0xff];
+			if (byteValue < 0) {
+				return INVALID;
+			}
+			result = result * 100 + byteValue;
+		}
+		return negative ? -result : result;
+	}
+
 	public byte[] getBytes() {
 		return value;
 	}
 
+	/**
+	 * Returns whether all nibbles are decimal digits, except for an optional minus sign.
+	 */
+	public boolean isValid() {
+		return value.length == 0 || decode(value, 0, value.length) != INVALID;
+	}
+
+	/**
+	 * Returns the digits of this <code>Bcd</code>, most significant first. Nibbles that are not decimal digits are
+	 * shown as the hex digits A to F, unless the BCD is a valid negative number.
+	 */
 	@Override
 	public String toString() {
-		byte[] ba;
-		int shift;
-		ba = new byte[value.length * 2];
+		char[] chars = new char[value.length * 2];
 		int c = 0;
-
 		for (int i = value.length - 1; i >= 0; i--) {
-			shift = value[i] >> 4;
-			ba[c++] = (byte) ((shift & 0x0f) + 48);
-
-			shift = value[i];
-			ba[c++] = (byte) ((shift & 0x0f) + 48);
+			chars[c++] = DIGITS[(value[i] >> 4) & 0x0f];
+			chars[c++] = DIGITS[value[i] & 0x0f];
 		}
-
-		return new String(ba);
+		if (value.length > 0 && chars[0] == 'F' && isValid()) {
+			chars[0] = '-';
+		}
+		return new String(chars);
 	}
 
 	/**
-	 * Returns the value of this <code>Bcd</code> as a double.
+	 * Returns the value of this <code>Bcd</code> as a double, NaN if it is not valid.
 	 */
 	@Override
 	public double doubleValue() {
-		return longValue();
+		long longValue = longValue();
+		if (longValue == INVALID) {
+			return Double.NaN;
+		}
+		return longValue;
 	}
 
 	/**
-	 * Returns the value of this <code>Bcd</code> as a float.
+	 * Returns the value of this <code>Bcd</code> as a float, NaN if it is not valid.
 	 */
 	@Override
 	public float floatValue() {
-		return longValue();
+		return (float) doubleValue();
 	}
 
 	/**
@@ -87,35 +192,20 @@ public class Bcd extends Number {
 	 */
 	@Override
 	public int intValue() {
-		int result = 0;
-		int factor = 1;
-
-		for (byte element : value) {
-			result += (element & 0x0f) * factor;
-			factor = factor * 10;
-			result += ((element >> 4) & 0x0f) * factor;
-			factor = factor * 10;
-		}
-
-		return result;
+		return (int) longValue();
 	}
 
 	/**
 	 * Returns the value of this <code>Bcd</code> as a long.
+	 * 
+	 * @return the value or {@link #INVALID} if a nibble is not a decimal digit.
 	 */
 	@Override
 	public long longValue() {
-		long result = 0l;
-		long factor = 1l;
-
-		for (byte element : value) {
-			result += (element & 0x0f) * factor;
-			factor = factor * 10l;
-			result += ((element >> 4) & 0x0f) * factor;
-			factor = factor * 10l;
+		if (value.length == 0) {
+			return 0;
 		}
-
-		return result;
+		return decode(value, 0, value.length);
 	}
 
 }
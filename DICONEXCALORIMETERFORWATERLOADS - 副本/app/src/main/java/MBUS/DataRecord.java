@@ -20,10 +20,9 @@
  */
 package MBUS;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Date;
 
 /**
  * Representation of a data record (sometimes called variable data block).
@@ -52,11 +51,32 @@ import java.util.Calendar;
  * <code>getScaledDataValue()</code> returns the result of the data value multiplied with the multiplier.</li>
  * </ul>
  * 
+ * A data record of a lazily decoded variable data structure only knows the positions of its fields in the received
+ * telegram. The DIB, the VIB and the data field are each decoded the first time one of their values is accessed. Such
+ * a data record is not thread-safe.
+ * 
  * @author Stefan Feuerhahn
  * 
  */
 public class DataRecord {
 
+	// table of powers of ten from 10^-16 to 10^16. The VIF alone codes exponents from -12 to 8, but the
+	// multiplicative correction VIFEs (10^-6 to 10^1, 10^3) are added to that exponent, so the combined exponent
+	// leaves the VIF range. The rare exponents outside the table fall back to Math.pow().
+	private final static int MIN_EXPONENT = -16;
+	private final static int MAX_EXPONENT = 16;
+	private final static double[] POWERS_OF_TEN = new double[MAX_EXPONENT - MIN_EXPONENT + 1];
+
+	// units of the VIFEs 0x20 to 0x26
+	private final static DlmsUnit[] PER_TIME_UNITS = { DlmsUnit.SECOND, DlmsUnit.MIN, DlmsUnit.HOUR, DlmsUnit.DAY,
+			DlmsUnit.WEEK, DlmsUnit.MONTH, DlmsUnit.YEAR };
+
+	static {
+		for (int i = MIN_EXPONENT; i <= MAX_EXPONENT; i++) {
+			POWERS_OF_TEN[i - MIN_EXPONENT] = Double.parseDouble("1e" + i);
+		}
+	}
+
 	/**
 	 * The data value type
 	 *
@@ -153,11 +173,194 @@ public class DataRecord {
 	private boolean dateTypeF = false;
 	private boolean dateTypeG = false;
 
+	// combinable VIFE fields:
+	private int errorCode = 0;
+	private DlmsUnit perTimeUnit;
+	private double additiveCorrection = 0;
+
+	// the value is kept in primitive form and only boxed by getDataValue()
+	private long longValue;
+	private double doubleValue;
+	// bytes of BCD and date values, least significant byte first
+	private long rawValue;
+	private int rawLength;
+
+	// position of the record in the buffer it was indexed from. The buffer is only referenced as long as not all fields
+	// are decoded.
+	private byte[] buffer;
+	private int dibOffset;
+	private int vibOffset;
+	private int vifeOffset;
+	private int dataOffset;
+	private int endOffset;
+	private int dataField;
+
+	private boolean dibDecoded = false;
+	private boolean vibDecoded = false;
+	private boolean dataDecoded = false;
+
+	/**
+	 * Decodes all fields of the data record.
+	 * 
+	 * @return the position of the first byte after the data record.
+	 */
 	int decode(byte[] buffer, int offset, int length) throws DecodingException {
+		int i = index(buffer, offset, length);
+		decodeDib();
+		decodeVib();
+		decodeData();
+		getDib();
+		getVib();
+		this.buffer = null;
+		return i;
+	}
+
+	/**
+	 * Determines the boundaries of the DIB, the VIB and the data field of the data record without decoding them. The
+	 * fields are decoded from the buffer the first time they are accessed, so the buffer must not be changed as long as
+	 * the data record is in use.
+	 * 
+	 * @return the position of the first byte after the data record.
+	 */
+	int index(byte[] buffer, int offset, int length) throws DecodingException {
+
+		this.buffer = buffer;
+		dibOffset = offset;
+		dibDecoded = false;
+		vibDecoded = false;
+		dataDecoded = false;
+		dib = null;
+		vib = null;
 
 		int i = offset;
 
-		// decode DIB
+		dataField = buffer[i] & 0x0f;
+		while ((buffer[i++] & 0x80) == 0x80) {
+		}
+
+		vibOffset = i;
+
+		int vif = buffer[i++] & 0xff;
+
+		boolean furtherVifes;
+
+		if (vif == 0xfb || vif == 0xfd) {
+			furtherVifes = (buffer[i++] & 0x80) == 0x80;
+		}
+		else if ((vif & 0x7f) == 0x7c) {
+			i += (buffer[i] & 0xff) + 1;
+			furtherVifes = (vif & 0x80) == 0x80;
+		}
+		else if ((vif & 0x7f) == 0x7e) {
+			throw new DecodingException("VIF types 0x7E/FE not supported.");
+		}
+		else if ((vif & 0x7f) == 0x7f) {
+			throw new DecodingException("VIF types 0x7F/FF not supported.");
+		}
+		else {
+			furtherVifes = (vif & 0x80) == 0x80;
+		}
+
+		vifeOffset = i;
+		if (furtherVifes) {
+			while ((buffer[i++] & 0x80) == 0x80) {
+			}
+		}
+
+		dataOffset = i;
+
+		switch (dataField) {
+		case 0x00:
+		case 0x08:
+			break;
+		case 0x01:
+		case 0x09:
+			i += 1;
+			break;
+		case 0x02:
+		case 0x0a:
+			i += 2;
+			break;
+		case 0x03:
+		case 0x0b:
+			i += 3;
+			break;
+		case 0x04:
+		case 0x05:
+		case 0x0c:
+			i += 4;
+			break;
+		case 0x06:
+		case 0x0e:
+			i += 6;
+			break;
+		case 0x07:
+			i += 8;
+			break;
+		case 0x0d:
+			int variableLength = buffer[i++] & 0xff;
+			int dataLength = getLvarDataLength(variableLength);
+			if (dataLength == -1) {
+				throw new DecodingException("Unsupported LVAR Field: " + variableLength);
+			}
+			i += dataLength;
+			break;
+		default:
+			throw new DecodingException("Unknown Data Field in DIF: " + HexConverter.toHexString((byte) dataField));
+		}
+
+		if (i > buffer.length) {
+			throw new DecodingException("Data record exceeds the buffer.");
+		}
+
+		endOffset = i;
+		return i;
+	}
+
+	private static int getLvarDataLength(int variableLength) {
+		if (variableLength < 0xc0) {
+			return variableLength;
+		}
+		else if ((variableLength >= 0xc0) && (variableLength <= 0xc9)) {
+			return 2 * (variableLength - 0xc0);
+		}
+		else if ((variableLength >= 0xd0) && (variableLength <= 0xd9)) {
+			return 2 * (variableLength - 0xd0);
+		}
+		else if ((variableLength >= 0xe0) && (variableLength <= 0xef)) {
+			return variableLength - 0xe0;
+		}
+		else if (variableLength == 0xf8) {
+			return 4;
+		}
+		// TODO check this:
+		// if (variableLength >= 0xc0) {
+		// throw new DecodingException("Variable length (LVAR) field >= 0xc0: " + variableLength);
+		// }
+		return -1;
+	}
+
+	private void ensureDibDecoded() {
+		if (!dibDecoded) {
+			decodeDib();
+		}
+	}
+
+	private void ensureVibDecoded() {
+		if (!vibDecoded) {
+			decodeVib();
+		}
+	}
+
+	private void ensureDataDecoded() {
+		if (!dataDecoded) {
+			decodeData();
+		}
+	}
+
+	private void decodeDib() {
+		int i = dibOffset;
+
 		int ff = ((buffer[i] & 0x30) >> 4);
 		switch (ff) {
 		case 0:
@@ -173,251 +376,243 @@ public class DataRecord {
 			functionField = FunctionField.ERROR_VAL;
 		}
 
-		int dataField = buffer[i] & 0x0f;
 		storageNumber = (buffer[i] & 0x40) >> 6;
 
 		subunit = 0;
 		tariff = 0;
 
+		// the n-th DIFE holds bit n-1 of the subunit, bits 2(n-1) and 2(n-1)+1 of the tariff and bits 4(n-1)+1 to
+		// 4(n-1)+4 of the storage number
+		int n = 0;
 		while ((buffer[i++] & 0x80) == 0x80) {
-			subunit += (((buffer[i] & 0x40) >> 6) << (i - 1));
-			tariff += ((buffer[i] & 0x30) >> 4) << ((i - 1) * 2);
-			storageNumber += ((buffer[i] & 0x0f) << (((i - 1) * 4) + 1));
+			subunit += (((buffer[i] & 0x40) >> 6) << n);
+			tariff += ((buffer[i] & 0x30) >> 4) << (n * 2);
+			storageNumber += ((long) (buffer[i] & 0x0f) << ((n * 4) + 1));
+			n++;
 		}
 
-		multiplierExponent = 0;
-
-		unit = null;
+		dibDecoded = true;
+	}
 
-		dib = Arrays.copyOfRange(buffer, offset, i);
+	private void decodeVib() {
+		int i = vibOffset;
 
-		// decode VIB
+		multiplierExponent = 0;
+		unit = null;
+		dateTypeF = false;
+		dateTypeG = false;
 
 		int vif = buffer[i++] & 0xff;
 
-		boolean decodeFurtherVifes = false;
-
-		if (vif == 0xfb) {
-			decodeAlternateExtendedVif(buffer[i]);
-			if ((buffer[i] & 0x80) == 0x80) {
-				decodeFurtherVifes = true;
-			}
-			i++;
+		if ((vif & 0x7f) == 0x7c) {
+			decodeUserDefinedVif(buffer, i);
 		}
-		else if ((vif & 0x7f) == 0x7c) {
-			i += decodeUserDefinedVif(buffer, i);
-			if ((vif & 0x80) == 0x80) {
-				decodeFurtherVifes = true;
+		else {
+			int table;
+			int code;
+			if (vif == 0xfb) {
+				table = VifTables.ALTERNATE_EXTENDED;
+				code = buffer[i] & 0xff;
 			}
-		}
-		else if (vif == 0xfd) {
-			decodeMainExtendedVif(buffer[i]);
-			if ((buffer[i] & 0x80) == 0x80) {
-				decodeFurtherVifes = true;
+			else if (vif == 0xfd) {
+				table = VifTables.MAIN_EXTENDED;
+				code = buffer[i] & 0xff;
 			}
-			i++;
-		}
-		else if ((vif & 0x7f) == 0x7e) {
-			throw new DecodingException("VIF types 0x7E/FE not supported.");
-		}
-		else if ((vif & 0x7f) == 0x7f) {
-			throw new DecodingException("VIF types 0x7F/FF not supported.");
-		}
-		else {
-			decodeMainVif(vif);
-			if ((vif & 0x80) == 0x80) {
-				decodeFurtherVifes = true;
+			else {
+				table = VifTables.PRIMARY;
+				code = vif;
 			}
+			description = VifTables.getDescription(table, code);
+			unit = VifTables.getUnit(table, code);
+			multiplierExponent = VifTables.getMultiplierExponent(table, code);
+			int dateType = VifTables.getDateType(table, code);
+			dateTypeF = dateType == VifTables.DATE_TYPE_F;
+			dateTypeG = dateType == VifTables.DATE_TYPE_G;
 		}
 
-		if (decodeFurtherVifes) {
-			while ((buffer[i++] & 0x80) == 0x80) {
-				// TODO these vifes should not be ignored!
+		decodeVifes();
+
+		vibDecoded = true;
+	}
+
+	// implements the combinable VIFEs of table 14 of DIN EN 13757-3:2011
+	private void decodeVifes() {
+		errorCode = 0;
+		perTimeUnit = null;
+		additiveCorrection = 0;
+
+		for (int i = vifeOffset; i < dataOffset; i++) {
+			int vife = buffer[i] & 0x7f;
+			if (vife <= 0x1f) {
+				errorCode = vife;
+			}
+			else if (vife <= 0x26) {
+				perTimeUnit = PER_TIME_UNITS[vife - 0x20];
+			}
+			else if (vife >= 0x70 && vife <= 0x77) {
+				// multiplicative correction factor 10^(nnn-6)
+				multiplierExponent += (vife & 0x07) - 6;
+			}
+			else if (vife >= 0x78 && vife <= 0x7b) {
+				// additive correction constant 10^(nn-3) in the unit of the VIF
+				additiveCorrection += powerOfTen((vife & 0x03) - 3);
+			}
+			else if (vife == 0x7d) {
+				// multiplicative correction factor 10^3
+				multiplierExponent += 3;
+			}
+			else if (vife == 0x7f) {
+				// the following VIFEs are manufacturer specific
+				break;
 			}
 		}
+	}
+
+	private void decodeData() {
+		// the coding of dates depends on the VIF
+		ensureVibDecoded();
+
+		int i = dataOffset;
 
-		vib = Arrays.copyOfRange(buffer, offset + dib.length, i);
+		dataValue = null;
 
 		switch (dataField) {
 		case 0x00:
-			dataValue = null;
+		case 0x08: /* no data - selection for readout request */
 			dataValueType = DataValueType.NONE;
 			break;
 		case 0x01: /* INT8 */
-			dataValue = new Long(buffer[i++]);
+			longValue = buffer[i];
 			dataValueType = DataValueType.LONG;
 			break;
 		case 0x02: /* INT16 */
 			if (dateTypeG) {
-				int day = (0x1f) & buffer[i];
-				int year1 = ((0xe0) & buffer[i++]) >> 5;
-				int month = (0x0f) & buffer[i];
-				int year2 = ((0xf0) & buffer[i++]) >> 1;
-				int year = (2000 + year1 + year2);
-
-				Calendar calendar = Calendar.getInstance();
-
-				calendar.set(year, month - 1, day, 0, 0, 0);
-
-				dataValue = calendar.getTime();
+				rawValue = readLittleEndian(buffer, i, 2);
 				dataValueType = DataValueType.DATE;
 			}
 			else {
-				dataValue = new Long((buffer[i++] & 0xff) | ((buffer[i++] & 0xff) << 8));
+				longValue = readLittleEndian(buffer, i, 2);
 				dataValueType = DataValueType.LONG;
 			}
 			break;
 		case 0x03: /* INT24 */
-			if ((buffer[i + 2] & 0x80) == 0x80) {
-				// negative
-				dataValue = new Long(
-						(buffer[i++] & 0xff) | ((buffer[i++] & 0xff) << 8) | ((buffer[i++] & 0xff) << 16) | 0xff << 24);
-			}
-			else {
-				dataValue = new Long((buffer[i++] & 0xff) | ((buffer[i++] & 0xff) << 8) | ((buffer[i++] & 0xff) << 16));
-			}
+			longValue = (readLittleEndian(buffer, i, 3) << 40) >> 40;
 			dataValueType = DataValueType.LONG;
 			break;
 		case 0x04: /* INT32 */
 			if (dateTypeF) {
-				int min = (buffer[i++] & 0x3f);
-				int hour = (buffer[i] & 0x1f);
-				int yearh = (0x60 & buffer[i++]) >> 5;
-				int day = (buffer[i] & 0x1f);
-				int year1 = (0xe0 & buffer[i++]) >> 5;
-				int mon = (buffer[i] & 0x0f);
-				int year2 = (0xf0 & buffer[i++]) >> 1;
-
-				if (yearh == 0) {
-					yearh = 1;
-				}
-
-				int year = 1900 + 100 * yearh + year1 + year2;
-
-				Calendar calendar = Calendar.getInstance();
-
-				calendar.set(year, mon - 1, day, hour, min, 0);
-
-				dataValue = calendar.getTime();
+				rawValue = readLittleEndian(buffer, i, 4);
 				dataValueType = DataValueType.DATE;
 			}
 			else {
-				dataValue = new Long((buffer[i++] & 0xff) | ((buffer[i++] & 0xff) << 8) | ((buffer[i++] & 0xff) << 16)
-						| ((buffer[i++] & 0xff) << 24));
+				longValue = (int) readLittleEndian(buffer, i, 4);
 				dataValueType = DataValueType.LONG;
 			}
 			break;
 		case 0x05: /* FLOAT32 */
-			Float doubleDatavalue = ByteBuffer.wrap(buffer, i, 4).order(ByteOrder.LITTLE_ENDIAN).getFloat();
-			i += 4;
-			dataValue = new Double(doubleDatavalue);
+			doubleValue = Float.intBitsToFloat((int) readLittleEndian(buffer, i, 4));
 			dataValueType = DataValueType.DOUBLE;
 			break;
 		case 0x06: /* INT48 */
-			if ((buffer[i + 2] & 0x80) == 0x80) {
-				// negative
-				dataValue = new Long((buffer[i++] & 0xff) | ((buffer[i++] & 0xff) << 8) | ((buffer[i++] & 0xff) << 16)
-						| ((buffer[i++] & 0xff) << 24) | (((long) buffer[i++] & 0xff) << 32)
-						| (((long) buffer[i++] & 0xff) << 40) | (0xffl << 48) | (0xffl << 56));
-			}
-			else {
-				dataValue = new Long((buffer[i++] & 0xff) | ((buffer[i++] & 0xff) << 8) | ((buffer[i++] & 0xff) << 16)
-						| ((buffer[i++] & 0xff) << 24) | (((long) buffer[i++] & 0xff) << 32)
-						| (((long) buffer[i++] & 0xff) << 40));
-			}
+			longValue = (readLittleEndian(buffer, i, 6) << 16) >> 16;
 			dataValueType = DataValueType.LONG;
 			break;
 		case 0x07: /* INT64 */
-			dataValue = new Long((buffer[i++] & 0xff) | ((buffer[i++] & 0xff) << 8) | ((buffer[i++] & 0xff) << 16)
-					| ((buffer[i++] & 0xff) << 24) | (((long) buffer[i++] & 0xff) << 32)
-					| (((long) buffer[i++] & 0xff) << 40) | (((long) buffer[i++] & 0xff) << 48)
-					| (((long) buffer[i++] & 0xff) << 56));
+			longValue = readLittleEndian(buffer, i, 8);
 			dataValueType = DataValueType.LONG;
 			break;
-		case 0x08: /* no data - selection for readout request */
-			dataValue = null;
-			dataValueType = DataValueType.NONE;
-			break;
 		case 0x09:
-			dataValue = new Bcd(Arrays.copyOfRange(buffer, i, i + 1));
-			dataValueType = DataValueType.BCD;
-			i += 1;
-			break;
 		case 0x0a:
-			dataValue = new Bcd(Arrays.copyOfRange(buffer, i, i + 2));
-			dataValueType = DataValueType.BCD;
-			i += 2;
-			break;
 		case 0x0b:
-			dataValue = new Bcd(Arrays.copyOfRange(buffer, i, i + 3));
-			dataValueType = DataValueType.BCD;
-			i += 3;
-			break;
 		case 0x0c:
-			dataValue = new Bcd(Arrays.copyOfRange(buffer, i, i + 4));
-			dataValueType = DataValueType.BCD;
-			i += 4;
-			break;
 		case 0x0e:
-			dataValue = new Bcd(Arrays.copyOfRange(buffer, i, i + 6));
+			rawLength = endOffset - i;
+			rawValue = readLittleEndian(buffer, i, rawLength);
+			longValue = Bcd.decode(rawValue, rawLength);
 			dataValueType = DataValueType.BCD;
-			i += 6;
 			break;
 		case 0x0d:
 
-			int variableLength = buffer[i++] & 0xff;
-			int dataLength;
-
-			if (variableLength < 0xc0) {
-				dataLength = variableLength;
-			}
-			else if ((variableLength >= 0xc0) && (variableLength <= 0xc9)) {
-				dataLength = 2 * (variableLength - 0xc0);
-			}
-			else if ((variableLength >= 0xd0) && (variableLength <= 0xd9)) {
-				dataLength = 2 * (variableLength - 0xd0);
-			}
-			else if ((variableLength >= 0xe0) && (variableLength <= 0xef)) {
-				dataLength = variableLength - 0xe0;
-			}
-			else if (variableLength == 0xf8) {
-				dataLength = 4;
-			}
-			else {
-				throw new DecodingException("Unsupported LVAR Field: " + variableLength);
-			}
-
-			// TODO check this:
-			// if (variableLength >= 0xc0) {
-			// throw new DecodingException("Variable length (LVAR) field >= 0xc0: " + variableLength);
-			// }
+			int dataLength = getLvarDataLength(buffer[i++] & 0xff);
 
 			char rawData[] = new char[dataLength];
 
 			for (int j = 0; j < dataLength; j++) {
 				rawData[j] = (char) buffer[i + dataLength - 1 - j];
 			}
-			i += dataLength;
 
 			dataValue = new String(rawData);
 			dataValueType = DataValueType.STRING;
 			break;
-		default:
-			throw new DecodingException("Unknown Data Field in DIF: " + HexConverter.toHexString((byte) dataField));
 		}
 
-		return i;
+		dataDecoded = true;
+	}
+
+	private static long readLittleEndian(byte[] buffer, int offset, int length) {
+		long value = 0;
+		for (int j = offset + length - 1; j >= offset; j--) {
+			value = (value << 8) | (buffer[j] & 0xff);
+		}
+		return value;
+	}
+
+
+	private Date decodeDate() {
+		Calendar calendar = Calendar.getInstance();
+		int b0 = (int) (rawValue & 0xff);
+		int b1 = (int) ((rawValue >> 8) & 0xff);
+
+		if (dataField == 0x02) {
+			// type G
+			int day = b0 & 0x1f;
+			int year1 = (b0 & 0xe0) >> 5;
+			int month = b1 & 0x0f;
+			int year2 = (b1 & 0xf0) >> 1;
+			int year = (2000 + year1 + year2);
+
+			calendar.set(year, month - 1, day, 0, 0, 0);
+		}
+		else {
+			// type F
+			int b2 = (int) ((rawValue >> 16) & 0xff);
+			int b3 = (int) ((rawValue >> 24) & 0xff);
+
+			int min = b0 & 0x3f;
+			int hour = b1 & 0x1f;
+			int yearh = (b1 & 0x60) >> 5;
+			int day = b2 & 0x1f;
+			int year1 = (b2 & 0xe0) >> 5;
+			int mon = b3 & 0x0f;
+			int year2 = (b3 & 0xf0) >> 1;
+
+			if (yearh == 0) {
+				yearh = 1;
+			}
+
+			int year = 1900 + 100 * yearh + year1 + year2;
+
+			calendar.set(year, mon - 1, day, hour, min, 0);
+		}
+
+		return calendar.getTime();
+	}
 
+	private boolean isNumeric() {
+		return dataValueType == DataValueType.LONG || dataValueType == DataValueType.DOUBLE
+				|| (dataValueType == DataValueType.BCD && longValue != Bcd.INVALID);
 	}
 
 	int encode(byte[] buffer, int offset) {
 
 		int i = offset;
 
+		byte[] dib = getDib();
 		System.arraycopy(dib, 0, buffer, i, dib.length);
 
 		i += dib.length;
 
+		byte[] vib = getVib();
 		System.arraycopy(vib, 0, buffer, i, vib.length);
 
 		i += vib.length;
@@ -425,12 +620,81 @@ public class DataRecord {
 		return i - offset;
 	}
 
+	/**
+	 * Returns the position of the VIF in the buffer the data record was indexed from.
+	 */
+	int getVibOffset() {
+		return vibOffset;
+	}
+
+	/**
+	 * Returns the position of the data field in the buffer the data record was indexed from.
+	 */
+	int getDataOffset() {
+		return dataOffset;
+	}
+
+	int getDataField() {
+		return dataField;
+	}
+
+	double getAdditiveCorrection() {
+		ensureVibDecoded();
+		return additiveCorrection;
+	}
+
+	/**
+	 * Decodes a numeric data field without creating a data record, e.g. if the layout of the record is already known.
+	 * 
+	 * @param buffer
+	 *            the buffer containing the data field.
+	 * @param i
+	 *            the position of the data field.
+	 * @param dataField
+	 *            the data field coding of the DIF (the lower 4 bits).
+	 * @return the unscaled value or NaN if the data field is not numeric.
+	 */
+	static double readNumber(byte[] buffer, int i, int dataField) {
+		switch (dataField) {
+		case 0x01:
+			return buffer[i];
+		case 0x02:
+			return readLittleEndian(buffer, i, 2);
+		case 0x03:
+			return (readLittleEndian(buffer, i, 3) << 40) >> 40;
+		case 0x04:
+			return (int) readLittleEndian(buffer, i, 4);
+		case 0x05:
+			return Float.intBitsToFloat((int) readLittleEndian(buffer, i, 4));
+		case 0x06:
+			return (readLittleEndian(buffer, i, 6) << 16) >> 16;
+		case 0x07:
+			return readLittleEndian(buffer, i, 8);
+		case 0x09:
+		case 0x0a:
+		case 0x0b:
+		case 0x0c:
+			return bcdToDouble(Bcd.decode(buffer, i, dataField - 0x08));
+		case 0x0e:
+			return bcdToDouble(Bcd.decode(buffer, i, 6));
+		default:
+			return Double.NaN;
+		}
+	}
+
+	private static double bcdToDouble(long value) {
+		return (value == Bcd.INVALID) ? Double.NaN : value;
+	}
+
 	/**
 	 * Returns a byte array containing the DIB (i.e. the DIF and the DIFEs) contained in the data record.
 	 * 
 	 * @return a byte array containing the DIB
 	 */
 	public byte[] getDib() {
+		if (dib == null && buffer != null) {
+			dib = Arrays.copyOfRange(buffer, dibOffset, vibOffset);
+		}
 		return dib;
 	}
 
@@ -440,6 +704,9 @@ public class DataRecord {
 	 * @return a byte array containing the VIB
 	 */
 	public byte[] getVib() {
+		if (vib == null && buffer != null) {
+			vib = Arrays.copyOfRange(buffer, vibOffset, dataOffset);
+		}
 		return vib;
 	}
 
@@ -451,10 +718,77 @@ public class DataRecord {
 	 * @return the data value
 	 */
 	public Object getDataValue() {
+		ensureDataDecoded();
+		if (dataValue == null) {
+			switch (dataValueType) {
+			case LONG:
+				dataValue = Long.valueOf(longValue);
+				break;
+			case DOUBLE:
+				dataValue = Double.valueOf(doubleValue);
+				break;
+			case BCD:
+				byte[] bcdBytes = new byte[rawLength];
+				for (int j = 0; j < rawLength; j++) {
+					bcdBytes[j] = (byte) (rawValue >> (j * 8));
+				}
+				dataValue = new Bcd(bcdBytes);
+				break;
+			case DATE:
+				dataValue = decodeDate();
+				break;
+			default:
+				break;
+			}
+		}
 		return dataValue;
 	}
 
+	/**
+	 * Returns the data value as a long without boxing it. Values of type DOUBLE are truncated.
+	 * 
+	 * @return the data value or 0 if the data value type is not LONG, BCD or DOUBLE or the BCD contains error nibbles.
+	 */
+	public long getLongValue() {
+		ensureDataDecoded();
+		if (dataValueType == DataValueType.DOUBLE) {
+			return (long) doubleValue;
+		}
+		if (isNumeric()) {
+			return longValue;
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns the data value as a double without boxing it.
+	 * 
+	 * @return the data value or NaN if the data value type is not LONG, BCD or DOUBLE or the BCD contains error
+	 *         nibbles.
+	 */
+	public double getDoubleValue() {
+		ensureDataDecoded();
+		if (dataValueType == DataValueType.DOUBLE) {
+			return doubleValue;
+		}
+		if (isNumeric()) {
+			return longValue;
+		}
+		return Double.NaN;
+	}
+
+	/**
+	 * Returns the data value multiplied by the multiplier without boxing it. An additive correction constant coded in a
+	 * VIFE is added.
+	 * 
+	 * @return the scaled data value or NaN if the data value type is not LONG, BCD or DOUBLE.
+	 */
+	public double getScaledDoubleValue() {
+		return getDoubleValue() * powerOfTen(getMultiplierExponent()) + additiveCorrection;
+	}
+
 	public DataValueType getDataValueType() {
+		ensureDataDecoded();
 		return dataValueType;
 	}
 
@@ -465,34 +799,47 @@ public class DataRecord {
 	 * @return the data (value) multiplied by the multiplier as a Double
 	 */
 	public Double getScaledDataValue() {
-		try {
-			return ((Number) dataValue).doubleValue() * Math.pow(10, multiplierExponent);
-		} catch (ClassCastException e) {
+		ensureDataDecoded();
+		if (!isNumeric()) {
 			return null;
 		}
+		return getScaledDoubleValue();
+	}
+
+	static double powerOfTen(int exponent) {
+		if (exponent >= MIN_EXPONENT && exponent <= MAX_EXPONENT) {
+			return POWERS_OF_TEN[exponent - MIN_EXPONENT];
+		}
+		return Math.pow(10, exponent);
 	}
 
 	public FunctionField getFunctionField() {
+		ensureDibDecoded();
 		return functionField;
 	}
 
 	public long getStorageNumber() {
+		ensureDibDecoded();
 		return storageNumber;
 	}
 
 	public int getTariff() {
+		ensureDibDecoded();
 		return tariff;
 	}
 
 	public short getSubunit() {
+		ensureDibDecoded();
 		return subunit;
 	}
 
 	public Description getDescription() {
+		ensureVibDecoded();
 		return description;
 	}
 
 	public String getUserDefinedDescription() {
+		ensureVibDecoded();
 		if (description == Description.USER_DEFINED) {
 			return userDefinedDescription;
 		}
@@ -508,33 +855,38 @@ public class DataRecord {
 	 * @return the exponent of the multiplier.
 	 */
 	public int getMultiplierExponent() {
+		ensureVibDecoded();
 		return multiplierExponent;
 	}
 
 	public DlmsUnit getUnit() {
+		ensureVibDecoded();
 		return unit;
 	}
 
-	private void decodeTimeUnit(int vif) {
-		if ((vif & 0x02) == 0) {
-			if ((vif & 0x01) == 0) {
-				unit = DlmsUnit.SECOND;
-			}
-			else {
-				unit = DlmsUnit.MIN;
-			}
-		}
-		else {
-			if ((vif & 0x01) == 0) {
-				unit = DlmsUnit.HOUR;
-			}
-			else {
-				unit = DlmsUnit.DAY;
-			}
-		}
+	/**
+	 * Returns the time unit the value refers to if the VIB contains one of the VIFEs "per second" to "per year", e.g.
+	 * HOUR for a volume per hour.
+	 * 
+	 * @return the time unit or null if the value does not refer to a time unit.
+	 */
+	public DlmsUnit getPerTimeUnit() {
+		ensureVibDecoded();
+		return perTimeUnit;
+	}
+
+	/**
+	 * Returns the record error code coded in a VIFE (0x00 to 0x1f), e.g. 0x15 if no data is available or 0x18 for a data
+	 * error.
+	 * 
+	 * @return the error code or 0 if no error is signaled.
+	 */
+	public int getErrorCode() {
+		ensureVibDecoded();
+		return errorCode;
 	}
 
-	private int decodeUserDefinedVif(byte[] buffer, int offset) throws DecodingException {
+	private int decodeUserDefinedVif(byte[] buffer, int offset) {
 
 		int length = buffer[offset];
 		StringBuilder sb = new StringBuilder();
@@ -549,642 +901,16 @@ public class DataRecord {
 
 	}
 
-	private void decodeMainVif(int vif) {
-		description = Description.NOT_SUPPORTED;
-
-		if ((vif & 0x40) == 0) {
-			// E0
-			if ((vif & 0x20) == 0) {
-				// E00
-				if ((vif & 0x10) == 0) {
-					// E000
-					if ((vif & 0x08) == 0) {
-						// E000 0
-						description = Description.ENERGY;
-						multiplierExponent = (vif & 0x07) - 3;
-						unit = DlmsUnit.WATT_HOUR;
-					}
-					else {
-						// E000 1
-						description = Description.ENERGY;
-						multiplierExponent = vif & 0x07;
-						unit = DlmsUnit.JOULE;
-					}
-				}
-				else {
-					// E001
-					if ((vif & 0x08) == 0) {
-						// E001 0
-						description = Description.VOLUME;
-						multiplierExponent = (vif & 0x07) - 6;
-						unit = DlmsUnit.CUBIC_METRE;
-					}
-					else {
-						// E001 1
-						description = Description.MASS;
-						multiplierExponent = (vif & 0x07) - 3;
-						unit = DlmsUnit.KILOGRAM;
-					}
-				}
-			}
-			else {
-				// E01
-				if ((vif & 0x10) == 0) {
-					// E010
-					if ((vif & 0x08) == 0) {
-						// E010 0
-						if ((vif & 0x04) == 0) {
-							// E010 00
-							description = Description.ON_TIME;
-						}
-						else {
-							// E010 01
-							description = Description.OPERATING_TIME;
-						}
-						decodeTimeUnit(vif);
-					}
-					else {
-						// E010 1
-						description = Description.POWER;
-						multiplierExponent = (vif & 0x07) - 3;
-						unit = DlmsUnit.WATT;
-					}
-				}
-				else {
-					// E011
-					if ((vif & 0x08) == 0) {
-						// E011 0
-						description = Description.POWER;
-						multiplierExponent = vif & 0x07;
-						unit = DlmsUnit.JOULE_PER_HOUR;
-					}
-					else {
-						// E011 1
-						description = Description.VOLUME_FLOW;
-						multiplierExponent = (vif & 0x07) - 6;
-						unit = DlmsUnit.CUBIC_METRE_PER_HOUR;
-					}
-				}
-			}
-		}
-		else {
-			// E1
-			if ((vif & 0x20) == 0) {
-				// E10
-				if ((vif & 0x10) == 0) {
-					// E100
-					if ((vif & 0x08) == 0) {
-						// E100 0
-						description = Description.VOLUME_FLOW_EXT;
-						multiplierExponent = (vif & 0x07) - 7;
-						unit = DlmsUnit.CUBIC_METRE_PER_MINUTE;
-					}
-					else {
-						// E100 1
-						description = Description.VOLUME_FLOW_EXT;
-						multiplierExponent = (vif & 0x07) - 9;
-						unit = DlmsUnit.CUBIC_METRE_PER_SECOND;
-					}
-				}
-				else {
-					// E101
-					if ((vif & 0x08) == 0) {
-						// E101 0
-						description = Description.MASS_FLOW;
-						multiplierExponent = (vif & 0x07) - 3;
-						unit = DlmsUnit.KILOGRAM_PER_HOUR;
-					}
-					else {
-						// E101 1
-						if ((vif & 0x04) == 0) {
-							// E101 10
-							description = Description.FLOW_TEMPERATURE;
-							multiplierExponent = (vif & 0x03) - 3;
-							unit = DlmsUnit.DEGREE_CELSIUS;
-						}
-						else {
-							// E101 11
-							description = Description.RETURN_TEMPERATURE;
-							multiplierExponent = (vif & 0x03) - 3;
-							unit = DlmsUnit.DEGREE_CELSIUS;
-						}
-					}
-				}
-			}
-			else {
-				// E11
-				if ((vif & 0x10) == 0) {
-					// E110
-					if ((vif & 0x08) == 0) {
-						// E110 0
-						if ((vif & 0x04) == 0) {
-							// E110 00
-							description = Description.TEMPERATURE_DIFFERENCE;
-							multiplierExponent = (vif & 0x03) - 3;
-							unit = DlmsUnit.KELVIN;
-						}
-						else {
-							// E110 01
-							description = Description.EXTERNAL_TEMPERATURE;
-							multiplierExponent = (vif & 0x03) - 3;
-							unit = DlmsUnit.DEGREE_CELSIUS;
-						}
-					}
-					else {
-						// E110 1
-						if ((vif & 0x04) == 0) {
-							// E110 10
-							description = Description.PRESSURE;
-							multiplierExponent = (vif & 0x03) - 3;
-							unit = DlmsUnit.BAR;
-						}
-						else {
-							// E110 11
-							if ((vif & 0x02) == 0) {
-								// E110 110
-								if ((vif & 0x01) == 0) {
-									// E110 1100
-									description = Description.DATE;
-									dateTypeG = true;
-								}
-								else {
-									// E110 1101
-									description = Description.DATE_TIME;
-									dateTypeF = true;
-								}
-							}
-							else {
-								// E110 111
-								if ((vif & 0x01) == 0) {
-									// E110 1110
-									description = Description.HCA;
-									unit = DlmsUnit.RESERVED;
-								}
-								else {
-									description = Description.NOT_SUPPORTED;
-								}
-
-							}
-
-						}
-					}
-				}
-				else {
-					// E111
-					if ((vif & 0x08) == 0) {
-						// E111 0
-						if ((vif & 0x04) == 0) {
-							description = Description.AVERAGING_DURATION;
-						}
-						else {
-							description = Description.ACTUALITY_DURATION;
-						}
-						decodeTimeUnit(vif);
-					}
-					else {
-						// E111 1
-						if ((vif & 0x04) == 0) {
-							// E111 10
-							if ((vif & 0x02) == 0) {
-								// E111 100
-								if ((vif & 0x01) == 0) {
-									// E111 1000
-									description = Description.FABRICATION_NO;
-								}
-								else {
-									// E111 1001
-									description = Description.EXTENDED_IDENTIFICATION;
-								}
-							}
-							else {
-								// E111 101
-								if ((vif & 0x01) == 0) {
-									description = Description.ADDRESS;
-								}
-								else {
-									// E111 1011
-									// Codes used with extension indicator 0xFB (table 29 of DIN EN 13757-3:2011)
-									throw new IllegalArgumentException(
-											"Trying to decode a mainVIF even though it is an alternate extended vif");
-								}
-							}
-						}
-						else {
-							// E111 11
-							if ((vif & 0x02) == 0) {
-								// E111 110
-								if ((vif & 0x01) == 0) {
-									// E111 1100
-									// Extension indicator 0xFC: VIF is given in following string
-									description = Description.NOT_SUPPORTED;
-								}
-								else {
-									// E111 1101
-									// Extension indicator 0xFD: main VIFE-code extension table (table 28 of DIN EN
-									// 13757-3:2011)
-									throw new IllegalArgumentException(
-											"Trying to decode a mainVIF even though it is a main extended vif");
-
-								}
-							}
-
-						}
-
-					}
-				}
-			}
-
-		}
-
-	}
-
-	// implements table 28 of DIN EN 13757-3:2011
-	private void decodeMainExtendedVif(byte vif) {
-		if ((vif & 0x70) == 0x40) {
-			description = Description.VOLTAGE;
-			multiplierExponent = (vif & 0x0f) - 9;
-			unit = DlmsUnit.VOLT;
-		}
-		else if ((vif & 0x70) == 0x50) {
-			description = Description.CURRENT;
-			multiplierExponent = (vif & 0x0f) - 12;
-			unit = DlmsUnit.AMPERE;
-		}
-		else if ((vif & 0x7c) == 0x6c) {
-			description = Description.OPERATING_TIME_BATTERY;
-			switch (vif & 0x03) {
-			case 0:
-				unit = DlmsUnit.HOUR;
-				break;
-			case 1:
-				unit = DlmsUnit.DAY;
-				break;
-			case 2:
-				unit = DlmsUnit.MONTH;
-				break;
-			case 3:
-				unit = DlmsUnit.YEAR;
-			}
-		}
-		else if ((vif & 0x7f) == 0x0b) {
-			description = Description.PARAMETER_SET_ID;
-		}
-		else if ((vif & 0x7f) == 0x0c) {
-			description = Description.MODEL_VERSION;
-		}
-		else if ((vif & 0x7f) == 0x0d) {
-			description = Description.HARDWARE_VERSION;
-		}
-		else if ((vif & 0x7f) == 0x0e) {
-			description = Description.FIRMWARE_VERSION;
-		}
-		else if ((vif & 0x7f) == 0x11) {
-			description = Description.CUSTOMER;
-		}
-		else if ((vif & 0x7f) == 0x17) {
-			description = Description.ERROR_FLAGS;
-		}
-		else if ((vif & 0x7f) >= 0x77) {
-			description = Description.RESERVED;
-		}
-		else {
-			description = Description.NOT_SUPPORTED;
-		}
-	}
-
-	// implements table 29 of DIN EN 13757-3:2011
-	private void decodeAlternateExtendedVif(byte vif) {
-		description = Description.NOT_SUPPORTED; // default value
-
-		if ((vif & 0x40) == 0) {
-			// E0
-			if ((vif & 0x20) == 0) {
-				// E00
-				if ((vif & 0x10) == 0) {
-					// E000
-					if ((vif & 0x08) == 0) {
-						// E000 0
-						if ((vif & 0x04) == 0) {
-							// E000 00
-							if ((vif & 0x02) == 0) {
-								// E000 000
-								description = Description.ENERGY;
-								multiplierExponent = 5 + (vif & 0x01);
-								unit = DlmsUnit.WATT_HOUR;
-							}
-							else {
-								// E000 001
-								description = Description.REACTIVE_ENERGY;
-								multiplierExponent = 3 + (vif & 0x01);
-								unit = DlmsUnit.VAR_HOUR;
-							}
-
-						}
-						else {
-							// E000 01
-							description = Description.NOT_SUPPORTED;
-						}
-					}
-					else {
-						// E000 1
-						if ((vif & 0x04) == 0) {
-							// E000 10
-							if ((vif & 0x02) == 0) {
-								// E000 100
-								description = Description.ENERGY;
-								multiplierExponent = 8 + (vif & 0x01);
-								unit = DlmsUnit.JOULE;
-							}
-							else {
-								// E000 101
-								description = Description.NOT_SUPPORTED;
-							}
-
-						}
-						else {
-							// E000 11
-							description = Description.ENERGY;
-							multiplierExponent = 5 + (vif & 0x03);
-							unit = DlmsUnit.CALORIFIC_VALUE;
-						}
-					}
-				}
-				else {
-					// E001
-					if ((vif & 0x08) == 0) {
-						// E001 0
-						if ((vif & 0x04) == 0) {
-							// E001 00
-							if ((vif & 0x02) == 0) {
-								// E001 000
-								description = Description.VOLUME;
-								multiplierExponent = 2 + (vif & 0x01);
-								unit = DlmsUnit.CUBIC_METRE;
-							}
-							else {
-								// E001 001
-								description = Description.NOT_SUPPORTED;
-							}
-						}
-						else {
-							// E001 01
-							description = Description.REACTIVE_POWER;
-							multiplierExponent = (vif & 0x03);
-							unit = DlmsUnit.VAR;
-						}
-					}
-					else {
-						// E001 1
-						if ((vif & 0x04) == 0) {
-							// E001 10
-							if ((vif & 0x02) == 0) {
-								// E001 100
-								description = Description.MASS;
-								multiplierExponent = 5 + (vif & 0x01);
-								unit = DlmsUnit.KILOGRAM;
-							}
-							else {
-								// E001 101
-								description = Description.REL_HUMIDITY;
-								multiplierExponent = -1 + (vif & 0x01);
-								unit = DlmsUnit.PERCENTAGE;
-							}
-
-						}
-						else {
-							// E001 11
-							description = Description.NOT_SUPPORTED;
-						}
-					}
-
-				}
-			}
-			else {
-				// E01
-				if ((vif & 0x10) == 0) {
-					// E010
-					if ((vif & 0x08) == 0) {
-						// E010 0
-						if ((vif & 0x04) == 0) {
-							// E010 00
-							if ((vif & 0x02) == 0) {
-								// E010 000
-								if ((vif & 0x01) == 0) {
-									// E010 0000
-									description = Description.VOLUME;
-									multiplierExponent = 0;
-									unit = DlmsUnit.CUBIC_FEET;
-								}
-								else {
-									// E010 0001
-									description = Description.VOLUME;
-									multiplierExponent = -1;
-									unit = DlmsUnit.CUBIC_FEET;
-								}
-							}
-							else {
-								// E010 001
-								// outdated value !
-								description = Description.VOLUME;
-								multiplierExponent = -1 + (vif & 0x01);
-								unit = DlmsUnit.US_GALLON;
-							}
-						}
-						else {
-							// E010 01
-							if ((vif & 0x02) == 0) {
-								// E010 010
-								if ((vif & 0x01) == 0) {
-									// E010 0100
-									// outdated value !
-									description = Description.VOLUME_FLOW;
-									multiplierExponent = -3;
-									unit = DlmsUnit.US_GALLON_PER_MINUTE;
-								}
-								else {
-									// E010 0101
-									// outdated value !
-									description = Description.VOLUME_FLOW;
-									multiplierExponent = 0;
-									unit = DlmsUnit.US_GALLON_PER_MINUTE;
-								}
-							}
-							else {
-								// E010 011
-								if ((vif & 0x01) == 0) {
-									// E010 0110
-									// outdated value !
-									description = Description.VOLUME_FLOW;
-									multiplierExponent = 0;
-									unit = DlmsUnit.US_GALLON_PER_HOUR;
-								}
-								else {
-									// E010 0111
-									description = Description.NOT_SUPPORTED;
-								}
-							}
-
-						}
-					}
-					else {
-						// E010 1
-						if ((vif & 0x04) == 0) {
-							// E010 10
-							if ((vif & 0x02) == 0) {
-								// E010 100
-								description = Description.POWER;
-								multiplierExponent = 5 + (vif & 0x01);
-								unit = DlmsUnit.WATT;
-							}
-							else {
-								if ((vif & 0x01) == 0) {
-									// E010 1010
-									description = Description.PHASE;
-									multiplierExponent = -1; // is -1 or 0 correct ??
-									unit = DlmsUnit.DEGREE;
-								}
-								else {
-									// E010 1011
-									description = Description.PHASE;
-									multiplierExponent = -1; // is -1 or 0 correct ??
-									unit = DlmsUnit.DEGREE;
-								}
-							}
-						}
-						else {
-							// E010 11
-							description = Description.FREQUENCY;
-							multiplierExponent = -3 + (vif & 0x03);
-							unit = DlmsUnit.HERTZ;
-						}
-					}
-				}
-				else {
-					// E011
-					if ((vif & 0x08) == 0) {
-						// E011 0
-						if ((vif & 0x04) == 0) {
-							// E011 00
-							if ((vif & 0x02) == 0) {
-								// E011 000
-								description = Description.POWER;
-								multiplierExponent = 8 + (vif & 0x01);
-								unit = DlmsUnit.JOULE_PER_HOUR;
-							}
-							else {
-								// E011 001
-								description = Description.NOT_SUPPORTED;
-							}
-						}
-						else {
-							// E011 01
-							description = Description.NOT_SUPPORTED;
-						}
-					}
-					else {
-						// E011 1
-						description = Description.NOT_SUPPORTED;
-					}
-				}
-			}
-		}
-		else {
-			// E1
-			if ((vif & 0x20) == 0) {
-				// E10
-				if ((vif & 0x10) == 0) {
-					// E100
-					description = Description.NOT_SUPPORTED;
-				}
-				else {
-					// E101
-					if ((vif & 0x08) == 0) {
-						// E101 0
-						description = Description.NOT_SUPPORTED;
-					}
-					else {
-						// E101 1
-						if ((vif & 0x04) == 0) {
-							// E101 10
-							// outdated value !
-							description = Description.FLOW_TEMPERATURE;
-							multiplierExponent = (vif & 0x03) - 3;
-							unit = DlmsUnit.DEGREE_FAHRENHEIT;
-						}
-						else {
-							// E101 11
-							// outdated value !
-							description = Description.RETURN_TEMPERATURE;
-							multiplierExponent = (vif & 0x03) - 3;
-							unit = DlmsUnit.DEGREE_FAHRENHEIT;
-						}
-					}
-				}
-			}
-			else {
-				// E11
-				if ((vif & 0x10) == 0) {
-					// E110
-					if ((vif & 0x08) == 0) {
-						// E110 0
-						if ((vif & 0x04) == 0) {
-							// E110 00
-							// outdated value !
-							description = Description.TEMPERATURE_DIFFERENCE;
-							multiplierExponent = (vif & 0x03) - 3;
-							unit = DlmsUnit.DEGREE_FAHRENHEIT;
-						}
-						else {
-							// E110 01
-							// outdated value !
-							description = Description.FLOW_TEMPERATURE;
-							multiplierExponent = (vif & 0x03) - 3;
-							unit = DlmsUnit.DEGREE_FAHRENHEIT;
-						}
-					}
-					else {
-						// E110 1
-						description = Description.NOT_SUPPORTED;
-					}
-				}
-				else {
-					// E111
-					if ((vif & 0x08) == 0) {
-						// E111 0
-						if ((vif & 0x04) == 0) {
-							// E111 00
-							// outdated value !
-							description = Description.TEMPERATURE_LIMIT;
-							multiplierExponent = (vif & 0x03) - 3;
-							unit = DlmsUnit.DEGREE_FAHRENHEIT;
-						}
-						else {
-							// E111 01
-							description = Description.TEMPERATURE_LIMIT;
-							multiplierExponent = (vif & 0x03) - 3;
-							unit = DlmsUnit.DEGREE_CELSIUS;
-						}
-					}
-					else {
-						// E111 1
-						description = Description.MAX_POWER;
-						multiplierExponent = (vif & 0x07) - 3;
-						unit = DlmsUnit.WATT;
-					}
-				}
-			}
-
-		}
-
-	}
-
 	@Override
 	public String toString() {
 
+		ensureDibDecoded();
+		ensureDataDecoded();
+
 		StringBuilder builder = new StringBuilder();
 
-		builder.append("DIB:").append(HexConverter.toHexString(dib));
-		builder.append(", VIB:").append(HexConverter.toHexString(vib));
+		builder.append("DIB:").append(HexConverter.toHexString(getDib()));
+		builder.append(", VIB:").append(HexConverter.toHexString(getVib()));
 
 		builder.append(" -> descr:").append(description);
 		if (description == Description.USER_DEFINED) {
@@ -1206,17 +932,17 @@ public class DataRecord {
 
 		switch (dataValueType) {
 		case DATE:
-			builder.append(", value:").append((dataValue).toString());
+			builder.append(", value:").append(getDataValue().toString());
 			break;
 		case STRING:
-			builder.append(", value:").append((dataValue).toString());
+			builder.append(", value:").append(getDataValue().toString());
 			break;
 		case DOUBLE:
 			builder.append(", scaled value:").append(getScaledDataValue());
 			break;
 		case LONG:
 			if (multiplierExponent == 0) {
-				builder.append(", value:").append(dataValue);
+				builder.append(", value:").append(getDataValue());
 			}
 			else {
 				builder.append(", scaled value:").append(getScaledDataValue());
@@ -1224,7 +950,7 @@ public class DataRecord {
 			break;
 		case BCD:
 			if (multiplierExponent == 0) {
-				builder.append(", value:").append((dataValue).toString());
+				builder.append(", value:").append(getDataValue().toString());
 			}
 			else {
 				builder.append(", scaled value:").append(getScaledDataValue());
@@ -1239,6 +965,14 @@ public class DataRecord {
 			builder.append(", unit:").append(unit);
 		}
 
+		if (perTimeUnit != null) {
+			builder.append(" per ").append(perTimeUnit);
+		}
+
+		if (errorCode != 0) {
+			builder.append(", error code:").append(HexConverter.toHexString((byte) errorCode));
+		}
+
 		return builder.toString();
 
 	}
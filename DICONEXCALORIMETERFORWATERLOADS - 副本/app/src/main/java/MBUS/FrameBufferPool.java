@@ -0,0 +1,68 @@
+package MBUS;
+
+/**
+ * A pool of equally sized byte arrays used as frame buffers. Buffers are handed out by {@link #acquire()} and have to
+ * be returned with {@link #release(byte[])} once the frame is no longer needed. Reusing the buffers avoids allocating a
+ * new array for every frame sent or received so that a steady-state poll loop does not produce garbage.
+ *
+ * The pool is thread-safe and can be shared between several service access points.
+ */
+class FrameBufferPool {
+
+	private final int bufferSize;
+	private final byte[][] buffers;
+	// Synchronized by 'this'
+	private int numBuffers = 0;
+
+	/**
+	 * Creates a new pool.
+	 *
+	 * @param bufferSize
+	 *            the size of the buffers in the pool
+	 * @param capacity
+	 *            the maximum number of idle buffers kept by the pool
+	 */
+	public FrameBufferPool(int bufferSize, int capacity) {
+		this.bufferSize = bufferSize;
+		buffers = new byte[capacity][];
+	}
+
+	/**
+	 * Takes a buffer from the pool. A new buffer is only allocated if the pool is empty.
+	 *
+	 * @return a buffer of the size of this pool. The content of the buffer is undefined.
+	 */
+	public byte[] acquire() {
+		synchronized (this) {
+			if (numBuffers > 0) {
+				byte[] buffer = buffers[--numBuffers];
+				buffers[numBuffers] = null;
+				return buffer;
+			}
+		}
+		return new byte[bufferSize];
+	}
+
+	/**
+	 * Returns a buffer to the pool. The buffer must not be used by the caller afterwards. Buffers of a different size
+	 * and buffers exceeding the capacity of the pool are dropped.
+	 *
+	 * @param buffer
+	 *            the buffer to return, may be null
+	 */
+	public void release(byte[] buffer) {
+		if (buffer == null || buffer.length != bufferSize) {
+			return;
+		}
+		synchronized (this) {
+			if (numBuffers < buffers.length) {
+				buffers[numBuffers++] = buffer;
+			}
+		}
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+}
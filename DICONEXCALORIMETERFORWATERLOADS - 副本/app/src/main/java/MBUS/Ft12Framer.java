@@ -0,0 +1,246 @@
+package MBUS;
+
+/**
+ * Incremental receiver for the FT 1.2 frame formats (IEC 60870-5-2) used by the wired M-Bus. Bytes are fed into the
+ * framer as soon as they arrive on the serial line. A frame is complete the moment its last byte (the 0x16 stop byte
+ * in case of short and long frames) has been received so that no time is lost waiting for further data.
+ *
+ * The following frames are recognized:
+ * <ul>
+ * <li>Single character - 0xE5</li>
+ * <li>Short frame - 0x10, C, A, checksum, 0x16</li>
+ * <li>Long frame - 0x68, L, L, 0x68, C, A, CI, data, checksum, 0x16</li>
+ * </ul>
+ *
+ * The header, the checksum and the stop byte of short and long frames are validated as soon as they are received. A
+ * frame that fails validation is reported as corrupt immediately instead of waiting for bytes that may never come.
+ * Bytes received before a valid start byte (0xE5, 0x10 or 0x68), e.g. noise on the line, are discarded so that the
+ * framer resynchronizes on the next frame start.
+ */
+class Ft12Framer {
+
+	private enum State {
+		START,
+		SHORT_FRAME,
+		LONG_FRAME_HEADER,
+		LONG_FRAME_BODY,
+		COMPLETE,
+		CORRUPT
+	}
+
+	private byte[] buffer;
+	private State state;
+	private int numBytesReceived;
+	private int frameLength;
+	private int numBytesDiscarded;
+	private String error;
+
+	/**
+	 * Prepares the framer to receive a new frame into the given buffer.
+	 *
+	 * @param buffer
+	 *            the buffer the frame is written to. Must be able to hold the largest expected frame.
+	 */
+	public void reset(byte[] buffer) {
+		this.buffer = buffer;
+		state = State.START;
+		numBytesReceived = 0;
+		frameLength = -1;
+		numBytesDiscarded = 0;
+		error = null;
+	}
+
+	/**
+	 * Returns the number of bytes that are at least needed to make progress on the current frame. This can be used to
+	 * read exactly the bytes belonging to the frame from the serial line.
+	 *
+	 * @return the number of bytes to read next, 0 if the frame is complete or corrupt.
+	 */
+	public int bytesWanted() {
+		switch (state) {
+		case START:
+			return 1;
+		case SHORT_FRAME:
+		case LONG_FRAME_BODY:
+			return frameLength - numBytesReceived;
+		case LONG_FRAME_HEADER:
+			return 4 - numBytesReceived;
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * Returns the position in the buffer where the next received bytes have to be written to.
+	 *
+	 * @return the write position.
+	 */
+	public int getWritePosition() {
+		return numBytesReceived;
+	}
+
+	/**
+	 * Processes bytes that were written directly into the buffer starting at {@link #getWritePosition()}.
+	 *
+	 * @param length
+	 *            the number of bytes that were written.
+	 * @return true if the frame is complete or corrupt.
+	 */
+	public boolean update(int length) {
+		int end = numBytesReceived + length;
+		int position = numBytesReceived;
+		while (position < end && state != State.COMPLETE && state != State.CORRUPT) {
+			// bytes are moved to the front if garbage before the frame start was discarded
+			byte b = buffer[position++];
+			buffer[numBytesReceived] = b;
+			step(b & 0xff);
+		}
+		return state == State.COMPLETE || state == State.CORRUPT;
+	}
+
+	/**
+	 * Appends a single byte to the frame.
+	 *
+	 * @param b
+	 *            the received byte
+	 * @return true if the frame is complete or corrupt.
+	 */
+	public boolean push(byte b) {
+		if (state == State.COMPLETE || state == State.CORRUPT) {
+			return true;
+		}
+		buffer[numBytesReceived] = b;
+		return update(1);
+	}
+
+	/**
+	 * Processes the byte at position numBytesReceived.
+	 */
+	private void step(int b) {
+		if (state == State.START) {
+			if (b == 0xe5) {
+				frameLength = 1;
+				state = State.COMPLETE;
+			}
+			else if (b == 0x10) {
+				frameLength = 5;
+				state = State.SHORT_FRAME;
+			}
+			else if (b == 0x68) {
+				state = State.LONG_FRAME_HEADER;
+			}
+			else {
+				// not a frame start, resynchronize on the next byte
+				numBytesDiscarded++;
+				return;
+			}
+			numBytesReceived++;
+			return;
+		}
+
+		numBytesReceived++;
+
+		switch (state) {
+		case LONG_FRAME_HEADER:
+			if (numBytesReceived == 2) {
+				if (b < 3) {
+					corrupt("Length field of long frame too small: " + b);
+					return;
+				}
+				frameLength = b + 6;
+			}
+			else if (numBytesReceived == 3) {
+				if (b != (buffer[1] & 0xff)) {
+					corrupt("Length fields are not identical in long frame.");
+				}
+			}
+			else if (numBytesReceived == 4) {
+				if (b != 0x68) {
+					corrupt("Fourth byte of long frame was not 0x68.");
+					return;
+				}
+				state = State.LONG_FRAME_BODY;
+			}
+			break;
+		case SHORT_FRAME:
+		case LONG_FRAME_BODY:
+			if (numBytesReceived == frameLength) {
+				validate();
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	private void validate() {
+		if ((buffer[frameLength - 1] & 0xff) != 0x16) {
+			corrupt("Stop byte was not 0x16.");
+			return;
+		}
+		// the checksum is the arithmetic sum of the bytes from the control field up to the checksum
+		int dataStart = (state == State.SHORT_FRAME) ? 1 : 4;
+		int checksum = 0;
+		for (int i = dataStart; i < frameLength - 2; i++) {
+			checksum += buffer[i];
+		}
+		if ((checksum & 0xff) != (buffer[frameLength - 2] & 0xff)) {
+			corrupt("Wrong checksum.");
+			return;
+		}
+		state = State.COMPLETE;
+	}
+
+	private void corrupt(String error) {
+		this.error = error;
+		state = State.CORRUPT;
+	}
+
+	/**
+	 * Returns whether a valid frame was received.
+	 */
+	public boolean isComplete() {
+		return state == State.COMPLETE;
+	}
+
+	/**
+	 * Returns whether the received frame failed validation. The frame must not be decoded.
+	 */
+	public boolean isCorrupt() {
+		return state == State.CORRUPT;
+	}
+
+	/**
+	 * Returns the reason the frame is corrupt.
+	 *
+	 * @return the error or null if the frame is not corrupt.
+	 */
+	public String getError() {
+		return error;
+	}
+
+	/**
+	 * Returns the number of bytes that were discarded because they did not start a frame.
+	 */
+	public int getNumBytesDiscarded() {
+		return numBytesDiscarded;
+	}
+
+	/**
+	 * Returns the length of the frame as announced by its header.
+	 *
+	 * @return the frame length or -1 if it is not yet known.
+	 */
+	public int getFrameLength() {
+		return frameLength;
+	}
+
+	public int getNumBytesReceived() {
+		return numBytesReceived;
+	}
+
+	public byte[] getBuffer() {
+		return buffer;
+	}
+
+}
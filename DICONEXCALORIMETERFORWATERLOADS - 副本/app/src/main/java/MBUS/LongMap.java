@@ -0,0 +1,180 @@
+package MBUS;
+
+/**
+ * A map from primitive long keys to objects, e.g. from packed secondary addresses (see
+ * {@link SecondaryAddress#asLong()}) to per meter state. The keys are kept in a plain long array using open addressing
+ * with linear probing, so neither lookups nor insertions of existing keys allocate.
+ *
+ * Null values are not supported. The map is not thread-safe.
+ *
+ * Iteration:
+ *
+ * <pre>
+ * for (int i = 0; i &lt; map.capacity(); i++) {
+ * 	V value = map.valueAt(i);
+ * 	if (value != null) {
+ * 		long key = map.keyAt(i);
+ * 	}
+ * }
+ * </pre>
+ */
+public class LongMap<V> {
+
+	private final static int MIN_CAPACITY = 16;
+
+	private long[] keys;
+	private Object[] values;
+	private int size = 0;
+
+	public LongMap() {
+		this(MIN_CAPACITY / 2);
+	}
+
+	/**
+	 * Creates a map that holds the given number of entries without growing.
+	 *
+	 * @param expectedSize
+	 *            the expected number of entries.
+	 */
+	public LongMap(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while (capacity < expectedSize * 2) {
+			capacity <<= 1;
+		}
+		keys = new long[capacity];
+		values = new Object[capacity];
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		return (V) values[find(key)];
+	}
+
+	public boolean containsKey(long key) {
+		return values[find(key)] != null;
+	}
+
+	/**
+	 * Associates the value with the key.
+	 *
+	 * @return the previous value or null if the key was not in the map.
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		if (value == null) {
+			throw new IllegalArgumentException("value may not be null");
+		}
+		int i = find(key);
+		Object previous = values[i];
+		if (previous == null) {
+			if ((size + 1) * 2 > values.length) {
+				resize();
+				i = find(key);
+			}
+			keys[i] = key;
+			size++;
+		}
+		values[i] = value;
+		return (V) previous;
+	}
+
+	/**
+	 * Removes the value of the key.
+	 *
+	 * @return the removed value or null if the key was not in the map.
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		int i = find(key);
+		Object previous = values[i];
+		if (previous == null) {
+			return null;
+		}
+		values[i] = null;
+		size--;
+
+		// move entries of the same probe sequence into the gap
+		int mask = values.length - 1;
+		int gap = i;
+		for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+			int home = slot(keys[j], mask);
+			if (((j - home) & mask) >= ((j - gap) & mask)) {
+				keys[gap] = keys[j];
+				values[gap] = values[j];
+				values[j] = null;
+				gap = j;
+			}
+		}
+		return (V) previous;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		for (int i = 0; i < values.length; i++) {
+			values[i] = null;
+		}
+		size = 0;
+	}
+
+	/**
+	 * Returns the number of slots. Used together with {@link #keyAt(int)} and {@link #valueAt(int)} to iterate over the
+	 * map.
+	 */
+	public int capacity() {
+		return values.length;
+	}
+
+	/**
+	 * Returns the key in the given slot. Only valid if {@link #valueAt(int)} is not null.
+	 */
+	public long keyAt(int slot) {
+		return keys[slot];
+	}
+
+	/**
+	 * Returns the value in the given slot or null if the slot is empty.
+	 */
+	@SuppressWarnings("unchecked")
+	public V valueAt(int slot) {
+		return (V) values[slot];
+	}
+
+	private static int slot(long key, int mask) {
+		long hash = key * 0x9E3779B97F4A7C15L;
+		return (int) (hash ^ (hash >>> 32)) & mask;
+	}
+
+	/**
+	 * Returns the slot of the given key or the empty slot where it would be inserted.
+	 */
+	private int find(long key) {
+		int mask = values.length - 1;
+		int i = slot(key, mask);
+		while (values[i] != null && keys[i] != key) {
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	private void resize() {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new long[oldKeys.length * 2];
+		values = new Object[oldValues.length * 2];
+		for (int j = 0; j < oldValues.length; j++) {
+			if (oldValues[j] != null) {
+				int i = find(oldKeys[j]);
+				keys[i] = oldKeys[j];
+				values[i] = oldValues[j];
+			}
+		}
+	}
+
+}
@@ -0,0 +1,351 @@
+package MBUS;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Asynchronous access to an M-Bus segment. All requests are queued and executed one after the other by a single I/O
+ * thread that owns the {@link MBusSap}, so the transactions of different callers never interleave on the half-duplex
+ * bus and no caller thread is blocked while a transaction is in progress.
+ *
+ * Every method returns a {@link Future} and optionally notifies a {@link Callback} when the request has completed.
+ * Requests can be cancelled with {@link Future#cancel(boolean)}: a request that has not started yet is removed from the
+ * queue, cancelling a running request with <code>mayInterruptIfRunning</code> aborts the current transaction. After an
+ * aborted transaction the input is discarded until the line is idle, so that a late response is not taken as the
+ * response to the next request. A request can be given a deadline. If the deadline has passed before the request
+ * reaches the head of the queue, it fails with a {@link TimeoutException} without using the bus. The deadline only
+ * applies while the request waits in the queue: once started, a transaction runs to its end and is bounded by the
+ * timeout of the {@link MBusSap}.
+ *
+ * Composite transactions that have to be executed without other requests in between, like select, read and deselect of
+ * a meter using secondary addressing, are available as single requests, e.g. {@link #read(SecondaryAddress, Callback)}.
+ */
+public class MBusAsyncSap {
+
+	/**
+	 * Notified when an asynchronous request has completed. Called from the I/O thread, so implementations must return
+	 * quickly. The only exception is a cancelled request: its {@link #onFailure(Exception)} is called from the thread
+	 * that called {@link Future#cancel(boolean)}.
+	 */
+	public interface Callback<T> {
+		public void onSuccess(T result);
+
+		/**
+		 * Called if the request failed, its deadline passed or it was cancelled.
+		 *
+		 * @param e
+		 *            an IOException or TimeoutException thrown by the transaction, a TimeoutException if the deadline
+		 *            passed or a CancellationException.
+		 */
+		public void onFailure(Exception e);
+	}
+
+	private class Request<T> extends FutureTask<T> {
+
+		private final long deadline;
+		private final Callback<T> callback;
+
+		Request(Callable<T> callable, long deadline, Callback<T> callback) {
+			super(callable);
+			this.deadline = deadline;
+			this.callback = callback;
+		}
+
+		@Override
+		public void run() {
+			if (isDone()) {
+				// cancelled before it was started
+				return;
+			}
+			if (deadline != 0 && System.currentTimeMillis() > deadline) {
+				setException(new TimeoutException("Deadline passed before the request was sent."));
+				return;
+			}
+			super.run();
+			// the response to an aborted transaction may still be on its way, it must not be taken as the response to
+			// the next request
+			boolean interrupted = Thread.interrupted();
+			if (interrupted || isCancelled()) {
+				try {
+					mBusSap.discardInput();
+				} catch (IOException e) {
+					// the next request fails on its own if the port is broken
+				} catch (IllegalStateException e) {
+					// port closed
+				}
+			}
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			if (cancelled) {
+				executor.remove(this);
+			}
+			return cancelled;
+		}
+
+		@Override
+		protected void done() {
+			if (callback == null) {
+				return;
+			}
+			T result;
+			try {
+				result = get();
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof Exception) {
+					callback.onFailure((Exception) cause);
+				}
+				else {
+					callback.onFailure(e);
+				}
+				return;
+			} catch (InterruptedException e) {
+				// cannot happen as the request is done
+				Thread.currentThread().interrupt();
+				return;
+			} catch (Exception e) {
+				// CancellationException
+				callback.onFailure(e);
+				return;
+			}
+			callback.onSuccess(result);
+		}
+	}
+
+	private final MBusSap mBusSap;
+	private final ThreadPoolExecutor executor;
+
+	/**
+	 * Creates an asynchronous service access point. The given service access point has to be opened by the caller and
+	 * must not be used directly afterwards.
+	 *
+	 * @param mBusSap
+	 *            the service access point of the segment.
+	 * @param name
+	 *            the name of the I/O thread.
+	 */
+	public MBusAsyncSap(MBusSap mBusSap, final String name) {
+		this.mBusSap = mBusSap;
+		executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, name);
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	public MBusSap getMBusSap() {
+		return mBusSap;
+	}
+
+	/**
+	 * Reads a meter using primary addressing, see {@link MBusSap#read(int)}.
+	 */
+	public Future<VariableDataStructure> read(int primaryAddress, Callback<VariableDataStructure> callback) {
+		return read(primaryAddress, 0, null, callback);
+	}
+
+	/**
+	 * Reads a meter using primary addressing, see {@link MBusSap#read(int)}.
+	 *
+	 * @param primaryAddress
+	 *            the primary address of the meter to read.
+	 * @param timeout
+	 *            the time after which the request fails if it has not been started yet, 0 for no deadline.
+	 * @param unit
+	 *            the unit of the timeout.
+	 * @param callback
+	 *            the callback notified on completion, may be null.
+	 * @return the future of the read.
+	 */
+	public Future<VariableDataStructure> read(final int primaryAddress, long timeout, TimeUnit unit,
+			Callback<VariableDataStructure> callback) {
+		return submit(new Callable<VariableDataStructure>() {
+			@Override
+			public VariableDataStructure call() throws Exception {
+				return mBusSap.read(primaryAddress);
+			}
+		}, timeout, unit, callback);
+	}
+
+	/**
+	 * Selects the meter with the given secondary address, reads it and deselects it again as a single request.
+	 */
+	public Future<VariableDataStructure> read(SecondaryAddress secondaryAddress,
+			Callback<VariableDataStructure> callback) {
+		return read(secondaryAddress, 0, null, callback);
+	}
+
+	/**
+	 * Selects the meter with the given secondary address, reads it and deselects it again as a single request. No other
+	 * request is executed in between.
+	 *
+	 * @param secondaryAddress
+	 *            the secondary address of the meter to read.
+	 * @param timeout
+	 *            the time after which the request fails if it has not been started yet, 0 for no deadline.
+	 * @param unit
+	 *            the unit of the timeout.
+	 * @param callback
+	 *            the callback notified on completion, may be null.
+	 * @return the future of the read.
+	 */
+	public Future<VariableDataStructure> read(final SecondaryAddress secondaryAddress, long timeout, TimeUnit unit,
+			Callback<VariableDataStructure> callback) {
+		return submit(new Callable<VariableDataStructure>() {
+			@Override
+			public VariableDataStructure call() throws Exception {
+				mBusSap.selectComponent(secondaryAddress);
+				try {
+					return mBusSap.read(0xfd);
+				} finally {
+					mBusSap.deselectComponent();
+				}
+			}
+		}, timeout, unit, callback);
+	}
+
+	/**
+	 * Reads all telegrams of a meter using primary addressing, see {@link MBusSap#readAll(int, MBusSap.ReadoutListener)}.
+	 * The listener is called from the I/O thread.
+	 */
+	public Future<Integer> readAll(final int primaryAddress, final MBusSap.ReadoutListener listener, long timeout,
+			TimeUnit unit, Callback<Integer> callback) {
+		return submit(new Callable<Integer>() {
+			@Override
+			public Integer call() throws Exception {
+				return mBusSap.readAll(primaryAddress, listener);
+			}
+		}, timeout, unit, callback);
+	}
+
+	/**
+	 * Writes to a meter using primary addressing, see {@link MBusSap#write(int, byte[])}.
+	 */
+	public Future<Boolean> write(final int primaryAddress, final byte[] data, long timeout, TimeUnit unit,
+			Callback<Boolean> callback) {
+		return submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				return mBusSap.write(primaryAddress, data);
+			}
+		}, timeout, unit, callback);
+	}
+
+	/**
+	 * Selects a meter for secondary addressing, see {@link MBusSap#selectComponent(SecondaryAddress)}.
+	 */
+	public Future<Void> selectComponent(final SecondaryAddress secondaryAddress, long timeout, TimeUnit unit,
+			Callback<Void> callback) {
+		return submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				mBusSap.selectComponent(secondaryAddress);
+				return null;
+			}
+		}, timeout, unit, callback);
+	}
+
+	/**
+	 * Deselects the selected meter, see {@link MBusSap#deselectComponent()}.
+	 */
+	public Future<Void> deselectComponent(long timeout, TimeUnit unit, Callback<Void> callback) {
+		return submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				mBusSap.deselectComponent();
+				return null;
+			}
+		}, timeout, unit, callback);
+	}
+
+	/**
+	 * Sends a SND_NKE to a meter, see {@link MBusSap#linkReset(int)}.
+	 */
+	public Future<Void> linkReset(final int primaryAddress, long timeout, TimeUnit unit, Callback<Void> callback) {
+		return submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				mBusSap.linkReset(primaryAddress);
+				return null;
+			}
+		}, timeout, unit, callback);
+	}
+
+	/**
+	 * Resets the readout selection of a meter, see {@link MBusSap#resetReadout(int)}.
+	 */
+	public Future<Void> resetReadout(final int primaryAddress, long timeout, TimeUnit unit, Callback<Void> callback) {
+		return submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				mBusSap.resetReadout(primaryAddress);
+				return null;
+			}
+		}, timeout, unit, callback);
+	}
+
+	/**
+	 * Queues an arbitrary transaction. Use this to compose several operations of the service access point that must
+	 * not be interrupted by other requests.
+	 *
+	 * @param transaction
+	 *            the transaction, executed in the I/O thread.
+	 * @param timeout
+	 *            the time after which the request fails if it has not been started yet, 0 for no deadline.
+	 * @param unit
+	 *            the unit of the timeout.
+	 * @param callback
+	 *            the callback notified on completion, may be null.
+	 * @return the future of the transaction.
+	 */
+	public <T> Future<T> submit(Callable<T> transaction, long timeout, TimeUnit unit, Callback<T> callback) {
+		long deadline = 0;
+		if (timeout > 0) {
+			deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+		}
+		Request<T> request = new Request<T>(transaction, deadline, callback);
+		executor.execute(request);
+		return request;
+	}
+
+	/**
+	 * Returns the number of requests waiting to be executed.
+	 */
+	public int getQueueLength() {
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * Stops the I/O thread after all queued requests have been executed. Does not close the service access point.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * Waits until the I/O thread has terminated after {@link #shutdown()}.
+	 *
+	 * @return true if the thread terminated, false if the timeout elapsed.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting.
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return executor.awaitTermination(timeout, unit);
+	}
+
+}
@@ -0,0 +1,294 @@
+package MBUS;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads meters on several M-Bus segments concurrently. Every segment is accessed through its own {@link MBusSap} (i.e.
+ * its own serial port / level converter) and serviced by its own I/O thread running an {@link MBusPollScheduler}. The
+ * decoded readings of all segments are merged into a single queue that is consumed with {@link #take()} or
+ * {@link #poll(long, TimeUnit)}.
+ *
+ * The segments share no locks except the output queue, so a slow or dead segment never delays the others. The bus
+ * threads never block on the output queue either: if the consumer does not keep up and the queue is full, new readings
+ * are dropped and counted. A segment where every poll fails for a while, e.g. because its converter was unplugged, has
+ * its serial port closed and opened again.
+ */
+public class MBusCollector {
+
+	/**
+	 * Time in ms to wait before trying to open the serial port of a segment again.
+	 */
+	private final static int REOPEN_DELAY = 5000;
+
+	/**
+	 * Number of consecutive failed polls on a segment after which its serial port is closed and opened again, e.g.
+	 * because the USB converter was unplugged and plugged in again.
+	 */
+	private final static int REOPEN_FAILURES = 10;
+
+	/**
+	 * A decoded reading of a single meter.
+	 */
+	public static class Reading {
+
+		private final String busName;
+		private final int primaryAddress;
+		private final long timestamp;
+		private final VariableDataStructure variableDataStructure;
+
+		Reading(String busName, int primaryAddress, long timestamp, VariableDataStructure variableDataStructure) {
+			this.busName = busName;
+			this.primaryAddress = primaryAddress;
+			this.timestamp = timestamp;
+			this.variableDataStructure = variableDataStructure;
+		}
+
+		/**
+		 * Returns the name the segment was registered with.
+		 */
+		public String getBusName() {
+			return busName;
+		}
+
+		public int getPrimaryAddress() {
+			return primaryAddress;
+		}
+
+		/**
+		 * Returns the time the response was received in ms since 1970.
+		 */
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		/**
+		 * Returns the decoded variable data structure of the response. It holds its own copy of the received frame, so
+		 * it is not affected by later transactions of the bus thread.
+		 */
+		public VariableDataStructure getVariableDataStructure() {
+			return variableDataStructure;
+		}
+	}
+
+	private class Bus implements Runnable, MBusPollScheduler.Listener {
+
+		private final String name;
+		private final MBusPollScheduler scheduler;
+		private Thread thread;
+		// Synchronized by 'scheduler'
+		private boolean running = false;
+		private volatile IOException lastOpenError = null;
+		// only accessed by the bus thread
+		private int consecutiveFailures = 0;
+
+		Bus(String name, MBusPollScheduler scheduler) {
+			this.name = name;
+			this.scheduler = scheduler;
+			scheduler.setListener(this);
+		}
+
+		@Override
+		public void run() {
+			MBusSap mBusSap = scheduler.getMBusSap();
+			try {
+				while (isRunning()) {
+					try {
+						mBusSap.open();
+						lastOpenError = null;
+					} catch (IOException e) {
+						lastOpenError = e;
+						Thread.sleep(REOPEN_DELAY);
+						continue;
+					}
+					try {
+						synchronized (scheduler) {
+							if (!running) {
+								break;
+							}
+							scheduler.setRunning();
+						}
+						consecutiveFailures = 0;
+						// returns on stop() or after REOPEN_FAILURES consecutive failures
+						scheduler.runLoop();
+					} finally {
+						mBusSap.close();
+					}
+				}
+			} catch (InterruptedException e) {
+				// stop requested
+			}
+		}
+
+		@Override
+		public void newReading(int primaryAddress, VariableDataStructure variableDataStructure) {
+			consecutiveFailures = 0;
+			if (!readings.offer(
+					new Reading(name, primaryAddress, System.currentTimeMillis(), variableDataStructure))) {
+				numDroppedReadings.incrementAndGet();
+			}
+		}
+
+		@Override
+		public void readFailed(int primaryAddress, Exception e) {
+			// failures of single meters are counted by the scheduler, a segment where every poll fails is reopened
+			if (++consecutiveFailures == REOPEN_FAILURES) {
+				scheduler.stop();
+			}
+		}
+
+		private boolean isRunning() {
+			synchronized (scheduler) {
+				return running;
+			}
+		}
+
+		void start() {
+			synchronized (scheduler) {
+				running = true;
+			}
+			thread = new Thread(this, "MBusCollector-" + name);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		void stop() {
+			synchronized (scheduler) {
+				running = false;
+				scheduler.stop();
+			}
+			thread.interrupt();
+		}
+
+		void join() throws InterruptedException {
+			thread.join();
+		}
+	}
+
+	// Synchronized by 'this'
+	private final List<Bus> buses = new ArrayList<Bus>();
+	private boolean started = false;
+
+	private final BlockingQueue<Reading> readings;
+	private final AtomicLong numDroppedReadings = new AtomicLong();
+
+	/**
+	 * Creates a new collector.
+	 *
+	 * @param queueCapacity
+	 *            the maximum number of readings buffered for the consumer.
+	 */
+	public MBusCollector(int queueCapacity) {
+		readings = new ArrayBlockingQueue<Reading>(queueCapacity);
+	}
+
+	/**
+	 * Adds an M-Bus segment. The meters to read on the segment are added to the returned scheduler. The service access
+	 * point must not be opened by the caller, the collector opens it on {@link #start()} and closes it on
+	 * {@link #stop()}.
+	 *
+	 * @param name
+	 *            a name identifying the segment in the readings, e.g. the serial port name.
+	 * @param mBusSap
+	 *            the service access point of the segment.
+	 * @return the scheduler of the segment.
+	 */
+	public synchronized MBusPollScheduler addBus(String name, MBusSap mBusSap) {
+		MBusPollScheduler scheduler = new MBusPollScheduler(mBusSap, null);
+		Bus bus = new Bus(name, scheduler);
+		buses.add(bus);
+		if (started) {
+			bus.start();
+		}
+		return scheduler;
+	}
+
+	/**
+	 * Starts one I/O thread per segment.
+	 */
+	public synchronized void start() {
+		if (started) {
+			throw new IllegalStateException("Already started.");
+		}
+		started = true;
+		for (Bus bus : buses) {
+			bus.start();
+		}
+	}
+
+	/**
+	 * Stops all I/O threads and closes the serial ports. Waits until all threads have terminated.
+	 *
+	 * @throws InterruptedException
+	 *             if the calling thread was interrupted while waiting.
+	 */
+	public void stop() throws InterruptedException {
+		List<Bus> stoppedBuses;
+		synchronized (this) {
+			if (!started) {
+				return;
+			}
+			started = false;
+			stoppedBuses = new ArrayList<Bus>(buses);
+		}
+		for (Bus bus : stoppedBuses) {
+			bus.stop();
+		}
+		for (Bus bus : stoppedBuses) {
+			bus.join();
+		}
+	}
+
+	/**
+	 * Returns the next reading of any segment, waiting if necessary.
+	 *
+	 * @return the next reading.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting.
+	 */
+	public Reading take() throws InterruptedException {
+		return readings.take();
+	}
+
+	/**
+	 * Returns the next reading of any segment, waiting up to the given time.
+	 *
+	 * @return the next reading or null if no reading arrived in time.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting.
+	 */
+	public Reading poll(long timeout, TimeUnit unit) throws InterruptedException {
+		return readings.poll(timeout, unit);
+	}
+
+	/**
+	 * Returns the number of readings that were dropped because the queue was full.
+	 *
+	 * @return the number of dropped readings.
+	 */
+	public long getNumberOfDroppedReadings() {
+		return numDroppedReadings.get();
+	}
+
+	/**
+	 * Returns the error that occurred the last time the serial port of a segment could not be opened.
+	 *
+	 * @param name
+	 *            the name of the segment.
+	 * @return the error or null if the port of the segment is open.
+	 */
+	public synchronized IOException getOpenError(String name) {
+		for (Bus bus : buses) {
+			if (bus.name.equals(name)) {
+				return bus.lastOpenError;
+			}
+		}
+		return null;
+	}
+
+}
@@ -20,6 +20,8 @@
  */
 package MBUS;
 
+import java.nio.ByteBuffer;
+
 /**
  * 
  * Represents a wired M-Bus link layer message according to EN 13757-2. The messages are in format class FT 1.2
@@ -44,20 +46,87 @@ public class MBusMessage {
 		RSP_UD
 	}
 
-	private final MessageType messageType;
-	private final int addressField;
-	private final VariableDataStructure variableDataStructure;
+	private MessageType messageType;
+	private int addressField;
+	private byte[] buffer;
+	private int dataOffset;
+	private int dataLength;
+	private VariableDataStructure variableDataStructure;
 
 	public MBusMessage(byte[] buffer, int length) throws DecodingException {
+		decode(buffer, length);
+	}
+
+	/**
+	 * Decodes the frame contained in the remaining bytes of the given buffer. The position of the buffer is not
+	 * changed. The bytes of a heap buffer are decoded in place and the variable data structure refers to its backing
+	 * array, so the buffer must not be refilled while the message is used. A direct buffer is copied once.
+	 * 
+	 * @param frame
+	 *            the buffer containing the frame between its position and its limit
+	 * @throws DecodingException
+	 *             if the frame is not a valid single character or long frame
+	 */
+	public MBusMessage(ByteBuffer frame) throws DecodingException {
+		if (frame.hasArray()) {
+			decode(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+		}
+		else {
+			// every get() of a direct buffer is a native call, the decoder is faster on an array
+			byte[] buffer = new byte[frame.remaining()];
+			frame.duplicate().get(buffer);
+			decode(buffer, 0, buffer.length);
+		}
+	}
 
-		switch (buffer[0] & 0xff) {
+	/**
+	 * Creates an empty message that is filled by {@link #decode(byte[], int)}. Used to reuse a single message object
+	 * for every frame received.
+	 */
+	MBusMessage() {
+	}
+
+	/**
+	 * Decodes the given frame into this message object, replacing its previous content. The variable data structure
+	 * of an RSP_UD frame refers to the given buffer. It is only created when {@link #getVariableDataResponse()} is
+	 * called, so decoding a frame does not allocate.
+	 * 
+	 * @param buffer
+	 *            the buffer containing the frame starting at index 0
+	 * @param length
+	 *            the length of the frame
+	 * @throws DecodingException
+	 *             if the frame is not a valid single character or long frame
+	 */
+	void decode(byte[] buffer, int length) throws DecodingException {
+		decode(buffer, 0, length);
+	}
+
+	/**
+	 * Decodes the frame at the given position of the buffer into this message object.
+	 * 
+	 * @param buffer
+	 *            the buffer containing the frame
+	 * @param offset
+	 *            the position of the first byte of the frame
+	 * @param length
+	 *            the length of the frame
+	 * @throws DecodingException
+	 *             if the frame is not a valid single character or long frame
+	 */
+	void decode(byte[] buffer, int offset, int length) throws DecodingException {
+
+		messageType = null;
+		addressField = 0;
+		this.buffer = null;
+		variableDataStructure = null;
+
+		switch (buffer[offset] & 0xff) {
 		case 0xe5:
 			messageType = MessageType.SINGLE_CHARACTER;
-			addressField = 0;
-			variableDataStructure = null;
 			break;
 		case 0x68:
-			int lengthField = buffer[1] & 0xff;
+			int lengthField = buffer[offset + 1] & 0xff;
 
 			if (lengthField != length - 6) {
 				throw new DecodingException(
@@ -65,15 +134,27 @@ public class MBusMessage {
 								+ lengthField + ", buffer length: " + length + " !");
 			}
 
-			if (buffer[1] != buffer[2]) {
+			if (buffer[offset + 1] != buffer[offset + 2]) {
 				throw new DecodingException("Length fields are not identical in long frame!");
 			}
 
-			if (buffer[3] != 0x68) {
+			if (buffer[offset + 3] != 0x68) {
 				throw new DecodingException("Fourth byte of long frame was not 0x68.");
 			}
 
-			int controlField = buffer[4] & 0xff;
+			if ((buffer[offset + length - 1] & 0xff) != 0x16) {
+				throw new DecodingException("Last byte of long frame was not 0x16.");
+			}
+
+			int checksum = 0;
+			for (int i = offset + 4; i < offset + length - 2; i++) {
+				checksum += buffer[i];
+			}
+			if ((checksum & 0xff) != (buffer[offset + length - 2] & 0xff)) {
+				throw new DecodingException("Wrong checksum in long frame.");
+			}
+
+			int controlField = buffer[offset + 4] & 0xff;
 
 			if ((controlField & 0xcf) != 0x08) {
 				throw new DecodingException(
@@ -82,12 +163,14 @@ public class MBusMessage {
 
 			messageType = MessageType.RSP_UD;
 
-			addressField = buffer[5] & 0xff;
+			addressField = buffer[offset + 5] & 0xff;
 
-			variableDataStructure = new VariableDataStructure(buffer, 6, length - 6, null, null);
+			this.buffer = buffer;
+			dataOffset = offset + 6;
+			dataLength = length - 6;
 			break;
 		default:
-			throw new DecodingException("Unexpected first frame byte: " + HexConverter.toHexString(buffer[0]));
+			throw new DecodingException("Unexpected first frame byte: " + HexConverter.toHexString(buffer[offset]));
 		}
 	}
 
@@ -100,9 +183,32 @@ public class MBusMessage {
 	}
 
 	public VariableDataStructure getVariableDataResponse() {
+		if (variableDataStructure == null && buffer != null) {
+			try {
+				variableDataStructure = new VariableDataStructure(buffer, dataOffset, dataLength, null, null);
+			} catch (DecodingException e) {
+				// the constructor only stores the position of the data
+				throw new IllegalStateException(e);
+			}
+		}
 		return variableDataStructure;
 	}
 
+	/**
+	 * Returns the position of the CI field of an RSP_UD frame in the buffer that was decoded.
+	 */
+	int getVariableDataOffset() {
+		return dataOffset;
+	}
+
+	/**
+	 * Returns the length of the variable data structure of an RSP_UD frame including the CI field and the trailing
+	 * checksum and stop byte.
+	 */
+	int getVariableDataLength() {
+		return dataLength;
+	}
+
 	@Override
 	public String toString() {
 		StringBuilder builder = new StringBuilder();
@@ -110,7 +216,7 @@ public class MBusMessage {
 		builder.append(messageType);
 		builder.append("\naddress field: ");
 		builder.append(addressField & 0xff);
-		builder.append("\nVariable Data Response:\n").append(variableDataStructure);
+		builder.append("\nVariable Data Response:\n").append(getVariableDataResponse());
 		return builder.toString();
 	}
 
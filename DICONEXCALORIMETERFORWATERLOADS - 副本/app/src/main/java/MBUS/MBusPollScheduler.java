@@ -0,0 +1,367 @@
+package MBUS;
+
+import java.io.IOException;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Cyclically reads a set of meters on one M-Bus segment using primary addressing. Every meter is registered with a
+ * target interval. The scheduler always sends the next REQ_UD2 to the meter whose reading is due first (earliest
+ * deadline first) and starts the next request as soon as the inter-frame idle time after the previous response has
+ * passed. This keeps the half-duplex bus busy while every meter is read as close to its target interval as the bus
+ * capacity allows.
+ *
+ * The frame count bits (FCB) are those maintained by the {@link MBusSap}. Every meter is reset with a SND_NKE before it
+ * is read for the first time and after it recovers from failures so that the FCB of master and slave are in sync.
+ *
+ * The scheduler can either be driven by calling {@link #pollNext()} or run in its own thread using {@link #run()}.
+ */
+public class MBusPollScheduler implements Runnable {
+
+	/**
+	 * According to EN 13757-2 the master has to wait at least 11 bit times after the end of a response before sending
+	 * the next request.
+	 */
+	private final static int MIN_IDLE_BIT_TIMES = 11;
+
+	/**
+	 * A meter that failed is read again after its interval multiplied with the number of consecutive failures, but not
+	 * later than this multiple of its interval.
+	 */
+	private final static int MAX_BACKOFF_FACTOR = 8;
+
+	public interface Listener {
+		/**
+		 * Called when a meter was read successfully. The variable data structure is decoded.
+		 */
+		public void newReading(int primaryAddress, VariableDataStructure variableDataStructure);
+
+		/**
+		 * Called when reading a meter failed.
+		 */
+		public void readFailed(int primaryAddress, Exception e);
+	}
+
+	private static class Meter implements Comparable<Meter> {
+		final int primaryAddress;
+		long interval;
+		long nextDue;
+		long lastSuccess = 0;
+		int consecutiveFailures = 0;
+		long numSuccesses = 0;
+		long numFailures = 0;
+		boolean linkReset = false;
+
+		Meter(int primaryAddress, long interval, long nextDue) {
+			this.primaryAddress = primaryAddress;
+			this.interval = interval;
+			this.nextDue = nextDue;
+		}
+
+		@Override
+		public int compareTo(Meter other) {
+			if (nextDue < other.nextDue) {
+				return -1;
+			}
+			if (nextDue > other.nextDue) {
+				return 1;
+			}
+			return primaryAddress - other.primaryAddress;
+		}
+	}
+
+	private final MBusSap mBusSap;
+
+	// Synchronized by 'this'
+	private final PriorityQueue<Meter> queue = new PriorityQueue<Meter>();
+	private final Meter[] meters = new Meter[251];
+	private Listener listener;
+	private boolean running = false;
+
+	private int idleTime;
+	private long lastFrameEnd = 0;
+
+	// statistics
+	private long startTime = 0;
+	private long numFrames = 0;
+
+	/**
+	 * Creates a scheduler reading meters through the given service access point. The service access point has to be
+	 * opened by the caller.
+	 *
+	 * @param mBusSap
+	 *            the service access point of the M-Bus segment.
+	 * @param listener
+	 *            the listener that is notified about readings, may be null.
+	 */
+	public MBusPollScheduler(MBusSap mBusSap, Listener listener) {
+		this.mBusSap = mBusSap;
+		this.listener = listener;
+		idleTime = (MIN_IDLE_BIT_TIMES * 1000 + mBusSap.getBaudRate() - 1) / mBusSap.getBaudRate();
+	}
+
+	public MBusSap getMBusSap() {
+		return mBusSap;
+	}
+
+	public synchronized void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	public synchronized Listener getListener() {
+		return listener;
+	}
+
+	/**
+	 * Sets the time in ms the bus is left idle between the end of a response and the next request. Defaults to 11 bit
+	 * times at the baud rate of the service access point.
+	 *
+	 * @param idleTime
+	 *            the idle time in ms.
+	 */
+	public synchronized void setIdleTime(int idleTime) {
+		if (idleTime < 0) {
+			throw new IllegalArgumentException("idle time may not be negative");
+		}
+		this.idleTime = idleTime;
+	}
+
+	/**
+	 * Adds a meter or changes the interval of an already added meter. A newly added meter is due immediately.
+	 *
+	 * @param primaryAddress
+	 *            the primary address of the meter.
+	 * @param interval
+	 *            the target time in ms between two readings of the meter.
+	 */
+	public synchronized void addMeter(int primaryAddress, long interval) {
+		if (primaryAddress < 0 || primaryAddress > 250) {
+			throw new IllegalArgumentException("invalid primary address: " + primaryAddress);
+		}
+		if (interval <= 0) {
+			throw new IllegalArgumentException("interval must be greater than 0");
+		}
+		Meter meter = meters[primaryAddress];
+		if (meter == null) {
+			meter = new Meter(primaryAddress, interval, System.currentTimeMillis());
+			meters[primaryAddress] = meter;
+			queue.add(meter);
+			notifyAll();
+		}
+		else {
+			meter.interval = interval;
+		}
+	}
+
+	public synchronized void removeMeter(int primaryAddress) {
+		if (primaryAddress < 0 || primaryAddress >= meters.length) {
+			return;
+		}
+		Meter meter = meters[primaryAddress];
+		if (meter != null) {
+			meters[primaryAddress] = null;
+			queue.remove(meter);
+		}
+	}
+
+	/**
+	 * Waits until the next meter is due and reads it. Does nothing if no meter was added.
+	 *
+	 * @return the primary address of the meter that was polled or -1 if no meter was polled.
+	 * @throws InterruptedException
+	 *             if the calling thread was interrupted while waiting.
+	 */
+	public int pollNext() throws InterruptedException {
+		Meter meter;
+		Listener listener;
+		synchronized (this) {
+			meter = queue.peek();
+			if (meter == null) {
+				return -1;
+			}
+			long now = System.currentTimeMillis();
+			long sendTime = Math.max(meter.nextDue, lastFrameEnd + idleTime);
+			if (sendTime > now) {
+				wait(sendTime - now);
+				// meters may have been added or removed in the meantime
+				return -1;
+			}
+			queue.poll();
+			listener = this.listener;
+			if (startTime == 0) {
+				startTime = now;
+			}
+		}
+
+		VariableDataStructure variableDataStructure = null;
+		Exception exception = null;
+		try {
+			if (!meter.linkReset) {
+				mBusSap.linkReset(meter.primaryAddress);
+				meter.linkReset = true;
+				Thread.sleep(idleTime);
+			}
+			variableDataStructure = mBusSap.read(meter.primaryAddress);
+		} catch (IOException e) {
+			exception = e;
+		} catch (TimeoutException e) {
+			exception = e;
+		}
+
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			lastFrameEnd = now;
+			if (exception == null) {
+				numFrames++;
+				meter.lastSuccess = now;
+				meter.numSuccesses++;
+				meter.consecutiveFailures = 0;
+				meter.nextDue = meter.nextDue + meter.interval;
+				if (meter.nextDue < now) {
+					// the bus is overloaded, do not try to catch up on missed readings
+					meter.nextDue = now;
+				}
+			}
+			else {
+				meter.numFailures++;
+				meter.consecutiveFailures++;
+				meter.linkReset = false;
+				meter.nextDue = now + meter.interval * Math.min(meter.consecutiveFailures, MAX_BACKOFF_FACTOR);
+			}
+			if (meters[meter.primaryAddress] == meter) {
+				queue.add(meter);
+			}
+		}
+
+		if (listener != null) {
+			if (exception == null) {
+				listener.newReading(meter.primaryAddress, variableDataStructure);
+			}
+			else {
+				listener.readFailed(meter.primaryAddress, exception);
+			}
+		}
+
+		return meter.primaryAddress;
+	}
+
+	/**
+	 * Continuously reads the meters until {@link #stop()} is called or the thread is interrupted.
+	 */
+	@Override
+	public void run() {
+		synchronized (this) {
+			setRunning();
+		}
+		runLoop();
+	}
+
+	/**
+	 * Marks the scheduler as running. Lets a caller check its own stop flag and start the scheduler under the lock of
+	 * the scheduler, so that a concurrent {@link #stop()} is not lost. The caller then calls {@link #runLoop()}.
+	 */
+	// Synchronized by 'this'
+	void setRunning() {
+		if (running) {
+			throw new IllegalStateException("Already running.");
+		}
+		running = true;
+	}
+
+	/**
+	 * Reads the meters until {@link #stop()} is called or the thread is interrupted, see {@link #setRunning()}.
+	 */
+	void runLoop() {
+		try {
+			while (isRunning()) {
+				if (pollNext() == -1) {
+					synchronized (this) {
+						while (running && queue.isEmpty()) {
+							wait();
+						}
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			synchronized (this) {
+				running = false;
+			}
+		}
+	}
+
+	public synchronized void stop() {
+		running = false;
+		notifyAll();
+	}
+
+	public synchronized boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Returns the average number of successful data frames per second since the first meter was polled.
+	 *
+	 * @return the achieved frames per second.
+	 */
+	public synchronized double getFramesPerSecond() {
+		if (startTime == 0) {
+			return 0;
+		}
+		long elapsed = System.currentTimeMillis() - startTime;
+		if (elapsed <= 0) {
+			return 0;
+		}
+		return numFrames * 1000.0 / elapsed;
+	}
+
+	/**
+	 * Returns the age of the last successful reading of a meter.
+	 *
+	 * @param primaryAddress
+	 *            the primary address of the meter.
+	 * @return the time in ms since the meter was read successfully or -1 if the meter was never read successfully.
+	 */
+	public synchronized long getStaleness(int primaryAddress) {
+		Meter meter = getMeter(primaryAddress);
+		if (meter == null || meter.lastSuccess == 0) {
+			return -1;
+		}
+		return System.currentTimeMillis() - meter.lastSuccess;
+	}
+
+	/**
+	 * Returns the maximum staleness of all meters. Meters that were never read successfully are ignored.
+	 *
+	 * @return the maximum time in ms since a meter was read successfully.
+	 */
+	public synchronized long getMaxStaleness() {
+		long now = System.currentTimeMillis();
+		long max = 0;
+		for (Meter meter : meters) {
+			if (meter != null && meter.lastSuccess != 0 && now - meter.lastSuccess > max) {
+				max = now - meter.lastSuccess;
+			}
+		}
+		return max;
+	}
+
+	public synchronized long getNumberOfSuccesses(int primaryAddress) {
+		Meter meter = getMeter(primaryAddress);
+		return (meter == null) ? 0 : meter.numSuccesses;
+	}
+
+	public synchronized long getNumberOfFailures(int primaryAddress) {
+		Meter meter = getMeter(primaryAddress);
+		return (meter == null) ? 0 : meter.numFailures;
+	}
+
+	private Meter getMeter(int primaryAddress) {
+		if (primaryAddress < 0 || primaryAddress >= meters.length) {
+			return null;
+		}
+		return meters[primaryAddress];
+	}
+
+}
@@ -1,13 +1,12 @@
 package MBUS;
 
 import java.io.BufferedWriter;
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.TimeoutException;
 
@@ -32,6 +31,34 @@ public class MBusSap {
 	// 261 is the maximum size of a long frame
 	private final static int MAX_MESSAGE_SIZE = 261;
 
+	private final static byte[] EMPTY_DATA = new byte[0];
+
+	/**
+	 * Maximum number of telegrams requested in a single readout. Protects against meters that always signal that more
+	 * records follow.
+	 */
+	private final static int MAX_TELEGRAMS_PER_READOUT = 64;
+
+	/**
+	 * Baud rates that can be set with a SND_UD with CI field 0xb8 to 0xbf (EN 13757-3).
+	 */
+	private final static int[] SWITCHABLE_BAUD_RATES = { 300, 600, 1200, 2400, 4800, 9600, 19200, 38400 };
+
+	/**
+	 * Time in ms the master waits after the acknowledge of a baud rate switch before talking to the meter at the new
+	 * baud rate. The meter switches only after it has sent the acknowledge.
+	 */
+	private final static int BAUD_RATE_SWITCH_DELAY = 50;
+
+	/**
+	 * Minimum time in ms the line has to be idle before the remains of a corrupt frame are considered discarded. USB
+	 * serial converters deliver received bytes with a latency of up to 16 ms.
+	 */
+	private final static int MIN_DISCARD_IDLE_TIME = 20;
+
+	// receive buffers are shared by all service access points
+	private final static FrameBufferPool frameBufferPool = new FrameBufferPool(MAX_MESSAGE_SIZE, 8);
+
 	private final SerialTransceiver serialTransceiver;
 
 	private final byte[] outputBuffer = new byte[MAX_MESSAGE_SIZE];
@@ -40,10 +67,26 @@ public class MBusSap {
 
 	private final boolean[] frameCountBits;
 
+	// baud rate of every primary address, the baud rate the service access point was created with for all others
+	private final int defaultBaudRate;
+	private final int[] baudRates;
+
+	private final Ft12Framer framer = new Ft12Framer();
+
+	// reused for every received frame, only the RSP_UD payload is handed out to the caller
+	private final MBusMessage mBusMessage = new MBusMessage();
+
+	private byte[] inputBuffer = null;
+
 	private DataOutputStream os = null;
-	private DataInputStream is = null;
 
 	private int timeout = 300;
+	private ResponseTimeEstimator responseTimeEstimator = null;
+	private boolean lazyDecoding = false;
+
+	// latencies of the last received frame, measured from the end of the request
+	private int firstByteLatency;
+	private int lastByteLatency;
 	private SecondaryAddress secondaryAddress = null;
 
 	/**
@@ -61,6 +104,11 @@ public class MBusSap {
 		for (int i = 0; i < frameCountBits.length; i++) {
 			frameCountBits[i] = true;
 		}
+		defaultBaudRate = baudRate;
+		baudRates = new int[251];
+		for (int i = 0; i < baudRates.length; i++) {
+			baudRates[i] = baudRate;
+		}
 	}
 
 	/**
@@ -72,7 +120,9 @@ public class MBusSap {
 	public void open() throws IOException {
 		serialTransceiver.open();
 		os = serialTransceiver.getOutputStream();
-		is = serialTransceiver.getInputStream();
+		if (inputBuffer == null) {
+			inputBuffer = frameBufferPool.acquire();
+		}
 	}
 
 	/**
@@ -80,6 +130,8 @@ public class MBusSap {
 	 */
 	public void close() {
 		serialTransceiver.close();
+		frameBufferPool.release(inputBuffer);
+		inputBuffer = null;
 	}
 
 	/**
@@ -104,10 +156,230 @@ public class MBusSap {
 		return timeout;
 	}
 
+	/**
+	 * Sets an estimator that learns the response times of the meters. If set, requests to meters with primary
+	 * addresses from 0 to 250 use the timeout learned for the meter instead of the fixed timeout, and requests to meters
+	 * that are considered not responding fail immediately with a TimeoutException.
+	 * 
+	 * @param responseTimeEstimator
+	 *            the estimator or null to always use the fixed timeout.
+	 */
+	public void setResponseTimeEstimator(ResponseTimeEstimator responseTimeEstimator) {
+		this.responseTimeEstimator = responseTimeEstimator;
+	}
+
+	public ResponseTimeEstimator getResponseTimeEstimator() {
+		return responseTimeEstimator;
+	}
+
+	/**
+	 * Enables lazy decoding of the data records returned by {@link #read(int)}. If enabled only the record boundaries
+	 * are determined when a telegram is received and the fields of a data record are decoded on first access. Default
+	 * is false.
+	 * 
+	 * @param lazyDecoding
+	 *            true to decode data records lazily.
+	 */
+	public void setLazyDecoding(boolean lazyDecoding) {
+		this.lazyDecoding = lazyDecoding;
+	}
+
+	public boolean isLazyDecoding() {
+		return lazyDecoding;
+	}
+
+	/**
+	 * Returns the baud rate the service access point was created with. It is used for all meters whose baud rate was not
+	 * changed and for secondary addressing.
+	 * 
+	 * @return the baud rate.
+	 */
+	public int getBaudRate() {
+		return defaultBaudRate;
+	}
+
+	/**
+	 * Returns the baud rate used to communicate with the meter at the given primary address.
+	 * 
+	 * @param primaryAddress
+	 *            the primary address of the meter.
+	 * @return the baud rate.
+	 */
+	public int getBaudRate(int primaryAddress) {
+		if (primaryAddress < 0 || primaryAddress >= baudRates.length) {
+			return defaultBaudRate;
+		}
+		return baudRates[primaryAddress];
+	}
+
+	/**
+	 * Sets the baud rate used to communicate with the meter at the given primary address without sending anything to
+	 * the meter, e.g. to restore the result of {@link #negotiateBaudRate(int, int)} after a restart.
+	 * 
+	 * @param primaryAddress
+	 *            the primary address of the meter, 0 to 250.
+	 * @param baudRate
+	 *            the baud rate the meter is configured to.
+	 */
+	public void setBaudRate(int primaryAddress, int baudRate) {
+		if (primaryAddress < 0 || primaryAddress >= baudRates.length) {
+			throw new IllegalArgumentException("invalid primary address: " + primaryAddress);
+		}
+		if (baudRates[primaryAddress] != baudRate) {
+			baudRates[primaryAddress] = baudRate;
+			if (responseTimeEstimator != null) {
+				responseTimeEstimator.reset(primaryAddress);
+			}
+		}
+	}
+
+	/**
+	 * Switches the meter at the given primary address to a different baud rate. The switch is requested with a SND_UD
+	 * with CI field 0xb8 to 0xbf that the meter acknowledges at its current baud rate. Afterwards the link is reset at
+	 * the new baud rate to verify that the meter switched. If the meter does not answer at the new baud rate, it is
+	 * asked to switch back and the previous baud rate is kept.
+	 * 
+	 * @param primaryAddress
+	 *            the primary address of the meter, 0 to 250.
+	 * @param baudRate
+	 *            the new baud rate, one of 300, 600, 1200, 2400, 4800, 9600, 19200 or 38400.
+	 * @throws IOException
+	 *             if the meter did not acknowledge the switch or does not answer at the new baud rate.
+	 * @throws TimeoutException
+	 *             if the meter did not acknowledge the switch at all.
+	 */
+	public void changeBaudRate(int primaryAddress, int baudRate) throws IOException, TimeoutException {
+		if (primaryAddress < 0 || primaryAddress >= baudRates.length) {
+			throw new IllegalArgumentException("invalid primary address: " + primaryAddress);
+		}
+		int ci = getBaudRateCiField(baudRate);
+		if (ci == -1) {
+			throw new IllegalArgumentException("baud rate can not be set by the master: " + baudRate);
+		}
+
+		int oldBaudRate = baudRates[primaryAddress];
+		if (oldBaudRate == baudRate) {
+			return;
+		}
+
+		sendLongMessage(primaryAddress, 0x53, ci, 0, EMPTY_DATA);
+		MBusMessage mBusMessage = receiveMessage();
+		if (mBusMessage.getMessageType() != MessageType.SINGLE_CHARACTER) {
+			throw new IOException("unable to change baud rate");
+		}
+
+		setBaudRate(primaryAddress, baudRate);
+		sleep(BAUD_RATE_SWITCH_DELAY);
+
+		try {
+			linkReset(primaryAddress);
+			return;
+		} catch (TimeoutException e) {
+			// fall back to the previous baud rate
+		} catch (IOException e) {
+			// fall back to the previous baud rate
+		}
+
+		// the meter may have switched but the serial port or the converter can not cope with the new baud rate
+		try {
+			sendLongMessage(primaryAddress, 0x53, getBaudRateCiField(oldBaudRate), 0, EMPTY_DATA);
+			receiveMessage();
+		} catch (TimeoutException e) {
+			// the meter did not switch, nothing to undo
+		} catch (IOException e) {
+			// nothing more can be done, the meter falls back on its own if it does not receive valid frames
+		}
+		setBaudRate(primaryAddress, oldBaudRate);
+		sleep(BAUD_RATE_SWITCH_DELAY);
+		throw new IOException("Meter did not answer at " + baudRate + " baud, keeping " + oldBaudRate + " baud.");
+	}
+
+	/**
+	 * Switches the meter at the given primary address to the highest baud rate it supports. Starting with the given
+	 * maximum, every switchable baud rate above the current one is tried in descending order until the meter answers
+	 * at the new baud rate. Transferring a long RSP_UD at 9600 baud takes about a quarter of the time it takes at 2400
+	 * baud.
+	 * 
+	 * @param primaryAddress
+	 *            the primary address of the meter, 0 to 250.
+	 * @param maxBaudRate
+	 *            the highest baud rate to try, e.g. the highest baud rate supported by the level converter.
+	 * @return the baud rate the meter uses afterwards.
+	 * @throws IOException
+	 *             if the serial port failed.
+	 */
+	public int negotiateBaudRate(int primaryAddress, int maxBaudRate) throws IOException {
+		int currentBaudRate = getBaudRate(primaryAddress);
+		for (int i = SWITCHABLE_BAUD_RATES.length - 1; i >= 0; i--) {
+			int baudRate = SWITCHABLE_BAUD_RATES[i];
+			if (baudRate > maxBaudRate) {
+				continue;
+			}
+			if (baudRate <= currentBaudRate) {
+				break;
+			}
+			try {
+				changeBaudRate(primaryAddress, baudRate);
+				return baudRate;
+			} catch (TimeoutException e) {
+				// the meter did not acknowledge, try the next lower baud rate
+			} catch (IOException e) {
+				if (serialTransceiver.isClosed()) {
+					throw e;
+				}
+			}
+		}
+		return getBaudRate(primaryAddress);
+	}
+
+	private static int getBaudRateCiField(int baudRate) {
+		for (int i = 0; i < SWITCHABLE_BAUD_RATES.length; i++) {
+			if (SWITCHABLE_BAUD_RATES[i] == baudRate) {
+				return 0xb8 + i;
+			}
+		}
+		return -1;
+	}
+
+	private static void sleep(int millis) throws IOException {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the baud rate switch.");
+		}
+	}
+
+	/**
+	 * Sets the serial port to the baud rate of the given address before a frame is sent to it.
+	 */
+	private void selectBaudRate(int slaveAddr) throws IOException {
+		int baudRate = getBaudRate(slaveAddr);
+		if (serialTransceiver.getBaudRate() != baudRate) {
+			serialTransceiver.setBaudRate(baudRate);
+		}
+	}
+
+	/**
+	 * Returns the frame count bit (FCB) that will be used for the next data request to the given address.
+	 * 
+	 * @param primaryAddress
+	 *            the primary address of the meter.
+	 * @return the next frame count bit.
+	 */
+	public boolean getFrameCountBit(int primaryAddress) {
+		return frameCountBits[primaryAddress];
+	}
+
 	/**
 	 * Reads a meter using primary addressing. Sends a data request (REQ_UD2) to the remote device and returns the
 	 * variable data structure from the received RSP_UD frame.
 	 * 
+	 * The returned variable data structure is already decoded. It holds its own copy of the received bytes, so it stays
+	 * valid after the next transaction and after the service access point is closed. The copy and the variable data
+	 * structure (and in eager mode its data records) are allocated on every call; a poll loop that must not allocate
+	 * uses {@link #read(int, RecordCursor)} instead.
+	 * 
 	 * @param primaryAddress
 	 *            the primary address of the meter to read. For secondary address use 0xfd.
 	 * @return the variable data structure from the received RSP_UD frame
@@ -119,20 +391,81 @@ public class MBusSap {
 	 */
 	public VariableDataStructure read(int primaryAddress) throws IOException, TimeoutException {
 
+		requestUserData(primaryAddress);
+
+		// the receive buffer is reused by the next transaction and returned to the shared pool on close
+		int offset = mBusMessage.getVariableDataOffset();
+		int length = mBusMessage.getVariableDataLength();
+		VariableDataStructure variableDataStructure;
+		try {
+			variableDataStructure = new VariableDataStructure(Arrays.copyOfRange(inputBuffer, offset, offset + length),
+					0, length, null, null);
+			if (lazyDecoding) {
+				variableDataStructure.decodeLazily();
+			}
+			else {
+				variableDataStructure.decode();
+			}
+		} catch (DecodingException e) {
+			throw new IOException("Error decoding incoming RSP_UD message.", e);
+		}
+
+		return variableDataStructure;
+
+	}
+
+	/**
+	 * Reads a meter using primary addressing like {@link #read(int)}, but positions the given cursor before the first
+	 * data record of the response instead of returning a copy. Neither the frame nor its data records are copied, so a
+	 * poll loop that reuses one cursor does not allocate per transaction.
+	 * 
+	 * The cursor refers to the receive buffer of this service access point. It is only valid until the next transaction
+	 * and must not be used after the service access point was closed. Use {@link #read(int)} to keep a response.
+	 * 
+	 * @param primaryAddress
+	 *            the primary address of the meter to read. For secondary address use 0xfd.
+	 * @param cursor
+	 *            the cursor to reset to the response.
+	 * @throws IOException
+	 *             if any kind of error (including timeout) occurs while trying to read the remote device, or if the
+	 *             data records of the response can not be read with a cursor (e.g. because they are encrypted).
+	 * @throws TimeoutException
+	 *             if no response at all (not even a single byte) was received from the meter within the timeout span.
+	 */
+	public void read(int primaryAddress, RecordCursor cursor) throws IOException, TimeoutException {
+
+		requestUserData(primaryAddress);
+
+		try {
+			cursor.reset(inputBuffer, mBusMessage.getVariableDataOffset(), mBusMessage.getVariableDataLength());
+		} catch (DecodingException e) {
+			throw new IOException("Error decoding incoming RSP_UD message.", e);
+		}
+	}
+
+	/**
+	 * Sends a data request (REQ_UD2) and receives the RSP_UD frame into {@link #mBusMessage}.
+	 */
+	private void requestUserData(int primaryAddress) throws IOException, TimeoutException {
+
 		if (serialTransceiver.isClosed() == true) {
 			throw new IllegalStateException("Serial port is not open.");
 		}
 
+		checkResponding(primaryAddress);
+
 		if (frameCountBits[primaryAddress]) {
 			sendShortMessage(primaryAddress, 0x7b);
-			frameCountBits[primaryAddress] = false;
 		}
 		else {
 			sendShortMessage(primaryAddress, 0x5b);
-			frameCountBits[primaryAddress] = true;
 		}
 
-		MBusMessage mBusMessage = receiveMessage();
+		MBusMessage mBusMessage = receiveResponse(primaryAddress);
+
+		// the FCB is only toggled after a frame was received so that a failed request is repeated with the same FCB
+		// (EN 13757-2). The slave then resends its last response instead of the next one.
+		frameCountBits[primaryAddress] = !frameCountBits[primaryAddress];
 
 		if (mBusMessage.getMessageType() != MessageType.RSP_UD) {
 			throw new IOException(
@@ -143,15 +476,63 @@ public class MBusSap {
 //			throw new IOException("Received RSP_UD message with unexpected address field. Expected " + primaryAddress
 //					+ " but received " + mBusMessage.getAddressField());
 		}
+	}
 
-		try {
-			mBusMessage.getVariableDataResponse().decode();
-		} catch (DecodingException e) {
-			throw new IOException("Error decoding incoming RSP_UD message.", e);
-		}
-
-		return mBusMessage.getVariableDataResponse();
+	/**
+	 * Receives the data records of a readout that spans several telegrams, see
+	 * {@link MBusSap#readAll(int, ReadoutListener)}.
+	 */
+	public interface ReadoutListener {
+		/**
+		 * Called for every telegram of the readout before its data records are passed to
+		 * {@link #newDataRecord(DataRecord)}.
+		 * 
+		 * @param telegramIndex
+		 *            the number of the telegram within the readout starting with 0.
+		 * @param variableDataStructure
+		 *            the decoded telegram.
+		 */
+		public void newTelegram(int telegramIndex, VariableDataStructure variableDataStructure);
+
+		/**
+		 * Called for every data record in the order they were received.
+		 */
+		public void newDataRecord(DataRecord dataRecord);
+	}
 
+	/**
+	 * Reads all telegrams of a meter using primary addressing. Meters with more data records than fit into a single
+	 * RSP_UD signal with the DIF 0x1f that more records follow. This method keeps sending REQ_UD2 with toggled frame
+	 * count bit until a telegram without this DIF is received. The data records of every telegram are passed to the
+	 * listener as soon as the telegram is decoded so that the whole readout never has to be buffered.
+	 * 
+	 * @param primaryAddress
+	 *            the primary address of the meter to read. For secondary address use 0xfd.
+	 * @param listener
+	 *            the listener receiving the data records.
+	 * @return the number of telegrams received.
+	 * @throws IOException
+	 *             if any kind of error occurs while reading a telegram. The listener may already have received the
+	 *             records of the previous telegrams.
+	 * @throws TimeoutException
+	 *             if the meter did not answer a request within the timeout span.
+	 */
+	public int readAll(int primaryAddress, ReadoutListener listener) throws IOException, TimeoutException {
+		int telegramIndex = 0;
+		VariableDataStructure variableDataStructure;
+		do {
+			if (telegramIndex == MAX_TELEGRAMS_PER_READOUT) {
+				throw new IOException("Meter still signals more records after " + MAX_TELEGRAMS_PER_READOUT
+						+ " telegrams.");
+			}
+			variableDataStructure = read(primaryAddress);
+			listener.newTelegram(telegramIndex, variableDataStructure);
+			for (DataRecord dataRecord : variableDataStructure.getDataRecords()) {
+				listener.newDataRecord(dataRecord);
+			}
+			telegramIndex++;
+		} while (variableDataStructure.moreRecordsFollow());
+		return telegramIndex;
 	}
 
 	/**
@@ -173,7 +554,7 @@ public class MBusSap {
 
 		boolean ret;
 		if (data == null) {
-			data = new byte[] {};
+			data = EMPTY_DATA;
 		}
 		ret = sendLongMessage(primaryAddress, 0x73, 0x51, data.length, data);
 		MBusMessage mBusMessage = receiveMessage();
@@ -184,6 +565,25 @@ public class MBusSap {
 		return ret;
 	}
 
+	/**
+	 * The possible outcomes of sending a selection with a secondary address wildcard.
+	 */
+	public enum SelectionResponse {
+		/**
+		 * No meter answered.
+		 */
+		NONE,
+		/**
+		 * Exactly one meter answered with an acknowledge (0xE5). This meter is now selected.
+		 */
+		SINGLE,
+		/**
+		 * Several meters answered at the same time so that the response was garbled, or a further acknowledge followed
+		 * the first one.
+		 */
+		COLLISION
+	}
+
 	/**
 	 * [alpha]<br>
 	 * Scans if any device response to the given wildcard.
@@ -193,33 +593,57 @@ public class MBusSap {
 	 * @return true ifany device responsed else false
 	 */
 	public boolean scanSelection(SecondaryAddress wildcard) {
+		try {
+			return probeSelection(wildcard) != SelectionResponse.NONE;
+		} catch (IOException e) {
+			return false;
+		}
+	}
 
-		ByteBuffer bf = ByteBuffer.allocate(8);
-		byte[] ba = new byte[8];
-
-		bf.order(ByteOrder.LITTLE_ENDIAN);
-
-		bf.put(wildcard.asByteArray());
+	/**
+	 * Sends a selection with the given secondary address wildcard and distinguishes whether no meter, a single meter or
+	 * several meters answered. Used by {@link SecondaryAddressScanner} to search the secondary address space.
+	 * 
+	 * Pending input is discarded before the selection is sent. After an acknowledge the line is watched for the
+	 * response window of a second meter, so a single answer takes 330 bit times longer than the acknowledge itself.
+	 * 
+	 * @param wildcard
+	 *            secondary address wildcard e.g. f1ffffffffffffff
+	 * @return the kind of response received
+	 * @throws IOException
+	 *             if the selection could not be sent.
+	 */
+	public SelectionResponse probeSelection(SecondaryAddress wildcard) throws IOException {
+		// a late acknowledge of the previous probe must not be counted for this one
+		discardInput();
 
-		bf.position(0);
-		bf.get(ba, 0, 8);
+		if (!sendLongMessage(0xfd, 0x53, 0x52, 8, wildcard.asByteArray())) {
+			throw new IOException("Unable to send selection.");
+		}
 
-		boolean ret = false;
+		MBusMessage mBusMessage;
 		try {
-			if (sendLongMessage(0xfd, 0x53, 0x52, 8, ba)) {
+			mBusMessage = receiveMessage();
+		} catch (TimeoutException e) {
+			return SelectionResponse.NONE;
+		} catch (IOException e) {
+			return SelectionResponse.COLLISION;
+		}
 
-				MBusMessage mBusMessage = receiveMessage();
+		// noise before the acknowledge is most likely the garbled answer of another meter
+		if (mBusMessage.getMessageType() != MessageType.SINGLE_CHARACTER || framer.getNumBytesDiscarded() != 0) {
+			discardInput();
+			return SelectionResponse.COLLISION;
+		}
 
-				if (mBusMessage.getMessageType() == MessageType.SINGLE_CHARACTER) {
-					ret = true;
-				}
-			}
-		} catch (IOException e) {
-			ret = true;
-		} catch (TimeoutException e) {
-			ret = false;
+		// meters may answer up to 330 bit times apart without garbling each other, a second acknowledge arriving
+		// within that window is a collision as well
+		int window = (330 * 1000) / serialTransceiver.getBaudRate() + MIN_DISCARD_IDLE_TIME;
+		if (serialTransceiver.read(inputBuffer, 0, inputBuffer.length, window) > 0) {
+			discardInput();
+			return SelectionResponse.COLLISION;
 		}
-		return ret;
+		return SelectionResponse.SINGLE;
 	}
 
 	/**
@@ -270,7 +694,7 @@ public class MBusSap {
 	}
 
 	public void resetReadout(int primaryAddress) throws IOException, TimeoutException {
-		sendLongMessage(primaryAddress, 0x53, 0x50, 0, new byte[] {});
+		sendLongMessage(primaryAddress, 0x53, 0x50, 0, EMPTY_DATA);
 		MBusMessage mBusMessage = receiveMessage();
 
 		if (mBusMessage.getMessageType() != MessageType.SINGLE_CHARACTER) {
@@ -289,8 +713,9 @@ public class MBusSap {
 	 *             if the slave does not answer with an 0xe5 message within the configured timeout span.
 	 */
 	public void linkReset(int primaryAddress) throws IOException, TimeoutException {
+		checkResponding(primaryAddress);
 		sendShortMessage(primaryAddress, 0x40);
-		MBusMessage mBusMessage = receiveMessage();
+		MBusMessage mBusMessage = receiveResponse(primaryAddress);
 
 		if (mBusMessage.getMessageType() != MessageType.SINGLE_CHARACTER) {
 			throw new IOException("unable to reset link");
@@ -300,22 +725,12 @@ public class MBusSap {
 	}
 
 	private void componentSelection(boolean deselect) throws IOException, TimeoutException {
-		ByteBuffer bf = ByteBuffer.allocate(8);
-		byte[] ba = new byte[8];
-
-		bf.order(ByteOrder.LITTLE_ENDIAN);
-
-		bf.put(secondaryAddress.asByteArray());
-
-		bf.position(0);
-		bf.get(ba, 0, 8);
-
 		// send select/deselect
 		if (deselect) {
-			sendLongMessage(0xfd, 0x53, 0x56, 8, ba);
+			sendLongMessage(0xfd, 0x53, 0x56, 8, secondaryAddress.asByteArray());
 		}
 		else {
-			sendLongMessage(0xfd, 0x53, 0x52, 8, ba);
+			sendLongMessage(0xfd, 0x53, 0x52, 8, secondaryAddress.asByteArray());
 		}
 
 		MBusMessage mBusMessage = receiveMessage();
@@ -326,6 +741,7 @@ public class MBusSap {
 	}
 
 	private void sendShortMessage(int slaveAddr, int cmd) throws IOException {
+		selectBaudRate(slaveAddr);
 		outputBuffer[0] = 0x10;
 		outputBuffer[1] = (byte) (cmd);
 		outputBuffer[2] = (byte) (slaveAddr);
@@ -335,7 +751,6 @@ public class MBusSap {
 	}
 
 	private boolean sendLongMessage(int slaveAddr, int controlField, int ci, int length, byte[] data) {
-		int i, j;
 		int checksum = 0;
 
 		outputBuffer[0] = 0x68;
@@ -346,20 +761,19 @@ public class MBusSap {
 		outputBuffer[5] = (byte) slaveAddr;
 		outputBuffer[6] = (byte) ci;
 
-		for (i = 0; i < length; i++) {
-			outputBuffer[7 + i] = data[i];
-		}
+		System.arraycopy(data, 0, outputBuffer, 7, length);
 
-		for (j = 4; j < (i + 7); j++) {
+		for (int j = 4; j < (length + 7); j++) {
 			checksum += outputBuffer[j];
 		}
 
-		outputBuffer[i + 7] = (byte) (checksum & 0xff);
+		outputBuffer[length + 7] = (byte) (checksum & 0xff);
 
-		outputBuffer[i + 8] = 0x16;
+		outputBuffer[length + 8] = 0x16;
 
 		try {
-			os.write(outputBuffer, 0, i + 9);
+			selectBaudRate(slaveAddr);
+			os.write(outputBuffer, 0, length + 9);
 		} catch (IOException e) {
 			return false;
 		}
@@ -367,59 +781,108 @@ public class MBusSap {
 		return true;
 	}
 
-	private MBusMessage receiveMessage() throws IOException, TimeoutException {
+	private boolean isLearnedAddress(int primaryAddress) {
+		return responseTimeEstimator != null && primaryAddress <= 250;
+	}
 
-		int timePassedTotal = 0;
-		int numBytesReadTotal = 0;
-		int messageLength = -1;
+	private void checkResponding(int primaryAddress) throws TimeoutException {
+		if (isLearnedAddress(primaryAddress) && !responseTimeEstimator.shouldAttempt(primaryAddress)) {
+			throw new TimeoutException("Meter with primary address " + primaryAddress + " is not responding.");
+		}
+	}
 
-		byte[] inputBuffer = new byte[MAX_MESSAGE_SIZE];
+	/**
+	 * Receives the response of the meter with the given primary address using the timeout learned for the meter.
+	 */
+	private MBusMessage receiveResponse(int primaryAddress) throws IOException, TimeoutException {
+		if (!isLearnedAddress(primaryAddress)) {
+			return receiveMessage();
+		}
 
-		while (true) {
-			if (is.available() > 0) {
+		MBusMessage mBusMessage;
+		try {
+			mBusMessage = receiveMessage(responseTimeEstimator.getTimeout(primaryAddress, getBaudRate(primaryAddress)));
+		} catch (TimeoutException e) {
+			responseTimeEstimator.addTimeout(primaryAddress);
+			// the learned timeout is tighter than the fixed one, a meter answering just after it must not feed its
+			// response to the next request
+			discardInput();
+			throw e;
+		}
+		responseTimeEstimator.addResponse(primaryAddress, firstByteLatency, lastByteLatency,
+				framer.getFrameLength());
+		return mBusMessage;
+	}
 
-				int numBytesRead = is.read(inputBuffer, numBytesReadTotal, MAX_MESSAGE_SIZE - numBytesReadTotal);
+	/**
+	 * Reads and discards bytes until the line has been idle for a few character times. Used after a transaction was
+	 * aborted so that a late response is not taken as the response to the next request.
+	 */
+	void discardInput() throws IOException {
+		if (inputBuffer == null) {
+			throw new IllegalStateException("Serial port is not open.");
+		}
+		int idleTime = Math.max(MIN_DISCARD_IDLE_TIME, (3 * 11 * 1000) / serialTransceiver.getBaudRate() + 1);
+		long deadline = System.currentTimeMillis() + timeout;
+		while (System.currentTimeMillis() < deadline) {
+			if (serialTransceiver.read(inputBuffer, 0, inputBuffer.length, idleTime) == 0) {
+				return;
+			}
+		}
+	}
 
-				numBytesReadTotal += numBytesRead;
+	private MBusMessage receiveMessage() throws IOException, TimeoutException {
+		return receiveMessage(timeout);
+	}
 
-				if (messageLength == -1) {
+	private MBusMessage receiveMessage(int timeout) throws IOException, TimeoutException {
 
-					if ((inputBuffer[0] & 0xff) == 0xe5) {
-						messageLength = 1;
-					}
-					else if ((inputBuffer[0] & 0xff) == 0x68 && numBytesReadTotal > 1) {
-						messageLength = (inputBuffer[1] & 0xff) + 6;
-					}
-				}
+		if (inputBuffer == null) {
+			throw new IllegalStateException("Serial port is not open.");
+		}
+		framer.reset(inputBuffer);
 
-				if (numBytesReadTotal == messageLength) {
-					break;
-				}
-			}
+		long startTime = System.currentTimeMillis();
+		long deadline = startTime + timeout;
+		firstByteLatency = -1;
+
+		while (true) {
+			int numBytesWanted = framer.bytesWanted();
 
-			if (timePassedTotal > timeout) {
-				if (numBytesReadTotal == 0) {
+			long timeLeft = deadline - System.currentTimeMillis();
+			if (timeLeft <= 0) {
+				if (framer.getNumBytesReceived() == 0 && framer.getNumBytesDiscarded() == 0) {
 					throw new TimeoutException();
 				}
-				if (numBytesReadTotal != messageLength) {
-					throw new IOException("Incomplete response message received.");
+				if (framer.getNumBytesReceived() == 0) {
+					throw new IOException("No valid frame start received.");
 				}
+				throw new IOException("Incomplete response message received.");
 			}
-			else {
 
-				try {
-					Thread.sleep(100);
-				} catch (InterruptedException e) {
-				}
+			int numBytesRead = serialTransceiver.read(inputBuffer, framer.getWritePosition(), numBytesWanted,
+					(int) timeLeft);
 
-				timePassedTotal += 100;
+			if (numBytesRead > 0) {
+				if (firstByteLatency == -1) {
+					firstByteLatency = (int) (System.currentTimeMillis() - startTime);
+				}
+				if (framer.update(numBytesRead)) {
+					break;
+				}
 			}
+		}
+
+		lastByteLatency = (int) (System.currentTimeMillis() - startTime);
 
+		if (framer.isCorrupt()) {
+			// the rest of a damaged frame may still be on its way, it must not be mistaken for the next response
+			discardInput();
+			throw new IOException("Corrupt frame received: " + framer.getError());
 		}
 
-		MBusMessage mBusMessage;
 		try {
-			mBusMessage = new MBusMessage(inputBuffer, messageLength);
+			mBusMessage.decode(inputBuffer, framer.getFrameLength());
 		} catch (DecodingException e) {
 			throw new IOException("Error decoding incoming M-Bus message.");
 		}
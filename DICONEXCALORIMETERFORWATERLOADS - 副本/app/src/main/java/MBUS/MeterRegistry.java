@@ -0,0 +1,181 @@
+package MBUS;
+
+/**
+ * Keeps the state of every known meter, indexed by its packed secondary address (see {@link SecondaryAddress#asLong()}).
+ * Looking up a meter on the receive path neither creates a SecondaryAddress nor a String, so the registry scales to
+ * tens of thousands of meters.
+ *
+ * The registry itself is thread-safe. The state of a single meter is not, it should be updated by the thread receiving
+ * the telegrams of the meter only, e.g. a lane of a {@link TelegramPipeline}.
+ */
+public class MeterRegistry {
+
+	/**
+	 * The state of a single meter.
+	 */
+	public static class MeterState {
+
+		private final long secondaryAddress;
+
+		private byte[] aesKey;
+		private TelegramLayout layout;
+		private boolean frameCountBit = true;
+		private VariableDataStructure lastReading;
+		private long lastReadingTime = 0;
+		private long numReadings = 0;
+
+		MeterState(long secondaryAddress) {
+			this.secondaryAddress = secondaryAddress;
+		}
+
+		/**
+		 * Returns the packed secondary address of the meter.
+		 */
+		public long getSecondaryAddress() {
+			return secondaryAddress;
+		}
+
+		public byte[] getAesKey() {
+			return aesKey;
+		}
+
+		/**
+		 * Sets the AES key of the meter. To decrypt telegrams the key has to be registered in an
+		 * {@link AesKeyRegistry}, see {@link MeterRegistry#setAesKey(long, byte[], AesKeyRegistry)}.
+		 */
+		public void setAesKey(byte[] aesKey) {
+			this.aesKey = aesKey;
+		}
+
+		/**
+		 * Returns the layout of the telegrams of the meter or null if it was not learned yet.
+		 */
+		public TelegramLayout getLayout() {
+			return layout;
+		}
+
+		public void setLayout(TelegramLayout layout) {
+			this.layout = layout;
+		}
+
+		/**
+		 * Returns the frame count bit to use in the next request to the meter.
+		 */
+		public boolean getFrameCountBit() {
+			return frameCountBit;
+		}
+
+		public void setFrameCountBit(boolean frameCountBit) {
+			this.frameCountBit = frameCountBit;
+		}
+
+		/**
+		 * Returns the last telegram received from the meter or null if none was received yet.
+		 */
+		public VariableDataStructure getLastReading() {
+			return lastReading;
+		}
+
+		/**
+		 * Returns the time the last telegram was received in ms since 1970, 0 if none was received yet.
+		 */
+		public long getLastReadingTime() {
+			return lastReadingTime;
+		}
+
+		public long getNumberOfReadings() {
+			return numReadings;
+		}
+
+		/**
+		 * Records a telegram received from the meter.
+		 */
+		public void setLastReading(VariableDataStructure lastReading, long timestamp) {
+			this.lastReading = lastReading;
+			lastReadingTime = timestamp;
+			numReadings++;
+		}
+	}
+
+	// Synchronized by 'this'
+	private final LongMap<MeterState> meters;
+
+	public MeterRegistry() {
+		meters = new LongMap<MeterState>();
+	}
+
+	/**
+	 * Creates a registry that holds the given number of meters without growing.
+	 */
+	public MeterRegistry(int expectedSize) {
+		meters = new LongMap<MeterState>(expectedSize);
+	}
+
+	/**
+	 * Returns the state of a meter.
+	 *
+	 * @param secondaryAddress
+	 *            the packed secondary address of the meter.
+	 * @return the state or null if the meter is not known.
+	 */
+	public synchronized MeterState get(long secondaryAddress) {
+		return meters.get(secondaryAddress);
+	}
+
+	/**
+	 * Returns the state of a meter, adding the meter if it is not known yet.
+	 *
+	 * @param secondaryAddress
+	 *            the packed secondary address of the meter.
+	 * @return the state of the meter.
+	 */
+	public synchronized MeterState getOrCreate(long secondaryAddress) {
+		MeterState meterState = meters.get(secondaryAddress);
+		if (meterState == null) {
+			meterState = new MeterState(secondaryAddress);
+			meters.put(secondaryAddress, meterState);
+		}
+		return meterState;
+	}
+
+	public MeterState getOrCreate(SecondaryAddress secondaryAddress) {
+		return getOrCreate(secondaryAddress.asLong());
+	}
+
+	/**
+	 * Sets the AES key of a meter and registers it in the given key registry.
+	 */
+	public void setAesKey(long secondaryAddress, byte[] aesKey, AesKeyRegistry keyRegistry) {
+		keyRegistry.put(secondaryAddress, aesKey);
+		getOrCreate(secondaryAddress).setAesKey(aesKey);
+	}
+
+	/**
+	 * Removes a meter.
+	 *
+	 * @return the state of the removed meter or null if the meter was not known.
+	 */
+	public synchronized MeterState remove(long secondaryAddress) {
+		return meters.remove(secondaryAddress);
+	}
+
+	public synchronized int size() {
+		return meters.size();
+	}
+
+	/**
+	 * Returns the states of all meters.
+	 */
+	public synchronized MeterState[] getMeterStates() {
+		MeterState[] meterStates = new MeterState[meters.size()];
+		int n = 0;
+		for (int i = 0; i < meters.capacity(); i++) {
+			MeterState meterState = meters.valueAt(i);
+			if (meterState != null) {
+				meterStates[n++] = meterState;
+			}
+		}
+		return meterStates;
+	}
+
+}
@@ -0,0 +1,314 @@
+package MBUS;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads a stream written by {@link ReadingEncoder}. Every reading is restored to the variable data structure it was
+ * encoded from (without the checksum and stop byte, which are set to 0), so it can be decoded with
+ * {@link VariableDataStructure#decode()}, a {@link RecordCursor} or a {@link TelegramLayoutCache}.
+ *
+ * Usage:
+ *
+ * <pre>
+ * ReadingDecoder decoder = new ReadingDecoder(in);
+ * while (decoder.next()) {
+ * 	cursor.reset(decoder.getVariableDataStructure());
+ * 	...
+ * }
+ * </pre>
+ *
+ * To avoid allocations the variable data structure of a reading refers to a buffer that is reused for the next
+ * reading. A decoder is not thread-safe.
+ */
+public class ReadingDecoder {
+
+	private final static int BUFFER_SIZE = 8192;
+
+	private static class Layout {
+		final byte[][] structures;
+		final int[] dataFields;
+
+		Layout(byte[][] structures, int[] dataFields) {
+			this.structures = structures;
+			this.dataFields = dataFields;
+		}
+	}
+
+	private final InputStream in;
+	private final byte[] input = new byte[BUFFER_SIZE];
+	private int inputPosition = 0;
+	private int inputLimit = 0;
+
+	private final List<Layout> layouts = new ArrayList<Layout>();
+
+	private byte[] reading = new byte[256];
+	private int readingLength = 0;
+	private long timestamp = 0;
+	private int layoutId = -1;
+	private VariableDataStructure variableDataStructure;
+
+	/**
+	 * Creates a decoder and reads the stream header.
+	 *
+	 * @param in
+	 *            the stream to read from. Buffered by the decoder.
+	 * @throws IOException
+	 *             if the header could not be read or the stream was not written by a {@link ReadingEncoder}.
+	 */
+	public ReadingDecoder(InputStream in) throws IOException {
+		this.in = in;
+		readStreamHeader(0);
+	}
+
+	/**
+	 * Reads the next reading.
+	 *
+	 * @return true if a reading was read, false at the end of the stream.
+	 * @throws IOException
+	 *             if reading from the stream failed or the stream is corrupt.
+	 */
+	public boolean next() throws IOException {
+		variableDataStructure = null;
+		while (true) {
+			if (inputPosition == inputLimit && !fill()) {
+				return false;
+			}
+			int tag = (int) readVarint();
+			if (tag == ReadingEncoder.TAG_LAYOUT) {
+				readLayout();
+			}
+			else if (tag == ReadingEncoder.TAG_READING) {
+				readReading();
+				return true;
+			}
+			else if (tag == ReadingEncoder.TAG_STREAM_HEADER) {
+				// the next of several concatenated streams
+				readStreamHeader(1);
+				layouts.clear();
+				timestamp = 0;
+			}
+			else {
+				throw new IOException("Corrupt reading stream, unknown tag: " + tag);
+			}
+		}
+	}
+
+	/**
+	 * Returns the variable data structure of the current reading. It is only valid until {@link #next()} is called
+	 * again.
+	 */
+	public VariableDataStructure getVariableDataStructure() {
+		if (variableDataStructure == null && layoutId != -1) {
+			try {
+				variableDataStructure = new VariableDataStructure(reading, 0, readingLength, null, null);
+			} catch (DecodingException e) {
+				// not thrown by the constructor
+				throw new IllegalStateException(e);
+			}
+		}
+		return variableDataStructure;
+	}
+
+	/**
+	 * Returns the time the current reading was received in ms since 1970.
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * Returns the ID of the layout of the current reading. Readings with the same layout ID have the same data records.
+	 */
+	public int getLayoutId() {
+		return layoutId;
+	}
+
+	public int getNumberOfLayouts() {
+		return layouts.size();
+	}
+
+	/**
+	 * Reads a stream header, skipping the given number of magic bytes that were already read.
+	 */
+	private void readStreamHeader(int numMagicBytesRead) throws IOException {
+		for (int i = numMagicBytesRead; i < ReadingEncoder.MAGIC.length; i++) {
+			if (readByte() != (ReadingEncoder.MAGIC[i] & 0xff)) {
+				throw new IOException("Not a reading stream.");
+			}
+		}
+		int version = readByte();
+		if (version != ReadingEncoder.VERSION) {
+			throw new IOException("Unsupported reading stream version: " + version);
+		}
+	}
+
+	private void readLayout() throws IOException {
+		int id = (int) readVarint();
+		if (id != layouts.size()) {
+			throw new IOException("Corrupt reading stream, unexpected layout ID: " + id);
+		}
+		int numRecords = (int) readVarint();
+		byte[][] structures = new byte[numRecords][];
+		int[] dataFields = new int[numRecords];
+		for (int r = 0; r < numRecords; r++) {
+			byte[] structure = new byte[(int) readVarint()];
+			readBytes(structure, 0, structure.length);
+			int i = 0;
+			while (i < structure.length && structure[i] == 0x2f) {
+				i++;
+			}
+			if (i == structure.length) {
+				throw new IOException("Corrupt reading stream, record without DIF.");
+			}
+			structures[r] = structure;
+			dataFields[r] = structure[i] & 0x0f;
+		}
+		layouts.add(new Layout(structures, dataFields));
+	}
+
+	private void readReading() throws IOException {
+		int id = (int) readVarint();
+		if (id < 0 || id >= layouts.size()) {
+			throw new IOException("Corrupt reading stream, unknown layout ID: " + id);
+		}
+		Layout layout = layouts.get(id);
+		timestamp += unzigzag(readVarint());
+
+		readingLength = 0;
+		int ciField = readByte();
+		int headerLength;
+		try {
+			headerLength = ReadingEncoder.getHeaderLength(ciField);
+		} catch (DecodingException e) {
+			throw new IOException("Corrupt reading stream, invalid CI field: " + ciField);
+		}
+		ensureCapacity(headerLength);
+		reading[readingLength++] = (byte) ciField;
+		readBytes(reading, readingLength, headerLength - 1);
+		readingLength += headerLength - 1;
+
+		for (int r = 0; r < layout.structures.length; r++) {
+			byte[] structure = layout.structures[r];
+			ensureCapacity(structure.length + 8);
+			System.arraycopy(structure, 0, reading, readingLength, structure.length);
+			readingLength += structure.length;
+
+			int dataField = layout.dataFields[r];
+			switch (dataField) {
+			case 0x01:
+			case 0x02:
+			case 0x03:
+			case 0x04:
+			case 0x06:
+			case 0x07:
+				int dataLength = (dataField == 0x06) ? 6 : (dataField == 0x07) ? 8 : dataField;
+				long value = unzigzag(readVarint());
+				for (int i = 0; i < dataLength; i++) {
+					reading[readingLength++] = (byte) value;
+					value >>= 8;
+				}
+				break;
+			case 0x0d:
+				int variableLength = (int) readVarint();
+				ensureCapacity(variableLength);
+				readBytes(reading, readingLength, variableLength);
+				readingLength += variableLength;
+				break;
+			default:
+				int rawLength = getRawLength(dataField);
+				readBytes(reading, readingLength, rawLength);
+				readingLength += rawLength;
+				break;
+			}
+		}
+
+		int trailerLength = (int) readVarint();
+		ensureCapacity(trailerLength + 2);
+		readBytes(reading, readingLength, trailerLength);
+		readingLength += trailerLength;
+
+		// checksum and stop byte
+		reading[readingLength++] = 0;
+		reading[readingLength++] = 0;
+
+		layoutId = id;
+	}
+
+	private static int getRawLength(int dataField) throws IOException {
+		switch (dataField) {
+		case 0x00:
+		case 0x08:
+			return 0;
+		case 0x05:
+			return 4;
+		case 0x09:
+		case 0x0a:
+		case 0x0b:
+		case 0x0c:
+			return dataField - 0x08;
+		case 0x0e:
+			return 6;
+		default:
+			throw new IOException("Corrupt reading stream, invalid data field: " + dataField);
+		}
+	}
+
+	private static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private void ensureCapacity(int n) {
+		if (readingLength + n > reading.length) {
+			byte[] newReading = new byte[Math.max(reading.length * 2, readingLength + n)];
+			System.arraycopy(reading, 0, newReading, 0, readingLength);
+			reading = newReading;
+		}
+	}
+
+	private long readVarint() throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = readByte();
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Corrupt reading stream, varint too long.");
+	}
+
+	private int readByte() throws IOException {
+		if (inputPosition == inputLimit && !fill()) {
+			throw new EOFException("Unexpected end of reading stream.");
+		}
+		return input[inputPosition++] & 0xff;
+	}
+
+	private void readBytes(byte[] destination, int offset, int length) throws IOException {
+		while (length > 0) {
+			if (inputPosition == inputLimit && !fill()) {
+				throw new EOFException("Unexpected end of reading stream.");
+			}
+			int n = Math.min(length, inputLimit - inputPosition);
+			System.arraycopy(input, inputPosition, destination, offset, n);
+			inputPosition += n;
+			offset += n;
+			length -= n;
+		}
+	}
+
+	private boolean fill() throws IOException {
+		int n = in.read(input, 0, input.length);
+		if (n <= 0) {
+			return false;
+		}
+		inputPosition = 0;
+		inputLimit = n;
+		return true;
+	}
+
+}
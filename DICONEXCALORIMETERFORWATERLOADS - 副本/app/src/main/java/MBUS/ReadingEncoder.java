@@ -0,0 +1,324 @@
+package MBUS;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes variable data structures to a stream in a compact binary format. Meters send the same DIBs and VIBs in every
+ * telegram, so the structure of a telegram (all bytes that are not data) is written only once as a layout and
+ * referenced by its ID afterwards. A reading then consists of a few varints, the header bytes and the data of the
+ * records: integers as zigzag varints, all other data as raw bytes. Use {@link ReadingDecoder} to read the stream.
+ *
+ * Format:
+ *
+ * <pre>
+ * stream  = 'M' 'B' 'R' version { layout | reading }
+ * layout  = varint(0) varint(id) varint(n) n * ( varint(length) structure bytes )
+ * reading = varint(1) varint(layout id) zigzag(timestamp - previous timestamp) CI header bytes
+ *           { record data } varint(length) trailer bytes
+ * </pre>
+ *
+ * The structure bytes of a record include fill bytes before it. The trailer holds the manufacturer specific data and
+ * fill bytes after the last record. The checksum and stop byte of the frame are not stored.
+ *
+ * Streams may be concatenated, e.g. by appending every session to the same file. The decoder starts over with an
+ * empty layout dictionary at every stream header.
+ *
+ * Supported are variable data structures with CI field 0x72, 0x78 and unencrypted 0x7A. An encoder is not thread-safe.
+ */
+public class ReadingEncoder {
+
+	final static byte[] MAGIC = { 'M', 'B', 'R' };
+	final static int VERSION = 1;
+	final static int TAG_LAYOUT = 0;
+	final static int TAG_READING = 1;
+	// the first byte of a stream header of a concatenated stream, read as a tag
+	final static int TAG_STREAM_HEADER = 'M';
+
+	private final static int BUFFER_SIZE = 8192;
+
+	private static class Layout {
+		final int id;
+		final byte[] structure;
+		final int[] structureLengths;
+
+		Layout(int id, byte[] structure, int[] structureLengths) {
+			this.id = id;
+			this.structure = structure;
+			this.structureLengths = structureLengths;
+		}
+	}
+
+	private final OutputStream out;
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private int position = 0;
+
+	private final RecordCursor cursor = new RecordCursor();
+	private final LongMap<Layout> layouts = new LongMap<Layout>();
+	private int numLayouts = 0;
+	private long lastTimestamp = 0;
+
+	// boundaries of the records of the current telegram
+	private int[] structureStarts = new int[16];
+	private int[] dataStarts = new int[16];
+	private int[] dataEnds = new int[16];
+
+	/**
+	 * Creates an encoder and writes the stream header.
+	 *
+	 * @param out
+	 *            the stream to write to. Buffered by the encoder.
+	 * @throws IOException
+	 *             if the header could not be written.
+	 */
+	public ReadingEncoder(OutputStream out) throws IOException {
+		this.out = out;
+		System.arraycopy(MAGIC, 0, buffer, 0, MAGIC.length);
+		position = MAGIC.length;
+		buffer[position++] = VERSION;
+	}
+
+	/**
+	 * Writes a reading.
+	 *
+	 * @param variableDataStructure
+	 *            the variable data structure, does not have to be decoded.
+	 * @param timestamp
+	 *            the time the reading was received in ms since 1970.
+	 * @throws DecodingException
+	 *             if the data records could not be decoded. Nothing is written in this case.
+	 * @throws IOException
+	 *             if writing failed.
+	 */
+	public void write(VariableDataStructure variableDataStructure, long timestamp)
+			throws DecodingException, IOException {
+		byte[] data = variableDataStructure.getBuffer();
+		int offset = variableDataStructure.getOffset();
+		int length = variableDataStructure.getLength();
+
+		cursor.reset(data, offset, length);
+		int headerLength = getHeaderLength(data[offset] & 0xff);
+		int end = offset + length - 2;
+
+		// collect the record boundaries and hash the structure
+		int numRecords = 0;
+		int previousEnd = offset + headerLength;
+		long hash = 0xcbf29ce484222325L;
+		while (cursor.next()) {
+			if (numRecords == dataStarts.length) {
+				growRecordArrays();
+			}
+			DataRecord record = cursor.getRecord();
+			int dataStart = record.getDataOffset();
+			structureStarts[numRecords] = previousEnd;
+			dataStarts[numRecords] = dataStart;
+			dataEnds[numRecords] = cursor.getRecordEnd();
+			for (int i = previousEnd; i < dataStart; i++) {
+				hash = (hash ^ (data[i] & 0xff)) * 0x100000001b3L;
+			}
+			// separates the records
+			hash = (hash ^ 0x100) * 0x100000001b3L;
+			previousEnd = cursor.getRecordEnd();
+			numRecords++;
+		}
+		int trailerStart = previousEnd;
+
+		Layout layout = layouts.get(hash);
+		if (layout == null || !matches(layout, data, numRecords)) {
+			layout = newLayout(data, numRecords);
+			layouts.put(hash, layout);
+			writeLayout(layout);
+		}
+
+		ensureCapacity(32 + headerLength);
+		writeVarint(TAG_READING);
+		writeVarint(layout.id);
+		writeVarint(zigzag(timestamp - lastTimestamp));
+		lastTimestamp = timestamp;
+		System.arraycopy(data, offset, buffer, position, headerLength);
+		position += headerLength;
+
+		for (int r = 0; r < numRecords; r++) {
+			int dataStart = dataStarts[r];
+			int dataLength = dataEnds[r] - dataStart;
+			int dataField = data[structureStart(r, data)] & 0x0f;
+			ensureCapacity(dataLength + 10);
+			switch (dataField) {
+			case 0x01:
+			case 0x02:
+			case 0x03:
+			case 0x04:
+			case 0x06:
+			case 0x07:
+				// sign extended so that small negative values stay short
+				long value = 0;
+				for (int i = dataStart + dataLength - 1; i >= dataStart; i--) {
+					value = (value << 8) | (data[i] & 0xff);
+				}
+				int shift = 64 - dataLength * 8;
+				writeVarint(zigzag((value << shift) >> shift));
+				break;
+			case 0x0d:
+				writeVarint(dataLength);
+				System.arraycopy(data, dataStart, buffer, position, dataLength);
+				position += dataLength;
+				break;
+			default:
+				System.arraycopy(data, dataStart, buffer, position, dataLength);
+				position += dataLength;
+				break;
+			}
+		}
+
+		int trailerLength = end - trailerStart;
+		ensureCapacity(trailerLength + 5);
+		writeVarint(trailerLength);
+		System.arraycopy(data, trailerStart, buffer, position, trailerLength);
+		position += trailerLength;
+	}
+
+	/**
+	 * Returns the position of the DIF of a record, i.e. the first byte of its structure that is not a fill byte.
+	 */
+	private int structureStart(int r, byte[] data) {
+		int i = structureStarts[r];
+		while (data[i] == 0x2f) {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * Returns the number of layouts written so far.
+	 */
+	public int getNumberOfLayouts() {
+		return numLayouts;
+	}
+
+	/**
+	 * Writes the buffered data to the stream and flushes it.
+	 */
+	public void flush() throws IOException {
+		flushBuffer();
+		out.flush();
+	}
+
+	/**
+	 * Flushes and closes the stream.
+	 */
+	public void close() throws IOException {
+		flushBuffer();
+		out.close();
+	}
+
+	static int getHeaderLength(int ciField) throws DecodingException {
+		switch (ciField) {
+		case 0x72:
+			return 13;
+		case 0x78:
+			return 1;
+		case 0x7a:
+			return 5;
+		default:
+			throw new DecodingException(
+					"Unable to encode message with this CI Field: " + HexConverter.toHexString((byte) ciField));
+		}
+	}
+
+	private boolean matches(Layout layout, byte[] data, int numRecords) {
+		if (layout.structureLengths.length != numRecords) {
+			return false;
+		}
+		int j = 0;
+		for (int r = 0; r < numRecords; r++) {
+			int start = structureStarts[r];
+			int structureLength = dataStarts[r] - start;
+			if (structureLength != layout.structureLengths[r]) {
+				return false;
+			}
+			for (int i = 0; i < structureLength; i++) {
+				if (data[start + i] != layout.structure[j++]) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private Layout newLayout(byte[] data, int numRecords) {
+		int[] structureLengths = new int[numRecords];
+		int total = 0;
+		for (int r = 0; r < numRecords; r++) {
+			structureLengths[r] = dataStarts[r] - structureStarts[r];
+			total += structureLengths[r];
+		}
+		byte[] structure = new byte[total];
+		int j = 0;
+		for (int r = 0; r < numRecords; r++) {
+			System.arraycopy(data, structureStarts[r], structure, j, structureLengths[r]);
+			j += structureLengths[r];
+		}
+		return new Layout(numLayouts++, structure, structureLengths);
+	}
+
+	private void writeLayout(Layout layout) throws IOException {
+		ensureCapacity(15);
+		writeVarint(TAG_LAYOUT);
+		writeVarint(layout.id);
+		writeVarint(layout.structureLengths.length);
+		int j = 0;
+		for (int structureLength : layout.structureLengths) {
+			ensureCapacity(structureLength + 5);
+			writeVarint(structureLength);
+			System.arraycopy(layout.structure, j, buffer, position, structureLength);
+			position += structureLength;
+			j += structureLength;
+		}
+	}
+
+	private void growRecordArrays() {
+		int n = dataStarts.length * 2;
+		int[] newArray = new int[n];
+		System.arraycopy(structureStarts, 0, newArray, 0, structureStarts.length);
+		structureStarts = newArray;
+		newArray = new int[n];
+		System.arraycopy(dataStarts, 0, newArray, 0, dataStarts.length);
+		dataStarts = newArray;
+		newArray = new int[n];
+		System.arraycopy(dataEnds, 0, newArray, 0, dataEnds.length);
+		dataEnds = newArray;
+	}
+
+	private static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	/**
+	 * Writes an unsigned varint, 7 bits per byte, least significant group first. The buffer must have room for 10
+	 * bytes.
+	 */
+	private void writeVarint(long value) {
+		while ((value & ~0x7fL) != 0) {
+			buffer[position++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		buffer[position++] = (byte) value;
+	}
+
+	private void ensureCapacity(int n) throws IOException {
+		if (position + n > buffer.length) {
+			flushBuffer();
+			if (n > buffer.length) {
+				throw new IOException("Element too large for the encoder buffer: " + n);
+			}
+		}
+	}
+
+	private void flushBuffer() throws IOException {
+		if (position > 0) {
+			out.write(buffer, 0, position);
+			position = 0;
+		}
+	}
+
+}
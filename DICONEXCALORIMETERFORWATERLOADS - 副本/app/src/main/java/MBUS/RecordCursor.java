@@ -0,0 +1,260 @@
+package MBUS;
+
+import MBUS.DataRecord.DataValueType;
+import MBUS.DataRecord.Description;
+import MBUS.DataRecord.FunctionField;
+
+/**
+ * Iterates over the data records of a variable data structure directly on the received bytes without creating a
+ * DataRecord object per record. The cursor always points to a single record whose fields are decoded from the buffer
+ * on access. A cursor can be reused for any number of telegrams, so a thread that keeps one cursor decodes telegrams
+ * without producing garbage. Only string values and user defined descriptions allocate objects when they are accessed.
+ *
+ * Usage:
+ * 
+ * <pre>
+ * cursor.reset(variableDataStructure);
+ * while (cursor.next()) {
+ * 	if (cursor.getDescription() == Description.ENERGY) {
+ * 		energy = cursor.getScaledDoubleValue();
+ * 	}
+ * }
+ * </pre>
+ *
+ * The buffer must not be changed while the cursor is used. A cursor is not thread-safe.
+ */
+public class RecordCursor {
+
+	// reused for every record
+	private final DataRecord record = new DataRecord();
+
+	private byte[] buffer;
+	private int position;
+	private int end;
+	private int recordOffset;
+	private boolean onRecord;
+	private boolean moreRecordsFollow;
+
+	/**
+	 * Positions the cursor before the first data record of the given variable data structure. The variable data
+	 * structure does not have to be decoded.
+	 * 
+	 * @param variableDataStructure
+	 *            the variable data structure.
+	 * @throws DecodingException
+	 *             if the CI field is not supported or the data records are encrypted.
+	 */
+	public void reset(VariableDataStructure variableDataStructure) throws DecodingException {
+		reset(variableDataStructure.getBuffer(), variableDataStructure.getOffset(), variableDataStructure.getLength());
+	}
+
+	/**
+	 * Positions the cursor before the first data record of a variable data structure.
+	 * 
+	 * @param buffer
+	 *            the buffer containing the variable data structure.
+	 * @param offset
+	 *            the position of the CI field.
+	 * @param length
+	 *            the length of the variable data structure including the CI field and the trailing checksum and stop
+	 *            byte.
+	 * @throws DecodingException
+	 *             if the CI field is not supported or the data records are encrypted.
+	 */
+	public void reset(byte[] buffer, int offset, int length) throws DecodingException {
+		int ciField = buffer[offset] & 0xff;
+		int headerLength;
+
+		switch (ciField) {
+		case 0x72:
+			headerLength = 13;
+			break;
+		case 0x78:
+			headerLength = 1;
+			break;
+		case 0x7a:
+			if ((buffer[offset + 4] & 0x0f) != 0) {
+				throw new DecodingException("Encrypted data records can not be read with a cursor.");
+			}
+			headerLength = 5;
+			break;
+		default:
+			throw new DecodingException(
+					"Unable to decode message with this CI Field: " + HexConverter.toHexString((byte) ciField));
+		}
+
+		if (length < headerLength + 2) {
+			throw new DecodingException("Variable data structure too short: " + length);
+		}
+
+		this.buffer = buffer;
+		position = offset + headerLength;
+		end = offset + length - 2;
+		onRecord = false;
+		moreRecordsFollow = false;
+	}
+
+	/**
+	 * Moves the cursor to the next data record.
+	 * 
+	 * @return true if the cursor points to a data record, false if there are no more data records.
+	 * @throws DecodingException
+	 *             if the next data record is invalid. The cursor can not be moved further.
+	 */
+	public boolean next() throws DecodingException {
+		onRecord = false;
+		while (position < end) {
+			if ((buffer[position] & 0xef) == 0x0f) {
+				// manufacturer specific data
+				if ((buffer[position] & 0x10) == 0x10) {
+					moreRecordsFollow = true;
+				}
+				position = end;
+				return false;
+			}
+
+			if (buffer[position] == 0x2f) {
+				// fill byte
+				position++;
+				continue;
+			}
+
+			recordOffset = position;
+			try {
+				position = record.index(buffer, position, end - position);
+			} catch (ArrayIndexOutOfBoundsException e) {
+				position = end;
+				throw new DecodingException("Data record exceeds the buffer.");
+			} catch (DecodingException e) {
+				position = end;
+				throw e;
+			}
+			if (position > end) {
+				position = end;
+				throw new DecodingException("Data record exceeds the variable data structure.");
+			}
+			onRecord = true;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns whether the manufacturer specific data after the last data record signals that more records follow in the
+	 * next telegram. Only valid after {@link #next()} returned false.
+	 */
+	public boolean moreRecordsFollow() {
+		return moreRecordsFollow;
+	}
+
+	/**
+	 * Returns the position of the DIF of the current data record in the buffer.
+	 */
+	public int getRecordOffset() {
+		checkOnRecord();
+		return recordOffset;
+	}
+
+	/**
+	 * Returns the position of the first byte after the current data record in the buffer.
+	 */
+	public int getRecordEnd() {
+		checkOnRecord();
+		return position;
+	}
+
+	byte[] getBuffer() {
+		return buffer;
+	}
+
+	int getVibOffset() {
+		checkOnRecord();
+		return record.getVibOffset();
+	}
+
+	DataRecord getRecord() {
+		checkOnRecord();
+		return record;
+	}
+
+	public FunctionField getFunctionField() {
+		checkOnRecord();
+		return record.getFunctionField();
+	}
+
+	public long getStorageNumber() {
+		checkOnRecord();
+		return record.getStorageNumber();
+	}
+
+	public int getTariff() {
+		checkOnRecord();
+		return record.getTariff();
+	}
+
+	public short getSubunit() {
+		checkOnRecord();
+		return record.getSubunit();
+	}
+
+	public Description getDescription() {
+		checkOnRecord();
+		return record.getDescription();
+	}
+
+	public DlmsUnit getUnit() {
+		checkOnRecord();
+		return record.getUnit();
+	}
+
+	public DlmsUnit getPerTimeUnit() {
+		checkOnRecord();
+		return record.getPerTimeUnit();
+	}
+
+	public int getErrorCode() {
+		checkOnRecord();
+		return record.getErrorCode();
+	}
+
+	public int getMultiplierExponent() {
+		checkOnRecord();
+		return record.getMultiplierExponent();
+	}
+
+	public DataValueType getDataValueType() {
+		checkOnRecord();
+		return record.getDataValueType();
+	}
+
+	/**
+	 * See {@link DataRecord#getLongValue()}.
+	 */
+	public long getLongValue() {
+		checkOnRecord();
+		return record.getLongValue();
+	}
+
+	/**
+	 * See {@link DataRecord#getDoubleValue()}.
+	 */
+	public double getDoubleValue() {
+		checkOnRecord();
+		return record.getDoubleValue();
+	}
+
+	/**
+	 * See {@link DataRecord#getScaledDoubleValue()}.
+	 */
+	public double getScaledDoubleValue() {
+		checkOnRecord();
+		return record.getScaledDoubleValue();
+	}
+
+	private void checkOnRecord() {
+		if (!onRecord) {
+			throw new IllegalStateException("Cursor does not point to a data record.");
+		}
+	}
+
+}
@@ -0,0 +1,232 @@
+package MBUS;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import MBUS.DataRecord.Description;
+import MBUS.DataRecord.FunctionField;
+
+/**
+ * Extracts selected values from variable data structures without decoding all data records. The wanted values are
+ * declared once as tuples of description, function field, storage number and tariff. They are compiled into lookup
+ * tables indexed by the DIF and the VIF bytes so that a data record that is not wanted is rejected by two array
+ * accesses. Only the data fields of the matching records are decoded.
+ *
+ * Example:
+ * 
+ * <pre>
+ * RecordQuery query = new RecordQuery.Builder().add(Description.POWER).add(Description.VOLUME_FLOW).build();
+ * double[] values = new double[query.size()];
+ * query.execute(variableDataStructure, values);
+ * </pre>
+ *
+ * A query is immutable and can be shared between threads, but every thread needs its own {@link RecordCursor}.
+ */
+public class RecordQuery {
+
+	/**
+	 * The maximum number of values a single query can extract.
+	 */
+	public final static int MAX_SIZE = 64;
+
+	// the table index used for the plain text VIF 0x7c/0xfc
+	private final static int USER_DEFINED = 3;
+
+	/**
+	 * Collects the values a query should extract.
+	 */
+	public static class Builder {
+
+		private final List<Description> descriptions = new ArrayList<Description>();
+		private final List<FunctionField> functionFields = new ArrayList<FunctionField>();
+		private final List<Long> storageNumbers = new ArrayList<Long>();
+		private final List<Integer> tariffs = new ArrayList<Integer>();
+
+		/**
+		 * Adds the instantaneous value of storage 0 and tariff 0 with the given description.
+		 * 
+		 * @param description
+		 *            the description of the value.
+		 * @return this builder.
+		 */
+		public Builder add(Description description) {
+			return add(description, FunctionField.INST_VAL, 0, 0);
+		}
+
+		/**
+		 * Adds a value to extract. The index of the value in the result array is the number of values added before.
+		 * 
+		 * @param description
+		 *            the description of the value.
+		 * @param functionField
+		 *            the function field of the value.
+		 * @param storageNumber
+		 *            the storage number, 0 for the actual value.
+		 * @param tariff
+		 *            the tariff, 0 for the total.
+		 * @return this builder.
+		 */
+		public Builder add(Description description, FunctionField functionField, long storageNumber, int tariff) {
+			if (descriptions.size() == MAX_SIZE) {
+				throw new IllegalStateException("A query can not extract more than " + MAX_SIZE + " values.");
+			}
+			descriptions.add(description);
+			functionFields.add(functionField);
+			storageNumbers.add(storageNumber);
+			tariffs.add(tariff);
+			return this;
+		}
+
+		public RecordQuery build() {
+			return new RecordQuery(this);
+		}
+	}
+
+	private final int size;
+	private final FunctionField[] functionFields;
+	private final long[] storageNumbers;
+	private final int[] tariffs;
+
+	// bit i is set if the byte can belong to a record matching value i
+	private final long[] difMasks = new long[256];
+	private final long[][] vifMasks = new long[4][256];
+	private final long completeMask;
+
+	private RecordQuery(Builder builder) {
+		size = builder.descriptions.size();
+		functionFields = new FunctionField[size];
+		storageNumbers = new long[size];
+		tariffs = new int[size];
+
+		for (int q = 0; q < size; q++) {
+			Description description = builder.descriptions.get(q);
+			functionFields[q] = builder.functionFields.get(q);
+			storageNumbers[q] = builder.storageNumbers.get(q);
+			tariffs[q] = builder.tariffs.get(q);
+			long bit = 1L << q;
+
+			for (int dif = 0; dif < 256; dif++) {
+				if (((dif >> 4) & 0x03) != functionFields[q].ordinal()) {
+					continue;
+				}
+				if (((dif >> 6) & 0x01) != (storageNumbers[q] & 0x01)) {
+					continue;
+				}
+				// without DIFEs the storage number has only one bit and the tariff is 0
+				if ((dif & 0x80) == 0 && (storageNumbers[q] > 1 || tariffs[q] != 0)) {
+					continue;
+				}
+				difMasks[dif] |= bit;
+			}
+
+			for (int table = VifTables.PRIMARY; table <= VifTables.ALTERNATE_EXTENDED; table++) {
+				for (int code = 0; code < 256; code++) {
+					if (VifTables.getDescription(table, code) == description) {
+						vifMasks[table][code] |= bit;
+					}
+				}
+			}
+			if (description == Description.USER_DEFINED) {
+				for (int code = 0; code < 256; code++) {
+					vifMasks[USER_DEFINED][code] |= bit;
+				}
+			}
+		}
+
+		completeMask = (size == MAX_SIZE) ? -1L : (1L << size) - 1;
+	}
+
+	/**
+	 * Returns the number of values extracted by this query.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Extracts the values from a variable data structure. The variable data structure does not have to be decoded.
+	 * 
+	 * @param variableDataStructure
+	 *            the variable data structure.
+	 * @param results
+	 *            receives the scaled values in the order they were added to the builder. Values that were not found are
+	 *            set to NaN. Must be at least of length {@link #size()}.
+	 * @return the number of values found.
+	 * @throws DecodingException
+	 *             if the variable data structure can not be decoded.
+	 */
+	public int execute(VariableDataStructure variableDataStructure, double[] results) throws DecodingException {
+		return execute(variableDataStructure, new RecordCursor(), results);
+	}
+
+	/**
+	 * Extracts the values from a variable data structure using the given cursor. Reusing the cursor avoids any
+	 * allocation.
+	 * 
+	 * @see #execute(VariableDataStructure, double[])
+	 */
+	public int execute(VariableDataStructure variableDataStructure, RecordCursor cursor, double[] results)
+			throws DecodingException {
+		cursor.reset(variableDataStructure);
+		return execute(cursor, results);
+	}
+
+	/**
+	 * Extracts the values from the records of a cursor that was reset by the caller.
+	 * 
+	 * @see #execute(VariableDataStructure, double[])
+	 */
+	public int execute(RecordCursor cursor, double[] results) throws DecodingException {
+		for (int q = 0; q < size; q++) {
+			results[q] = Double.NaN;
+		}
+
+		long found = 0;
+		int numFound = 0;
+
+		while (found != completeMask && cursor.next()) {
+			byte[] buffer = cursor.getBuffer();
+
+			long candidates = difMasks[buffer[cursor.getRecordOffset()] & 0xff] & ~found;
+			if (candidates == 0) {
+				continue;
+			}
+
+			int vibOffset = cursor.getVibOffset();
+			int vif = buffer[vibOffset] & 0xff;
+			if (vif == 0xfd) {
+				candidates &= vifMasks[VifTables.MAIN_EXTENDED][buffer[vibOffset + 1] & 0xff];
+			}
+			else if (vif == 0xfb) {
+				candidates &= vifMasks[VifTables.ALTERNATE_EXTENDED][buffer[vibOffset + 1] & 0xff];
+			}
+			else if ((vif & 0x7f) == 0x7c) {
+				candidates &= vifMasks[USER_DEFINED][vif];
+			}
+			else {
+				candidates &= vifMasks[VifTables.PRIMARY][vif];
+			}
+			if (candidates == 0) {
+				continue;
+			}
+
+			for (int q = 0; q < size; q++) {
+				if ((candidates & (1L << q)) == 0) {
+					continue;
+				}
+				if ((buffer[cursor.getRecordOffset()] & 0x80) == 0x80) {
+					// storage number and tariff are continued in DIFEs
+					if (cursor.getStorageNumber() != storageNumbers[q] || cursor.getTariff() != tariffs[q]) {
+						continue;
+					}
+				}
+				results[q] = cursor.getScaledDoubleValue();
+				found |= 1L << q;
+				numFound++;
+			}
+		}
+
+		return numFound;
+	}
+
+}
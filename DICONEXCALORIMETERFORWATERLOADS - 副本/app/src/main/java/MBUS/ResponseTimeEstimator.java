@@ -0,0 +1,257 @@
+package MBUS;
+
+/**
+ * Learns the response times of the meters on an M-Bus segment and derives a response timeout per primary address.
+ *
+ * For every response the latency of the first byte and of the last byte (both measured from the end of the request)
+ * are recorded. Once enough samples were collected the timeout of a meter is the chosen percentile of its last byte
+ * latency multiplied by a safety factor. The timeout is never shorter than the maximum response delay the standard
+ * allows a slave (330 bit times + 50 ms, EN 13757-2) plus the transfer time of the longest response seen from the meter,
+ * and never longer than the configured maximum.
+ *
+ * A meter that did not answer several times in a row is considered not responding. Requests to it fail immediately
+ * without using the bus until the probe interval has passed. Then a single request is sent to check whether the meter
+ * is back.
+ */
+public class ResponseTimeEstimator {
+
+	private final static int NUM_SAMPLES = 16;
+	private final static int MIN_SAMPLES = 4;
+	private final static int NUM_ADDRESSES = 256;
+
+	/**
+	 * Maximum time a slave may wait before answering: 330 bit times + 50 ms.
+	 */
+	private final static int MAX_RESPONSE_DELAY_BIT_TIMES = 330;
+	private final static int MAX_RESPONSE_DELAY_MS = 50;
+
+	/**
+	 * Every transmitted byte consists of 11 bits (start bit, 8 data bits, parity bit, stop bit).
+	 */
+	private final static int BITS_PER_BYTE = 11;
+
+	private final int maxTimeout;
+
+	private double percentile = 0.95;
+	private double safetyFactor = 1.5;
+	private int maxConsecutiveTimeouts = 3;
+	private long probeInterval = 60000;
+
+	private final int[][] firstByteLatencies = new int[NUM_ADDRESSES][NUM_SAMPLES];
+	private final int[][] lastByteLatencies = new int[NUM_ADDRESSES][NUM_SAMPLES];
+	private final int[] numSamples = new int[NUM_ADDRESSES];
+	private final int[] nextSample = new int[NUM_ADDRESSES];
+	private final int[] maxFrameLengths = new int[NUM_ADDRESSES];
+	private final int[] consecutiveTimeouts = new int[NUM_ADDRESSES];
+	private final long[] lastAttempts = new long[NUM_ADDRESSES];
+	private final long[] numResponses = new long[NUM_ADDRESSES];
+	private final long[] numTimeouts = new long[NUM_ADDRESSES];
+
+	private final int[] sortBuffer = new int[NUM_SAMPLES];
+
+	/**
+	 * Creates a new estimator.
+	 *
+	 * @param maxTimeout
+	 *            the timeout in ms used as long as not enough samples of a meter were collected. Learned timeouts are
+	 *            never longer.
+	 */
+	public ResponseTimeEstimator(int maxTimeout) {
+		if (maxTimeout <= 0) {
+			throw new IllegalArgumentException("timeout may not be 0");
+		}
+		this.maxTimeout = maxTimeout;
+	}
+
+	/**
+	 * Sets the percentile of the last byte latencies the timeout is derived from. Default is 0.95.
+	 *
+	 * @param percentile
+	 *            the percentile between 0 and 1.
+	 */
+	public synchronized void setPercentile(double percentile) {
+		if (percentile < 0 || percentile > 1) {
+			throw new IllegalArgumentException("percentile must be between 0 and 1");
+		}
+		this.percentile = percentile;
+	}
+
+	/**
+	 * Sets the factor the percentile is multiplied with to get the timeout. Default is 1.5.
+	 *
+	 * @param safetyFactor
+	 *            the safety factor, at least 1.
+	 */
+	public synchronized void setSafetyFactor(double safetyFactor) {
+		if (safetyFactor < 1) {
+			throw new IllegalArgumentException("safety factor must be at least 1");
+		}
+		this.safetyFactor = safetyFactor;
+	}
+
+	/**
+	 * Sets the number of consecutive timeouts after which a meter is considered not responding and the time in ms
+	 * after which a meter that is considered not responding is tried again. Defaults are 3 and 60000 ms.
+	 */
+	public synchronized void setFailFast(int maxConsecutiveTimeouts, long probeInterval) {
+		if (maxConsecutiveTimeouts <= 0) {
+			throw new IllegalArgumentException("number of timeouts must be greater than 0");
+		}
+		this.maxConsecutiveTimeouts = maxConsecutiveTimeouts;
+		this.probeInterval = probeInterval;
+	}
+
+	/**
+	 * Returns the timeout to use for the next request to the given meter.
+	 *
+	 * @param primaryAddress
+	 *            the primary address of the meter.
+	 * @param baudRate
+	 *            the baud rate used to communicate with the meter.
+	 * @return the timeout in ms.
+	 */
+	public synchronized int getTimeout(int primaryAddress, int baudRate) {
+		if (numSamples[primaryAddress] < MIN_SAMPLES) {
+			return maxTimeout;
+		}
+		int minTimeout = ((MAX_RESPONSE_DELAY_BIT_TIMES + BITS_PER_BYTE * maxFrameLengths[primaryAddress]) * 1000)
+				/ baudRate + MAX_RESPONSE_DELAY_MS;
+		int learned = (int) Math.ceil(percentile(lastByteLatencies, primaryAddress, percentile) * safetyFactor);
+		return Math.min(maxTimeout, Math.max(minTimeout, learned));
+	}
+
+	/**
+	 * Returns whether a request to the given meter should be sent. Returns false if the meter is considered not
+	 * responding and the probe interval has not passed yet.
+	 *
+	 * @param primaryAddress
+	 *            the primary address of the meter.
+	 * @return true if the request should be sent.
+	 */
+	public synchronized boolean shouldAttempt(int primaryAddress) {
+		if (consecutiveTimeouts[primaryAddress] < maxConsecutiveTimeouts) {
+			return true;
+		}
+		long now = System.currentTimeMillis();
+		if (now - lastAttempts[primaryAddress] >= probeInterval) {
+			lastAttempts[primaryAddress] = now;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Records a received response.
+	 *
+	 * @param primaryAddress
+	 *            the primary address of the meter.
+	 * @param firstByteLatency
+	 *            the time in ms from the end of the request to the first byte of the response.
+	 * @param lastByteLatency
+	 *            the time in ms from the end of the request to the last byte of the response.
+	 * @param frameLength
+	 *            the length of the response in bytes.
+	 */
+	public synchronized void addResponse(int primaryAddress, int firstByteLatency, int lastByteLatency,
+			int frameLength) {
+		int i = nextSample[primaryAddress];
+		firstByteLatencies[primaryAddress][i] = firstByteLatency;
+		lastByteLatencies[primaryAddress][i] = lastByteLatency;
+		nextSample[primaryAddress] = (i + 1) % NUM_SAMPLES;
+		if (numSamples[primaryAddress] < NUM_SAMPLES) {
+			numSamples[primaryAddress]++;
+		}
+		if (frameLength > maxFrameLengths[primaryAddress]) {
+			maxFrameLengths[primaryAddress] = frameLength;
+		}
+		consecutiveTimeouts[primaryAddress] = 0;
+		lastAttempts[primaryAddress] = System.currentTimeMillis();
+		numResponses[primaryAddress]++;
+	}
+
+	/**
+	 * Records that the given meter did not answer within the timeout.
+	 *
+	 * @param primaryAddress
+	 *            the primary address of the meter.
+	 */
+	public synchronized void addTimeout(int primaryAddress) {
+		consecutiveTimeouts[primaryAddress]++;
+		lastAttempts[primaryAddress] = System.currentTimeMillis();
+		numTimeouts[primaryAddress]++;
+	}
+
+	/**
+	 * Forgets everything learned about the given meter, e.g. after its baud rate was changed.
+	 *
+	 * @param primaryAddress
+	 *            the primary address of the meter.
+	 */
+	public synchronized void reset(int primaryAddress) {
+		numSamples[primaryAddress] = 0;
+		nextSample[primaryAddress] = 0;
+		maxFrameLengths[primaryAddress] = 0;
+		consecutiveTimeouts[primaryAddress] = 0;
+	}
+
+	/**
+	 * Returns the given percentile of the recorded first byte latencies of a meter.
+	 *
+	 * @return the latency in ms or -1 if no response was recorded.
+	 */
+	public synchronized int getFirstByteLatency(int primaryAddress, double percentile) {
+		return percentile(firstByteLatencies, primaryAddress, percentile);
+	}
+
+	/**
+	 * Returns the given percentile of the recorded last byte latencies of a meter.
+	 *
+	 * @return the latency in ms or -1 if no response was recorded.
+	 */
+	public synchronized int getLastByteLatency(int primaryAddress, double percentile) {
+		return percentile(lastByteLatencies, primaryAddress, percentile);
+	}
+
+	public synchronized int getNumberOfSamples(int primaryAddress) {
+		return numSamples[primaryAddress];
+	}
+
+	public synchronized long getNumberOfResponses(int primaryAddress) {
+		return numResponses[primaryAddress];
+	}
+
+	public synchronized long getNumberOfTimeouts(int primaryAddress) {
+		return numTimeouts[primaryAddress];
+	}
+
+	/**
+	 * Returns whether the given meter is currently considered not responding.
+	 */
+	public synchronized boolean isNotResponding(int primaryAddress) {
+		return consecutiveTimeouts[primaryAddress] >= maxConsecutiveTimeouts;
+	}
+
+	private int percentile(int[][] latencies, int primaryAddress, double percentile) {
+		int n = numSamples[primaryAddress];
+		if (n == 0) {
+			return -1;
+		}
+		int[] samples = latencies[primaryAddress];
+		// insertion sort, there are only a few samples
+		for (int i = 0; i < n; i++) {
+			int sample = samples[i];
+			int j = i - 1;
+			while (j >= 0 && sortBuffer[j] > sample) {
+				sortBuffer[j + 1] = sortBuffer[j];
+				j--;
+			}
+			sortBuffer[j + 1] = sample;
+		}
+		int index = (int) Math.ceil(percentile * n) - 1;
+		if (index < 0) {
+			index = 0;
+		}
+		return sortBuffer[index];
+	}
+
+}
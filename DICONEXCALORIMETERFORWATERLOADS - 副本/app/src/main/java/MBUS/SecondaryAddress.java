@@ -21,44 +21,59 @@
 package MBUS;
 
 import java.nio.ByteBuffer;
-import java.util.Arrays;
 
+/**
+ * The secondary address of a meter: identification number, manufacturer, version and device type. The 8 bytes are
+ * kept packed in a long in the order they were received (see {@link #asLong()}); the fields are decoded when they are
+ * accessed. Two secondary addresses are equal if they have the same bytes and byte order.
+ */
 public class SecondaryAddress {
 
-	private String manufacturerId;
-	private Bcd deviceId;
-	private final int version;
-	private final DeviceType deviceType;
-	private final byte[] bytes = new byte[8];
-	private final int hashCode;
+	private final long value;
+	private final boolean longHeader;
+
+	// created on demand
+	private byte[] bytes;
 
 	private SecondaryAddress(byte[] buffer, int offset, boolean longHeader) {
-		System.arraycopy(buffer, offset, bytes, 0, bytes.length);
-		hashCode = Arrays.hashCode(Arrays.copyOfRange(buffer, offset, bytes.length + offset - 1));
+		this(toLong(buffer, offset), longHeader);
+	}
 
-		int i = offset;
+	private SecondaryAddress(long value, boolean longHeader) {
+		this.value = value;
+		this.longHeader = longHeader;
+	}
 
-		if (longHeader) {
-			i = decodeDeviceId(buffer, i);
-			i = decodeManufacturerId(buffer, i);
-		}
-		else {
-			i = decodeManufacturerId(buffer, i);
-			i = decodeDeviceId(buffer, i);
+	/**
+	 * Packs 8 bytes of a secondary address into a long, the first byte in the lowest bits.
+	 * 
+	 * @param buffer
+	 *            the buffer containing the secondary address.
+	 * @param offset
+	 *            the position of the first byte.
+	 * @return the packed secondary address.
+	 */
+	public static long toLong(byte[] buffer, int offset) {
+		long value = 0;
+		for (int i = offset + 7; i >= offset; i--) {
+			value = (value << 8) | (buffer[i] & 0xff);
 		}
-		version = buffer[i++] & 0xff;
-		deviceType = DeviceType.newDevice(buffer[i++] & 0xff);
+		return value;
 	}
 
-	private int decodeManufacturerId(byte[] buffer, int i) {
-		int manufacturerIdAsInt = (buffer[i++] & 0xff) + (buffer[i++] << 8);
-		char c = (char) ((manufacturerIdAsInt & 0x1f) + 64);
-		manufacturerIdAsInt = (manufacturerIdAsInt >> 5);
-		char c1 = (char) ((manufacturerIdAsInt & 0x1f) + 64);
-		manufacturerIdAsInt = (manufacturerIdAsInt >> 5);
-		char c2 = (char) ((manufacturerIdAsInt & 0x1f) + 64);
-		manufacturerId = "" + c2 + c1 + c;
-		return i;
+	/**
+	 * Returns the byte at the given position of the secondary address.
+	 */
+	private int byteAt(int i) {
+		return (int) (value >>> (i * 8)) & 0xff;
+	}
+
+	private int getDeviceIdPosition() {
+		return longHeader ? 0 : 2;
+	}
+
+	private int getManufacturerIdPosition() {
+		return longHeader ? 4 : 0;
 	}
 
 	private static byte[] encodeManufacturerId(String manufactureId) {
@@ -80,16 +95,6 @@ public class SecondaryAddress {
 		return mfId;
 	}
 
-	private int decodeDeviceId(byte[] buffer, int i) {
-		byte[] idArray = new byte[4];
-		idArray[0] = buffer[i++];
-		idArray[1] = buffer[i++];
-		idArray[2] = buffer[i++];
-		idArray[3] = buffer[i++];
-		deviceId = new Bcd(idArray);
-		return i;
-	}
-
 	public static SecondaryAddress getFromLongHeader(byte[] buffer, int offset) {
 		return new SecondaryAddress(buffer, offset, true);
 	}
@@ -98,8 +103,22 @@ public class SecondaryAddress {
 		return new SecondaryAddress(buffer, offset, false);
 	}
 
+	/**
+	 * Creates a secondary address in long header byte order from its packed representation.
+	 * 
+	 * @param value
+	 *            the packed secondary address, see {@link #asLong()}.
+	 * @return the secondary address.
+	 */
+	public static SecondaryAddress getFromLong(long value) {
+		return new SecondaryAddress(value, true);
+	}
+
 	public static SecondaryAddress getFromHexString(String hexString) throws NumberFormatException {
 		byte[] buffer = HexConverter.fromShortHexString(hexString);
+		if (buffer.length != 8) {
+			throw new NumberFormatException("A secondary address consists of 8 bytes: " + hexString);
+		}
 		return new SecondaryAddress(buffer, 0, true);
 	}
 
@@ -117,16 +136,81 @@ public class SecondaryAddress {
 		}
 	}
 
+	/**
+	 * Returns the 8 bytes of the secondary address packed into a long, the first byte in the lowest bits. Use it as key
+	 * of a {@link LongMap}.
+	 */
+	public long asLong() {
+		return value;
+	}
+
+	/**
+	 * Returns whether the bytes are in the order of the long header (identification number first) or of the wireless
+	 * M-Bus link layer header (manufacturer ID first).
+	 */
+	public boolean isLongHeaderOrder() {
+		return longHeader;
+	}
+
+	/**
+	 * Returns the 8 bytes of the secondary address in the order they were received. The array is created on the first
+	 * call and must not be changed.
+	 */
 	public byte[] asByteArray() {
+		byte[] bytes = this.bytes;
+		if (bytes == null) {
+			bytes = new byte[8];
+			for (int i = 0; i < 8; i++) {
+				bytes[i] = (byte) byteAt(i);
+			}
+			this.bytes = bytes;
+		}
 		return bytes;
 	}
 
 	public int getHashCode() {
-		return hashCode;
+		return hashCode();
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) (value ^ (value >>> 32)) * 31 + (longHeader ? 1 : 0);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof SecondaryAddress)) {
+			return false;
+		}
+		SecondaryAddress other = (SecondaryAddress) obj;
+		return value == other.value && longHeader == other.longHeader;
+	}
+
+	/**
+	 * Returns the manufacturer ID coded in 15 bits as defined by EN 13757-3 without creating a String.
+	 */
+	public int getManufacturerIdAsInt() {
+		int i = getManufacturerIdPosition();
+		return byteAt(i) | (byteAt(i + 1) << 8);
 	}
 
 	public String getManufacturerId() {
-		return manufacturerId;
+		int manufacturerIdAsInt = getManufacturerIdAsInt();
+		char c = (char) ((manufacturerIdAsInt & 0x1f) + 64);
+		manufacturerIdAsInt = (manufacturerIdAsInt >> 5);
+		char c1 = (char) ((manufacturerIdAsInt & 0x1f) + 64);
+		manufacturerIdAsInt = (manufacturerIdAsInt >> 5);
+		char c2 = (char) ((manufacturerIdAsInt & 0x1f) + 64);
+		return "" + c2 + c1 + c;
+	}
+
+	/**
+	 * Returns the identification number without creating a Bcd.
+	 * 
+	 * @return the identification number or {@link Bcd#INVALID} if it contains wildcards or invalid digits.
+	 */
+	public long getDeviceIdAsLong() {
+		return Bcd.decode((value >>> (getDeviceIdPosition() * 8)) & 0xffffffffL, 4);
 	}
 
 	/**
@@ -135,7 +219,9 @@ public class SecondaryAddress {
 	 * @return the device ID
 	 */
 	public Bcd getDeviceId() {
-		return deviceId;
+		int i = getDeviceIdPosition();
+		return new Bcd(new byte[] { (byte) byteAt(i), (byte) byteAt(i + 1), (byte) byteAt(i + 2),
+				(byte) byteAt(i + 3) });
 	}
 
 	/**
@@ -144,20 +230,21 @@ public class SecondaryAddress {
 	 * @return the device type
 	 */
 	public DeviceType getDeviceType() {
-		return deviceType;
+		return DeviceType.newDevice(byteAt(7));
 	}
 
 	public int getVersion() {
-		return version;
+		return byteAt(6);
 	}
 
 	@Override
 	public String toString() {
 		StringBuilder builder = new StringBuilder();
-		builder.append("manufacturer ID: ").append(manufacturerId).append(", device ID: ").append(deviceId)
-				.append(", device version: ").append(version).append(", device type: ").append(deviceType)
-				.append(", as bytes: ");
+		builder.append("manufacturer ID: ").append(getManufacturerId()).append(", device ID: ")
+				.append(getDeviceId()).append(", device version: ").append(getVersion()).append(", device type: ")
+				.append(getDeviceType()).append(", as bytes: ");
 
+		byte[] bytes = asByteArray();
 		HexConverter.appendShortHexString(builder, bytes, 0, bytes.length);
 		return builder.toString();
 	}
@@ -0,0 +1,338 @@
+package MBUS;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
+import MBUS.MBusSap.SelectionResponse;
+
+/**
+ * Discovers the secondary addresses of all meters on an M-Bus segment using a depth-first wildcard search over the 8
+ * digits of the identification number.
+ *
+ * The search starts with the wildcard FFFFFFFF (all digits unknown) and fixes one digit after the other from the most
+ * significant one:
+ * <ul>
+ * <li>If no meter answers a wildcard the whole branch is pruned.</li>
+ * <li>If exactly one meter answers, the meter is selected and its full secondary address is read.</li>
+ * <li>If several meters answer at the same time (collision) the wildcard is split into the ten sub-wildcards of the
+ * next digit.</li>
+ * </ul>
+ * Compared to sweeping the address space the number of selections grows with the number of meters instead of the
+ * size of the address space.
+ *
+ * A selected meter whose readout fails or is garbled is treated like a collision, since the usual cause is a second
+ * meter answering, and the search continues with the next digit.
+ *
+ * Found addresses are kept in a cache that can be saved to and loaded from a file. When scanning again, a meter that
+ * answers alone to a wildcard matching a single cached address is confirmed with one selection of its full address
+ * instead of reading it out. The cache does not shorten the search itself: the wired M-Bus offers no way to silence
+ * known meters, so a new meter can only be found by walking the wildcard tree again. Use {@link #verify()} to check
+ * with one selection per meter whether the cached meters are still present.
+ */
+public class SecondaryAddressScanner {
+
+	private final static int NUM_ID_DIGITS = 8;
+
+	private final MBusSap mBusSap;
+
+	// found addresses by their hex representation
+	private final Map<String, SecondaryAddress> cache = new LinkedHashMap<String, SecondaryAddress>();
+	private final List<SecondaryAddress> unresolved = new ArrayList<SecondaryAddress>();
+
+	private int numSelections = 0;
+	private int numReadouts = 0;
+
+	/**
+	 * Creates a scanner for the given service access point. The service access point has to be opened by the caller.
+	 *
+	 * @param mBusSap
+	 *            the service access point of the segment to scan.
+	 */
+	public SecondaryAddressScanner(MBusSap mBusSap) {
+		this.mBusSap = mBusSap;
+	}
+
+	/**
+	 * Searches the whole segment for meters. Addresses that were found are added to the cache. Every scan walks the
+	 * whole wildcard tree, the cache only saves the readouts of known meters.
+	 *
+	 * @return the secondary addresses of all meters found in this scan.
+	 * @throws IOException
+	 *             if a selection could not be sent.
+	 */
+	public List<SecondaryAddress> scan() throws IOException {
+		numSelections = 0;
+		numReadouts = 0;
+		unresolved.clear();
+
+		List<SecondaryAddress> found = new ArrayList<SecondaryAddress>();
+		byte[] wildcard = new byte[] { (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff,
+				(byte) 0xff, (byte) 0xff, (byte) 0xff };
+
+		switch (select(wildcard)) {
+		case NONE:
+			break;
+		case SINGLE:
+			identify(wildcard, -1, found);
+			break;
+		case COLLISION:
+			search(wildcard, 0, found);
+			break;
+		}
+
+		return found;
+	}
+
+	private void search(byte[] wildcard, int digit, List<SecondaryAddress> found) throws IOException {
+		for (int value = 0; value <= 9; value++) {
+			setDigit(wildcard, digit, value);
+			switch (select(wildcard)) {
+			case NONE:
+				break;
+			case SINGLE:
+				identify(wildcard, digit, found);
+				break;
+			case COLLISION:
+				split(wildcard, digit, found);
+				break;
+			}
+		}
+		setDigit(wildcard, digit, 0x0f);
+	}
+
+	/**
+	 * Searches the sub-wildcards of the next digit after several meters answered the given wildcard. If all digits are
+	 * fixed the wildcard is reported as unresolved.
+	 *
+	 * @param digit
+	 *            the last digit fixed in the wildcard, -1 if no digit is fixed.
+	 */
+	private void split(byte[] wildcard, int digit, List<SecondaryAddress> found) throws IOException {
+		if (digit < NUM_ID_DIGITS - 1) {
+			search(wildcard, digit + 1, found);
+		}
+		else {
+			// meters with identical identification numbers but different manufacturer, version or medium
+			unresolved.add(SecondaryAddress.getFromLongHeader(wildcard.clone(), 0));
+		}
+	}
+
+	/**
+	 * Determines the full secondary address of the single meter that answered the given wildcard and that is therefore
+	 * selected.
+	 *
+	 * @param digit
+	 *            the last digit fixed in the wildcard, -1 if no digit is fixed.
+	 */
+	private void identify(byte[] wildcard, int digit, List<SecondaryAddress> found) throws IOException {
+		SecondaryAddress cached = findSingleCachedMatch(wildcard);
+		if (cached != null) {
+			if (select(cached.asByteArray()) == SelectionResponse.SINGLE) {
+				found.add(cached);
+				return;
+			}
+			// a different meter answered, select it again and read it
+			switch (select(wildcard)) {
+			case NONE:
+				return;
+			case SINGLE:
+				break;
+			case COLLISION:
+				split(wildcard, digit, found);
+				return;
+			}
+		}
+
+		VariableDataStructure variableDataStructure;
+		try {
+			numReadouts++;
+			variableDataStructure = mBusSap.read(0xfd);
+		} catch (TimeoutException e) {
+			// most likely two meters answered the selection a little apart and both are selected now
+			split(wildcard, digit, found);
+			return;
+		} catch (IOException e) {
+			split(wildcard, digit, found);
+			return;
+		}
+
+		SecondaryAddress secondaryAddress = variableDataStructure.getSecondaryAddress();
+		if (secondaryAddress == null) {
+			// the meter answered with a response without long header
+			unresolved.add(SecondaryAddress.getFromLongHeader(wildcard.clone(), 0));
+			return;
+		}
+		cache.put(toKey(secondaryAddress), secondaryAddress);
+		found.add(secondaryAddress);
+	}
+
+	/**
+	 * Checks whether the cached meters are still present by selecting each of them with its full secondary address.
+	 * Meters that do not answer are removed from the cache.
+	 *
+	 * @return the secondary addresses of the meters that disappeared.
+	 * @throws IOException
+	 *             if a selection could not be sent.
+	 */
+	public List<SecondaryAddress> verify() throws IOException {
+		List<SecondaryAddress> missing = new ArrayList<SecondaryAddress>();
+		for (SecondaryAddress secondaryAddress : new ArrayList<SecondaryAddress>(cache.values())) {
+			if (select(secondaryAddress.asByteArray()) == SelectionResponse.NONE) {
+				missing.add(secondaryAddress);
+				cache.remove(toKey(secondaryAddress));
+			}
+		}
+		return missing;
+	}
+
+	private SelectionResponse select(byte[] wildcard) throws IOException {
+		numSelections++;
+		return mBusSap.probeSelection(SecondaryAddress.getFromLongHeader(wildcard, 0));
+	}
+
+	private SecondaryAddress findSingleCachedMatch(byte[] wildcard) {
+		SecondaryAddress match = null;
+		for (SecondaryAddress secondaryAddress : cache.values()) {
+			if (matches(wildcard, secondaryAddress.asByteArray())) {
+				if (match != null) {
+					return null;
+				}
+				match = secondaryAddress;
+			}
+		}
+		return match;
+	}
+
+	private static boolean matches(byte[] wildcard, byte[] address) {
+		for (int i = 0; i < wildcard.length; i++) {
+			int w = wildcard[i] & 0xff;
+			int a = address[i] & 0xff;
+			if (i < 4) {
+				// identification number, every BCD digit may be a wildcard
+				if ((w & 0xf0) != 0xf0 && (w & 0xf0) != (a & 0xf0)) {
+					return false;
+				}
+				if ((w & 0x0f) != 0x0f && (w & 0x0f) != (a & 0x0f)) {
+					return false;
+				}
+			}
+			else if (w != 0xff && w != a) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Sets a digit of the identification number. The identification number is coded in 4 BCD bytes with the least
+	 * significant byte first. Digit 0 is the most significant digit.
+	 */
+	private static void setDigit(byte[] wildcard, int digit, int value) {
+		int index = 3 - digit / 2;
+		if (digit % 2 == 0) {
+			wildcard[index] = (byte) ((wildcard[index] & 0x0f) | (value << 4));
+		}
+		else {
+			wildcard[index] = (byte) ((wildcard[index] & 0xf0) | value);
+		}
+	}
+
+	private static String toKey(SecondaryAddress secondaryAddress) {
+		return HexConverter.toShortHexString(secondaryAddress.asByteArray());
+	}
+
+	/**
+	 * Returns all secondary addresses in the cache.
+	 *
+	 * @return the cached secondary addresses.
+	 */
+	public Collection<SecondaryAddress> getCachedAddresses() {
+		return new ArrayList<SecondaryAddress>(cache.values());
+	}
+
+	/**
+	 * Returns the wildcards the last scan could not resolve to a single meter, e.g. because several meters share the
+	 * same identification number, the readout failed although all digits were fixed or the meter answered without long
+	 * header.
+	 *
+	 * @return the unresolved wildcards.
+	 */
+	public List<SecondaryAddress> getUnresolvedWildcards() {
+		return unresolved;
+	}
+
+	/**
+	 * Returns the number of selections sent during the last scan.
+	 */
+	public int getNumberOfSelections() {
+		return numSelections;
+	}
+
+	/**
+	 * Returns the number of meters that had to be read out during the last scan to determine their address.
+	 */
+	public int getNumberOfReadouts() {
+		return numReadouts;
+	}
+
+	/**
+	 * Loads secondary addresses into the cache from a file written by {@link #saveCache(File)}. The file contains one
+	 * address per line as hex string.
+	 *
+	 * @param file
+	 *            the cache file.
+	 * @throws IOException
+	 *             if the file could not be read.
+	 */
+	public void loadCache(File file) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0) {
+					continue;
+				}
+				try {
+					SecondaryAddress secondaryAddress = SecondaryAddress.getFromHexString(line);
+					cache.put(toKey(secondaryAddress), secondaryAddress);
+				} catch (NumberFormatException e) {
+					throw new IOException("Invalid secondary address in cache file: " + line, e);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Saves the cached secondary addresses to a file.
+	 *
+	 * @param file
+	 *            the cache file.
+	 * @throws IOException
+	 *             if the file could not be written.
+	 */
+	public void saveCache(File file) throws IOException {
+		BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+		try {
+			for (String key : cache.keySet()) {
+				writer.write(key);
+				writer.newLine();
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+}
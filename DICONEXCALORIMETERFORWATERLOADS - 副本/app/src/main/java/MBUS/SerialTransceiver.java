@@ -3,26 +3,35 @@ package MBUS;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.TooManyListenersException;
+
 import gnu.io.CommPort;
 import gnu.io.CommPortIdentifier;
 import gnu.io.NoSuchPortException;
 import gnu.io.PortInUseException;
 import gnu.io.SerialPort;
+import gnu.io.SerialPortEvent;
+import gnu.io.SerialPortEventListener;
 import gnu.io.UnsupportedCommOperationException;
 
 
 class SerialTransceiver {
 
 	private final String serialPortName;
-	private final int baudRate;
+	private int baudRate;
 	private final int dataBits;
 	private final int stopBits;
 	private final int parity;
 	private DataOutputStream os;
 	private DataInputStream is;
 	private SerialPort serialPort;
-	
-	
+
+	private final Object dataAvailableLock = new Object();
+	// Synchronized by 'dataAvailableLock'
+	private boolean dataAvailable = false;
+	private boolean dataAvailableEventsEnabled = false;
+
 	public SerialTransceiver(String serialPortName, int baudRate, int dataBits, int stopBits, int parity) {
 		this.serialPortName = serialPortName;
 		this.baudRate = baudRate;
@@ -81,6 +90,66 @@ class SerialTransceiver {
 			throw new IOException("Error getting input or output or input stream from serial port", e);
 		}
 
+		try {
+			serialPort.addEventListener(new DataAvailableListener());
+			serialPort.notifyOnDataAvailable(true);
+			dataAvailableEventsEnabled = true;
+		} catch (TooManyListenersException e) {
+			// fall back to blocking reads with receive timeout
+			dataAvailableEventsEnabled = false;
+		}
+
+	}
+
+	/**
+	 * Reads up to <code>length</code> bytes from the serial port. Returns as soon as at least one byte is available.
+	 * If no data is available the calling thread is suspended until the serial port signals new data (or, if the
+	 * serial port does not support data available events, in a blocking read) but at most for the given time.
+	 * 
+	 * @param buffer
+	 *            the buffer to write the received bytes to
+	 * @param offset
+	 *            the position in the buffer to write the first byte to
+	 * @param length
+	 *            the maximum number of bytes to read
+	 * @param timeout
+	 *            the maximum time in ms to wait for data. Must be greater than 0.
+	 * @return the number of bytes read, 0 if no data was received within the timeout.
+	 * @throws IOException
+	 *             if an error occurs reading from the serial port or the waiting thread was interrupted.
+	 */
+	public int read(byte[] buffer, int offset, int length, int timeout) throws IOException {
+		if (is.available() > 0) {
+			return is.read(buffer, offset, Math.min(length, is.available()));
+		}
+
+		if (!dataAvailableEventsEnabled) {
+			try {
+				serialPort.enableReceiveTimeout(timeout);
+			} catch (UnsupportedCommOperationException e) {
+				throw new IOException("Serial port supports neither data available events nor receive timeouts", e);
+			}
+			int numBytesRead = is.read(buffer, offset, length);
+			return (numBytesRead < 0) ? 0 : numBytesRead;
+		}
+
+		synchronized (dataAvailableLock) {
+			if (!dataAvailable) {
+				try {
+					dataAvailableLock.wait(timeout);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for data.");
+				}
+			}
+			dataAvailable = false;
+		}
+
+		int available = is.available();
+		if (available <= 0) {
+			return 0;
+		}
+		return is.read(buffer, offset, Math.min(length, available));
 	}
 
 	/**
@@ -90,6 +159,10 @@ class SerialTransceiver {
 		if (serialPort == null) {
 			return;
 		}
+		if (dataAvailableEventsEnabled) {
+			serialPort.removeEventListener();
+			dataAvailableEventsEnabled = false;
+		}
 		serialPort.close();
 		serialPort = null;
 	}
@@ -102,7 +175,44 @@ class SerialTransceiver {
 		return is;
 	}
 
+	public int getBaudRate() {
+		return baudRate;
+	}
+
+	/**
+	 * Changes the baud rate. If the serial port is open it is reconfigured immediately, otherwise the baud rate is used
+	 * the next time the port is opened.
+	 * 
+	 * @param baudRate
+	 *            the new baud rate
+	 * @throws IOException
+	 *             if the serial port does not support the baud rate. The previous baud rate stays active.
+	 */
+	public void setBaudRate(int baudRate) throws IOException {
+		if (serialPort != null) {
+			try {
+				serialPort.setSerialPortParams(baudRate, dataBits, stopBits, parity);
+			} catch (UnsupportedCommOperationException e) {
+				throw new IOException("Unable to set the baud rate to " + baudRate, e);
+			}
+		}
+		this.baudRate = baudRate;
+	}
+
 	public boolean isClosed() {
 		return (serialPort == null);
 	}
+
+	private class DataAvailableListener implements SerialPortEventListener {
+
+		@Override
+		public void serialEvent(SerialPortEvent event) {
+			if (event.getEventType() == SerialPortEvent.DATA_AVAILABLE) {
+				synchronized (dataAvailableLock) {
+					dataAvailable = true;
+					dataAvailableLock.notifyAll();
+				}
+			}
+		}
+	}
 }
@@ -0,0 +1,305 @@
+package MBUS;
+
+import MBUS.DataRecord.DataValueType;
+import MBUS.DataRecord.Description;
+import MBUS.DataRecord.FunctionField;
+
+/**
+ * The layout of the data records of a telegram: the position, coding and scaling of every record. A meter sends the
+ * same DIBs and VIBs in every response, only the data changes. Once the layout of a meter is known, later telegrams of
+ * the meter are decoded by reading the data fields at fixed positions instead of parsing every DIB and VIB again.
+ *
+ * Before a layout is applied to a telegram it is validated with {@link #matches(byte[], int, int)}: the length of the
+ * variable data structure and all bytes that are not data (DIBs, VIBs, fill bytes, LVAR length fields and the DIF of
+ * manufacturer specific data) must be identical to the telegram the layout was learned from.
+ *
+ * All positions are relative to the CI field. A layout is immutable and can be shared between threads.
+ */
+public class TelegramLayout {
+
+	private final int length;
+
+	// positions and values of all bytes that are not data
+	private final int[] structureOffsets;
+	private final byte[] structureBytes;
+
+	// per data record, -1 as data field if the record has no numeric value
+	private final int[] dataOffsets;
+	private final int[] dataFields;
+	private final double[] scaleFactors;
+	private final double[] additiveCorrections;
+	private final Description[] descriptions;
+	private final DlmsUnit[] units;
+	private final FunctionField[] functionFields;
+	private final long[] storageNumbers;
+	private final int[] tariffs;
+
+	private TelegramLayout(int length, int[] structureOffsets, byte[] structureBytes, int numRecords) {
+		this.length = length;
+		this.structureOffsets = structureOffsets;
+		this.structureBytes = structureBytes;
+		dataOffsets = new int[numRecords];
+		dataFields = new int[numRecords];
+		scaleFactors = new double[numRecords];
+		additiveCorrections = new double[numRecords];
+		descriptions = new Description[numRecords];
+		units = new DlmsUnit[numRecords];
+		functionFields = new FunctionField[numRecords];
+		storageNumbers = new long[numRecords];
+		tariffs = new int[numRecords];
+	}
+
+	/**
+	 * Learns the layout of the given variable data structure. The variable data structure does not have to be decoded.
+	 *
+	 * @param variableDataStructure
+	 *            the variable data structure.
+	 * @param cursor
+	 *            a cursor used to walk over the data records.
+	 * @return the layout.
+	 * @throws DecodingException
+	 *             if the data records could not be decoded.
+	 */
+	public static TelegramLayout learn(VariableDataStructure variableDataStructure, RecordCursor cursor)
+			throws DecodingException {
+		return learn(variableDataStructure.getBuffer(), variableDataStructure.getOffset(),
+				variableDataStructure.getLength(), cursor);
+	}
+
+	/**
+	 * Learns the layout of a variable data structure.
+	 *
+	 * @param buffer
+	 *            the buffer containing the variable data structure.
+	 * @param offset
+	 *            the position of the CI field.
+	 * @param length
+	 *            the length of the variable data structure including the CI field and the trailing checksum and stop
+	 *            byte.
+	 * @param cursor
+	 *            a cursor used to walk over the data records.
+	 * @return the layout.
+	 * @throws DecodingException
+	 *             if the data records could not be decoded.
+	 */
+	public static TelegramLayout learn(byte[] buffer, int offset, int length, RecordCursor cursor)
+			throws DecodingException {
+		// first pass: count the records and the structure bytes
+		cursor.reset(buffer, offset, length);
+		int numRecords = 0;
+		int numStructureBytes = 0;
+		int position = -1;
+		while (cursor.next()) {
+			if (position == -1) {
+				position = cursor.getRecordOffset();
+			}
+			numStructureBytes += cursor.getRecordOffset() - position;
+			numStructureBytes += structureEnd(cursor) - cursor.getRecordOffset();
+			position = cursor.getRecordEnd();
+			numRecords++;
+		}
+		int end = offset + length - 2;
+		if (position == -1) {
+			position = end;
+		}
+		numStructureBytes += Math.min(end - position, 1);
+
+		int[] structureOffsets = new int[numStructureBytes];
+		byte[] structureBytes = new byte[numStructureBytes];
+		TelegramLayout layout = new TelegramLayout(length, structureOffsets, structureBytes, numRecords);
+
+		// second pass: record the structure bytes and the coding of every record
+		cursor.reset(buffer, offset, length);
+		int n = 0;
+		int r = 0;
+		position = -1;
+		while (cursor.next()) {
+			int recordOffset = cursor.getRecordOffset();
+			if (position == -1) {
+				position = recordOffset;
+			}
+			// fill bytes before the record
+			for (int i = position; i < recordOffset; i++) {
+				structureOffsets[n] = i - offset;
+				structureBytes[n++] = buffer[i];
+			}
+			int structureEnd = structureEnd(cursor);
+			for (int i = recordOffset; i < structureEnd; i++) {
+				structureOffsets[n] = i - offset;
+				structureBytes[n++] = buffer[i];
+			}
+			position = cursor.getRecordEnd();
+
+			DataRecord record = cursor.getRecord();
+			DataValueType dataValueType = record.getDataValueType();
+			if (dataValueType == DataValueType.LONG || dataValueType == DataValueType.DOUBLE
+					|| dataValueType == DataValueType.BCD) {
+				layout.dataFields[r] = record.getDataField();
+			}
+			else {
+				layout.dataFields[r] = -1;
+			}
+			layout.dataOffsets[r] = record.getDataOffset() - offset;
+			layout.scaleFactors[r] = DataRecord.powerOfTen(record.getMultiplierExponent());
+			layout.additiveCorrections[r] = record.getAdditiveCorrection();
+			layout.descriptions[r] = record.getDescription();
+			layout.units[r] = record.getUnit();
+			layout.functionFields[r] = record.getFunctionField();
+			layout.storageNumbers[r] = record.getStorageNumber();
+			layout.tariffs[r] = record.getTariff();
+			r++;
+		}
+		if (position == -1) {
+			position = end;
+		}
+		if (position < end) {
+			// DIF of the manufacturer specific data
+			structureOffsets[n] = position - offset;
+			structureBytes[n] = buffer[position];
+		}
+
+		return layout;
+	}
+
+	/**
+	 * Returns the end of the bytes of the current record of the cursor that are not data. The length field of an LVAR
+	 * record belongs to the structure.
+	 */
+	private static int structureEnd(RecordCursor cursor) {
+		DataRecord record = cursor.getRecord();
+		if (record.getDataField() == 0x0d) {
+			return record.getDataOffset() + 1;
+		}
+		return record.getDataOffset();
+	}
+
+	/**
+	 * Checks whether the given variable data structure has this layout.
+	 *
+	 * @param buffer
+	 *            the buffer containing the variable data structure.
+	 * @param offset
+	 *            the position of the CI field.
+	 * @param length
+	 *            the length of the variable data structure including the CI field and the trailing checksum and stop
+	 *            byte.
+	 * @return true if the layout can be applied to the variable data structure.
+	 */
+	public boolean matches(byte[] buffer, int offset, int length) {
+		if (length != this.length) {
+			return false;
+		}
+		for (int i = 0; i < structureOffsets.length; i++) {
+			if (buffer[offset + structureOffsets[i]] != structureBytes[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public boolean matches(VariableDataStructure variableDataStructure) {
+		return matches(variableDataStructure.getBuffer(), variableDataStructure.getOffset(),
+				variableDataStructure.getLength());
+	}
+
+	/**
+	 * Reads the scaled values of all data records from the given variable data structure. The variable data structure
+	 * must match this layout.
+	 *
+	 * @param buffer
+	 *            the buffer containing the variable data structure.
+	 * @param offset
+	 *            the position of the CI field.
+	 * @param values
+	 *            receives the scaled value of every data record, NaN for records without a numeric value. Must have at
+	 *            least {@link #size()} elements.
+	 */
+	public void decode(byte[] buffer, int offset, double[] values) {
+		for (int r = 0; r < dataOffsets.length; r++) {
+			values[r] = getScaledDoubleValue(buffer, offset, r);
+		}
+	}
+
+	/**
+	 * Reads the scaled value of a single data record from the given variable data structure. The variable data
+	 * structure must match this layout.
+	 *
+	 * @param buffer
+	 *            the buffer containing the variable data structure.
+	 * @param offset
+	 *            the position of the CI field.
+	 * @param index
+	 *            the index of the data record.
+	 * @return the scaled value or NaN if the record has no numeric value.
+	 */
+	public double getScaledDoubleValue(byte[] buffer, int offset, int index) {
+		int dataField = dataFields[index];
+		if (dataField == -1) {
+			return Double.NaN;
+		}
+		return DataRecord.readNumber(buffer, offset + dataOffsets[index], dataField) * scaleFactors[index]
+				+ additiveCorrections[index];
+	}
+
+	/**
+	 * Returns the index of the first data record with the given description, function field, storage number and
+	 * tariff.
+	 *
+	 * @return the index or -1 if there is no such record.
+	 */
+	public int indexOf(Description description, FunctionField functionField, long storageNumber, int tariff) {
+		for (int r = 0; r < descriptions.length; r++) {
+			if (descriptions[r] == description && functionFields[r] == functionField
+					&& storageNumbers[r] == storageNumber && tariffs[r] == tariff) {
+				return r;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the number of data records.
+	 */
+	public int size() {
+		return dataOffsets.length;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Returns the position of the data field of a record relative to the CI field.
+	 */
+	public int getDataOffset(int index) {
+		return dataOffsets[index];
+	}
+
+	public Description getDescription(int index) {
+		return descriptions[index];
+	}
+
+	public DlmsUnit getUnit(int index) {
+		return units[index];
+	}
+
+	public FunctionField getFunctionField(int index) {
+		return functionFields[index];
+	}
+
+	public long getStorageNumber(int index) {
+		return storageNumbers[index];
+	}
+
+	public int getTariff(int index) {
+		return tariffs[index];
+	}
+
+	/**
+	 * Returns whether a record has a numeric value that can be read with this layout.
+	 */
+	public boolean isNumeric(int index) {
+		return dataFields[index] != -1;
+	}
+
+}
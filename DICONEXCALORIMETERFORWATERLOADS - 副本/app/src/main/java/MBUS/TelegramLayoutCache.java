@@ -0,0 +1,139 @@
+package MBUS;
+
+/**
+ * Caches the {@link TelegramLayout} of every meter. Meters are identified by the secondary address in the long header
+ * of their responses. Responses without long header are identified by the primary address of the meter.
+ *
+ * The first telegram of a meter is decoded with a {@link RecordCursor} to learn its layout. Every later telegram is
+ * checked against the cached layout and, if it matches, decoded by reading the data fields at their known positions.
+ * If the layout of a meter changed, e.g. because it sends a different telegram of a multi-telegram readout or after a
+ * firmware update, the new layout is learned and replaces the old one.
+ *
+ * The cache is not thread-safe.
+ */
+public class TelegramLayoutCache {
+
+	private final static int NUM_PRIMARY_ADDRESSES = 251;
+
+	private final RecordCursor cursor = new RecordCursor();
+	private final LongMap<TelegramLayout> layoutsBySecondaryAddress = new LongMap<TelegramLayout>();
+	private final TelegramLayout[] layoutsByPrimaryAddress = new TelegramLayout[NUM_PRIMARY_ADDRESSES];
+
+	private long numHits = 0;
+	private long numMisses = 0;
+
+	/**
+	 * Returns the layout of the given variable data structure, learning it if the meter is not known yet or its layout
+	 * changed.
+	 *
+	 * @param primaryAddress
+	 *            the primary address the response was received from. Only used if the response has no long header.
+	 * @param variableDataStructure
+	 *            the variable data structure. Does not have to be decoded.
+	 * @return the layout matching the variable data structure.
+	 * @throws DecodingException
+	 *             if the layout had to be learned and the data records could not be decoded.
+	 */
+	public TelegramLayout getLayout(int primaryAddress, VariableDataStructure variableDataStructure)
+			throws DecodingException {
+		byte[] buffer = variableDataStructure.getBuffer();
+		int offset = variableDataStructure.getOffset();
+		int length = variableDataStructure.getLength();
+
+		boolean longHeader = (buffer[offset] & 0xff) == 0x72 && length >= 9;
+		long key = 0;
+		TelegramLayout layout;
+		if (longHeader) {
+			key = SecondaryAddress.toLong(buffer, offset + 1);
+			layout = layoutsBySecondaryAddress.get(key);
+		}
+		else {
+			checkPrimaryAddress(primaryAddress);
+			layout = layoutsByPrimaryAddress[primaryAddress];
+		}
+
+		if (layout != null && layout.matches(buffer, offset, length)) {
+			numHits++;
+			return layout;
+		}
+
+		numMisses++;
+		layout = TelegramLayout.learn(buffer, offset, length, cursor);
+		if (longHeader) {
+			layoutsBySecondaryAddress.put(key, layout);
+		}
+		else {
+			layoutsByPrimaryAddress[primaryAddress] = layout;
+		}
+		return layout;
+	}
+
+	/**
+	 * Reads the scaled values of all data records of the given variable data structure using the cached layout of the
+	 * meter.
+	 *
+	 * @param primaryAddress
+	 *            the primary address the response was received from. Only used if the response has no long header.
+	 * @param variableDataStructure
+	 *            the variable data structure. Does not have to be decoded.
+	 * @param values
+	 *            receives the scaled value of every data record in the order of the layout, NaN for records without a
+	 *            numeric value.
+	 * @return the layout that was used. The values belong to the records of this layout.
+	 * @throws DecodingException
+	 *             if the layout had to be learned and the data records could not be decoded or if the values array is
+	 *             too small.
+	 */
+	public TelegramLayout decode(int primaryAddress, VariableDataStructure variableDataStructure, double[] values)
+			throws DecodingException {
+		TelegramLayout layout = getLayout(primaryAddress, variableDataStructure);
+		if (values.length < layout.size()) {
+			throw new DecodingException("Values array too small for " + layout.size() + " data records.");
+		}
+		layout.decode(variableDataStructure.getBuffer(), variableDataStructure.getOffset(), values);
+		return layout;
+	}
+
+	/**
+	 * Removes the layout learned for a meter identified by its primary address.
+	 */
+	public void remove(int primaryAddress) {
+		checkPrimaryAddress(primaryAddress);
+		layoutsByPrimaryAddress[primaryAddress] = null;
+	}
+
+	/**
+	 * Removes the layout learned for a meter identified by its secondary address.
+	 */
+	public void remove(SecondaryAddress secondaryAddress) {
+		layoutsBySecondaryAddress.remove(secondaryAddress.asLong());
+	}
+
+	public void clear() {
+		layoutsBySecondaryAddress.clear();
+		for (int i = 0; i < layoutsByPrimaryAddress.length; i++) {
+			layoutsByPrimaryAddress[i] = null;
+		}
+	}
+
+	/**
+	 * Returns the number of telegrams that were decoded with a cached layout.
+	 */
+	public long getNumberOfHits() {
+		return numHits;
+	}
+
+	/**
+	 * Returns the number of telegrams whose layout had to be learned.
+	 */
+	public long getNumberOfMisses() {
+		return numMisses;
+	}
+
+	private static void checkPrimaryAddress(int primaryAddress) {
+		if (primaryAddress < 0 || primaryAddress >= NUM_PRIMARY_ADDRESSES) {
+			throw new IllegalArgumentException("invalid primary address: " + primaryAddress);
+		}
+	}
+
+}
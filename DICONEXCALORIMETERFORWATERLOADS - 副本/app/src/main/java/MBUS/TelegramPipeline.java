@@ -0,0 +1,266 @@
+package MBUS;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decrypts and decodes a stream of telegrams on several threads, e.g. when replaying captured logs or in a wireless
+ * collector that receives telegrams faster than a single thread can decode them.
+ *
+ * The pipeline consists of a fixed number of lanes, each with its own queue and thread. All telegrams of a meter are
+ * put into the same lane, so the listener is notified about the telegrams of a meter in the order they were submitted,
+ * while telegrams of different meters are decoded in parallel. Meters are identified by the link layer secondary
+ * address if one is given, otherwise by the secondary address of the long header or by the address field of the frame.
+ *
+ * A submitted buffer is decoded (and decrypted) in place and handed to the listener, so the caller must not reuse it.
+ * If a lane is full, submitting blocks until the lane has caught up.
+ */
+public class TelegramPipeline {
+
+	/**
+	 * Notified about the decoded telegrams. Called from the lane threads: different meters concurrently, the telegrams
+	 * of a single meter one after the other.
+	 */
+	public interface Listener {
+		public void newTelegram(VariableDataStructure variableDataStructure);
+
+		/**
+		 * Called if a telegram could not be decoded.
+		 */
+		public void decodingFailed(byte[] buffer, int offset, int length, Exception e);
+	}
+
+	private static class Task {
+		final byte[] buffer;
+		final int offset;
+		final int length;
+		final SecondaryAddress linkLayerSecondaryAddress;
+		final boolean frame;
+
+		Task(byte[] buffer, int offset, int length, SecondaryAddress linkLayerSecondaryAddress, boolean frame) {
+			this.buffer = buffer;
+			this.offset = offset;
+			this.length = length;
+			this.linkLayerSecondaryAddress = linkLayerSecondaryAddress;
+			this.frame = frame;
+		}
+	}
+
+	private final static Task STOP = new Task(null, 0, 0, null, false);
+
+	private class Lane implements Runnable {
+
+		final BlockingQueue<Task> queue;
+		final Thread thread;
+
+		// a message object is reused for all frames of the lane
+		private final MBusMessage message = new MBusMessage();
+
+		Lane(int queueCapacity, String name) {
+			queue = new ArrayBlockingQueue<Task>(queueCapacity);
+			thread = new Thread(this, name);
+			thread.setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					Task task = queue.take();
+					if (task == STOP) {
+						return;
+					}
+					process(task);
+				}
+			} catch (InterruptedException e) {
+				// stop requested
+			}
+		}
+
+		private void process(Task task) {
+			try {
+				VariableDataStructure variableDataStructure;
+				if (task.frame) {
+					message.decode(task.buffer, task.offset, task.length);
+					variableDataStructure = message.getVariableDataResponse();
+					if (variableDataStructure == null) {
+						// single character
+						return;
+					}
+				}
+				else {
+					variableDataStructure = new VariableDataStructure(task.buffer, task.offset, task.length,
+							task.linkLayerSecondaryAddress, null);
+				}
+				variableDataStructure.setKeyRegistry(keyRegistry);
+				variableDataStructure.decode();
+				numDecoded.incrementAndGet();
+				listener.newTelegram(variableDataStructure);
+			} catch (DecodingException e) {
+				numFailed.incrementAndGet();
+				listener.decodingFailed(task.buffer, task.offset, task.length, e);
+			} catch (RuntimeException e) {
+				numFailed.incrementAndGet();
+				listener.decodingFailed(task.buffer, task.offset, task.length, e);
+			}
+		}
+	}
+
+	private final Lane[] lanes;
+	private final AesKeyRegistry keyRegistry;
+	private final Listener listener;
+
+	private final AtomicLong numDecoded = new AtomicLong();
+	private final AtomicLong numFailed = new AtomicLong();
+
+	/**
+	 * Creates a pipeline and starts its lane threads.
+	 *
+	 * @param numLanes
+	 *            the number of lanes, usually the number of processor cores.
+	 * @param queueCapacity
+	 *            the number of telegrams each lane buffers before submitting blocks.
+	 * @param keyRegistry
+	 *            the keys of encrypted meters, may be null.
+	 * @param listener
+	 *            the listener notified about the decoded telegrams.
+	 */
+	public TelegramPipeline(int numLanes, int queueCapacity, AesKeyRegistry keyRegistry, Listener listener) {
+		if (numLanes <= 0) {
+			throw new IllegalArgumentException("number of lanes must be greater than 0");
+		}
+		this.keyRegistry = keyRegistry;
+		this.listener = listener;
+		lanes = new Lane[numLanes];
+		for (int i = 0; i < numLanes; i++) {
+			lanes[i] = new Lane(queueCapacity, "TelegramPipeline-" + i);
+		}
+		for (Lane lane : lanes) {
+			lane.thread.start();
+		}
+	}
+
+	/**
+	 * Creates a pipeline with one lane per available processor.
+	 */
+	public TelegramPipeline(AesKeyRegistry keyRegistry, Listener listener) {
+		this(Runtime.getRuntime().availableProcessors(), 256, keyRegistry, listener);
+	}
+
+	/**
+	 * Submits a wired M-Bus frame (FT 1.2 long frame or single character). Single characters are ignored.
+	 *
+	 * @param buffer
+	 *            the buffer containing the frame.
+	 * @param offset
+	 *            the position of the first byte of the frame.
+	 * @param length
+	 *            the length of the frame.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for the lane.
+	 */
+	public void submitFrame(byte[] buffer, int offset, int length) throws InterruptedException {
+		long key;
+		if (length >= 15 && (buffer[offset + 6] & 0xff) == 0x72) {
+			key = SecondaryAddress.toLong(buffer, offset + 7);
+		}
+		else if (length > 5) {
+			key = buffer[offset + 5] & 0xff;
+		}
+		else {
+			key = 0;
+		}
+		submit(key, new Task(buffer, offset, length, null, true));
+	}
+
+	/**
+	 * Submits a variable data structure, e.g. the application layer of a wireless M-Bus telegram.
+	 *
+	 * @param linkLayerSecondaryAddress
+	 *            the secondary address of the link layer, needed to decrypt the telegram. May be null for unencrypted
+	 *            telegrams.
+	 * @param buffer
+	 *            the buffer containing the variable data structure.
+	 * @param offset
+	 *            the position of the CI field.
+	 * @param length
+	 *            the length of the variable data structure.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for the lane.
+	 */
+	public void submit(SecondaryAddress linkLayerSecondaryAddress, byte[] buffer, int offset, int length)
+			throws InterruptedException {
+		long key;
+		if (linkLayerSecondaryAddress != null) {
+			key = linkLayerSecondaryAddress.asLong();
+		}
+		else if (length >= 9 && (buffer[offset] & 0xff) == 0x72) {
+			key = SecondaryAddress.toLong(buffer, offset + 1);
+		}
+		else {
+			key = 0;
+		}
+		submit(key, new Task(buffer, offset, length, linkLayerSecondaryAddress, false));
+	}
+
+	private void submit(long key, Task task) throws InterruptedException {
+		long hash = key * 0x9E3779B97F4A7C15L;
+		int lane = (int) ((hash >>> 32) % lanes.length);
+		lanes[lane].queue.put(task);
+	}
+
+	/**
+	 * Stops the lanes after all submitted telegrams have been decoded. Telegrams must not be submitted afterwards.
+	 *
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for a full lane.
+	 */
+	public void shutdown() throws InterruptedException {
+		for (Lane lane : lanes) {
+			lane.queue.put(STOP);
+		}
+	}
+
+	/**
+	 * Waits until all lanes have stopped after {@link #shutdown()}.
+	 *
+	 * @return true if all lanes stopped, false if the timeout elapsed.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting.
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+		for (Lane lane : lanes) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining > 0) {
+				lane.thread.join(remaining);
+			}
+			if (lane.thread.isAlive()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of telegrams waiting to be decoded.
+	 */
+	public int getQueueLength() {
+		int length = 0;
+		for (Lane lane : lanes) {
+			length += lane.queue.size();
+		}
+		return length;
+	}
+
+	public long getNumberOfDecodedTelegrams() {
+		return numDecoded.get();
+	}
+
+	public long getNumberOfFailedTelegrams() {
+		return numFailed.get();
+	}
+
+}
@@ -19,6 +19,7 @@
  *
  */
 package MBUS;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -37,6 +38,8 @@ public class VariableDataStructure {
 	private final int length;
 	private final SecondaryAddress linkLayerSecondaryAddress;
 	HashMap<String, byte[]> keyMap;
+	private AesKeyRegistry keyRegistry;
+	private boolean payloadDecrypted = false;
 
 	private SecondaryAddress secondaryAddress;
 	private int accessNumber;
@@ -48,6 +51,7 @@ public class VariableDataStructure {
 	private boolean moreRecordsFollow = false;
 
 	private boolean decoded = false;
+	private boolean lazy = false;
 
 	private List<DataRecord> dataRecords;
 
@@ -60,7 +64,64 @@ public class VariableDataStructure {
 		this.keyMap = keyMap;
 	}
 
+	/**
+	 * Creates a variable data structure from the remaining bytes of the given buffer, starting with the CI field. The
+	 * position of the buffer is not changed. A heap buffer is used in place, so it must not be refilled while the
+	 * variable data structure is used. A direct buffer, e.g. one filled by a USB request, is copied once because the
+	 * decoder indexes a byte array.
+	 * 
+	 * @param data
+	 *            the buffer containing the variable data structure between its position and its limit.
+	 * @param linkLayerSecondaryAddress
+	 *            the secondary address of the link layer, may be null.
+	 * @param keyMap
+	 *            the keys of encrypted meters, may be null.
+	 * @return the variable data structure, not decoded yet.
+	 */
+	public static VariableDataStructure wrap(ByteBuffer data, SecondaryAddress linkLayerSecondaryAddress,
+			HashMap<String, byte[]> keyMap) throws DecodingException {
+		if (data.hasArray()) {
+			return new VariableDataStructure(data.array(), data.arrayOffset() + data.position(), data.remaining(),
+					linkLayerSecondaryAddress, keyMap);
+		}
+		byte[] buffer = new byte[data.remaining()];
+		data.duplicate().get(buffer);
+		return new VariableDataStructure(buffer, 0, buffer.length, linkLayerSecondaryAddress, keyMap);
+	}
+
+	/**
+	 * Sets the registry used to decrypt encrypted data records. If a registry is set, it is used instead of the key map
+	 * and the data records are decrypted in place, i.e. the buffer of this variable data structure is overwritten with
+	 * the plaintext and the encryption mode in its header is set to none. After decoding,
+	 * {@link #getEncryptionMode()} returns {@link EncryptionMode#NONE} as well.
+	 * 
+	 * @param keyRegistry
+	 *            the key registry, may be null.
+	 */
+	public void setKeyRegistry(AesKeyRegistry keyRegistry) {
+		this.keyRegistry = keyRegistry;
+	}
+
 	public void decode() throws DecodingException {
+		lazy = false;
+		decodeInternal();
+	}
+
+	/**
+	 * Decodes the headers and determines the boundaries of the data records without decoding them. The fields of a data
+	 * record are decoded the first time they are accessed. Use this if only a few values of large telegrams are needed.
+	 * The data record bytes are copied once so that the data records stay valid if the buffer of this variable data
+	 * structure is reused.
+	 * 
+	 * @throws DecodingException
+	 *             if the headers or the structure of the data records are invalid.
+	 */
+	public void decodeLazily() throws DecodingException {
+		lazy = true;
+		decodeInternal();
+	}
+
+	private void decodeInternal() throws DecodingException {
 		try {
 
 			int ciField = buffer[offset] & 0xff;
@@ -75,7 +136,11 @@ public class VariableDataStructure {
 				break;
 			case 0x7a:
 				decodeShortHeader(buffer, offset + 1);
-				if (encryptionMode == EncryptionMode.AES_CBC_IV) {
+				if (encryptionMode == EncryptionMode.AES_CBC_IV && keyRegistry != null) {
+					decryptInPlace();
+					decodeDataRecords(buffer, offset + 5, length - 5);
+				}
+				else if (encryptionMode == EncryptionMode.AES_CBC_IV) {
 					encryptedVariableDataResponse = new byte[length - 5];
 					System.arraycopy(buffer, offset + 5, encryptedVariableDataResponse, 0, length - 5);
 
@@ -112,6 +177,18 @@ public class VariableDataStructure {
 		decoded = true;
 	}
 
+	byte[] getBuffer() {
+		return buffer;
+	}
+
+	int getOffset() {
+		return offset;
+	}
+
+	int getLength() {
+		return length;
+	}
+
 	public SecondaryAddress getSecondaryAddress() {
 		return secondaryAddress;
 	}
@@ -165,6 +242,11 @@ public class VariableDataStructure {
 
 		dataRecords = new ArrayList<DataRecord>();
 
+		if (lazy) {
+			buffer = Arrays.copyOfRange(buffer, offset, offset + length);
+			offset = 0;
+		}
+
 		int i = offset;
 
 		while (i < offset + length - 2) {
@@ -187,7 +269,12 @@ public class VariableDataStructure {
 			}
 
 			DataRecord dataRecord = new DataRecord();
-			i = dataRecord.decode(buffer, i, length);
+			if (lazy) {
+				i = dataRecord.index(buffer, i, length);
+			}
+			else {
+				i = dataRecord.decode(buffer, i, length);
+			}
 
 			dataRecords.add(dataRecord);
 
@@ -228,6 +315,27 @@ public class VariableDataStructure {
 		return encryptedVariableDataResponse;
 	}
 
+	private void decryptInPlace() throws DecodingException {
+		if (payloadDecrypted) {
+			// decoded before
+			return;
+		}
+		if (linkLayerSecondaryAddress == null) {
+			throw new DecodingException("Unable to decode encrypted payload without link layer secondary address.");
+		}
+		if (numberOfEncryptedBlocks * 16 > length - 5) {
+			throw new DecodingException("Number of encrypted exceeds payload size!");
+		}
+		keyRegistry.decrypt(linkLayerSecondaryAddress.asLong(), accessNumber, buffer, offset + 5,
+				numberOfEncryptedBlocks * 16);
+		// the buffer now holds plain data records, mark them as unencrypted so that they can be read with a
+		// RecordCursor, a TelegramLayoutCache or a ReadingEncoder. The field has to agree with the header, which is
+		// decoded again by the next decode().
+		buffer[offset + 4] &= 0xf0;
+		encryptionMode = EncryptionMode.NONE;
+		payloadDecrypted = true;
+	}
+
 	private byte[] createInitializationVector(SecondaryAddress linkLayerSecondaryAddress) {
 		byte[] initializationVector = new byte[16];
 
@@ -0,0 +1,747 @@
+package MBUS;
+
+import MBUS.DataRecord.Description;
+
+/**
+ * Lookup tables for the value information field (VIF). There is one table with 256 entries for each of the primary VIF
+ * codes, the codes following the extension VIF 0xFD (table 28 of DIN EN 13757-3:2011) and the codes following the
+ * extension VIF 0xFB (table 29). Every entry holds the description, the unit and the multiplier exponent of the code so
+ * that decoding a VIF is a single array access.
+ *
+ * The tables are computed once when the class is loaded.
+ */
+final class VifTables {
+
+	static final int PRIMARY = 0;
+	static final int MAIN_EXTENDED = 1;
+	static final int ALTERNATE_EXTENDED = 2;
+
+	static final int DATE_TYPE_NONE = 0;
+	static final int DATE_TYPE_F = 1;
+	static final int DATE_TYPE_G = 2;
+
+	private static final Description[][] descriptions = new Description[3][256];
+	private static final DlmsUnit[][] units = new DlmsUnit[3][256];
+	private static final byte[][] multiplierExponents = new byte[3][256];
+	private static final byte[][] dateTypes = new byte[3][256];
+
+	static {
+		Builder builder = new Builder();
+		for (int table = PRIMARY; table <= ALTERNATE_EXTENDED; table++) {
+			for (int code = 0; code < 256; code++) {
+				builder.description = null;
+				builder.unit = null;
+				builder.multiplierExponent = 0;
+				builder.dateTypeF = false;
+				builder.dateTypeG = false;
+
+				try {
+					switch (table) {
+					case PRIMARY:
+						builder.decodeMainVif(code);
+						break;
+					case MAIN_EXTENDED:
+						builder.decodeMainExtendedVif((byte) code);
+						break;
+					default:
+						builder.decodeAlternateExtendedVif((byte) code);
+						break;
+					}
+				} catch (IllegalArgumentException e) {
+					// 0xfb and 0xfd are extension indicators and never looked up in the primary table
+					builder.description = Description.NOT_SUPPORTED;
+				}
+
+				descriptions[table][code] = builder.description;
+				units[table][code] = builder.unit;
+				multiplierExponents[table][code] = (byte) builder.multiplierExponent;
+				if (builder.dateTypeF) {
+					dateTypes[table][code] = DATE_TYPE_F;
+				}
+				else if (builder.dateTypeG) {
+					dateTypes[table][code] = DATE_TYPE_G;
+				}
+			}
+		}
+	}
+
+	private VifTables() {
+	}
+
+	static Description getDescription(int table, int code) {
+		return descriptions[table][code];
+	}
+
+	static DlmsUnit getUnit(int table, int code) {
+		return units[table][code];
+	}
+
+	static int getMultiplierExponent(int table, int code) {
+		return multiplierExponents[table][code];
+	}
+
+	static int getDateType(int table, int code) {
+		return dateTypes[table][code];
+	}
+
+	/**
+	 * Decodes a single VIF code. Only used to fill the tables.
+	 */
+	private static class Builder {
+
+		Description description;
+		DlmsUnit unit;
+		int multiplierExponent;
+		boolean dateTypeF;
+		boolean dateTypeG;
+
+		void decodeTimeUnit(int vif) {
+			if ((vif & 0x02) == 0) {
+				if ((vif & 0x01) == 0) {
+					unit = DlmsUnit.SECOND;
+				}
+				else {
+					unit = DlmsUnit.MIN;
+				}
+			}
+			else {
+				if ((vif & 0x01) == 0) {
+					unit = DlmsUnit.HOUR;
+				}
+				else {
+					unit = DlmsUnit.DAY;
+				}
+			}
+		}
+
+		void decodeMainVif(int vif) {
+			description = Description.NOT_SUPPORTED;
+
+			if ((vif & 0x40) == 0) {
+				// E0
+				if ((vif & 0x20) == 0) {
+					// E00
+					if ((vif & 0x10) == 0) {
+						// E000
+						if ((vif & 0x08) == 0) {
+							// E000 0
+							description = Description.ENERGY;
+							multiplierExponent = (vif & 0x07) - 3;
+							unit = DlmsUnit.WATT_HOUR;
+						}
+						else {
+							// E000 1
+							description = Description.ENERGY;
+							multiplierExponent = vif & 0x07;
+							unit = DlmsUnit.JOULE;
+						}
+					}
+					else {
+						// E001
+						if ((vif & 0x08) == 0) {
+							// E001 0
+							description = Description.VOLUME;
+							multiplierExponent = (vif & 0x07) - 6;
+							unit = DlmsUnit.CUBIC_METRE;
+						}
+						else {
+							// E001 1
+							description = Description.MASS;
+							multiplierExponent = (vif & 0x07) - 3;
+							unit = DlmsUnit.KILOGRAM;
+						}
+					}
+				}
+				else {
+					// E01
+					if ((vif & 0x10) == 0) {
+						// E010
+						if ((vif & 0x08) == 0) {
+							// E010 0
+							if ((vif & 0x04) == 0) {
+								// E010 00
+								description = Description.ON_TIME;
+							}
+							else {
+								// E010 01
+								description = Description.OPERATING_TIME;
+							}
+							decodeTimeUnit(vif);
+						}
+						else {
+							// E010 1
+							description = Description.POWER;
+							multiplierExponent = (vif & 0x07) - 3;
+							unit = DlmsUnit.WATT;
+						}
+					}
+					else {
+						// E011
+						if ((vif & 0x08) == 0) {
+							// E011 0
+							description = Description.POWER;
+							multiplierExponent = vif & 0x07;
+							unit = DlmsUnit.JOULE_PER_HOUR;
+						}
+						else {
+							// E011 1
+							description = Description.VOLUME_FLOW;
+							multiplierExponent = (vif & 0x07) - 6;
+							unit = DlmsUnit.CUBIC_METRE_PER_HOUR;
+						}
+					}
+				}
+			}
+			else {
+				// E1
+				if ((vif & 0x20) == 0) {
+					// E10
+					if ((vif & 0x10) == 0) {
+						// E100
+						if ((vif & 0x08) == 0) {
+							// E100 0
+							description = Description.VOLUME_FLOW_EXT;
+							multiplierExponent = (vif & 0x07) - 7;
+							unit = DlmsUnit.CUBIC_METRE_PER_MINUTE;
+						}
+						else {
+							// E100 1
+							description = Description.VOLUME_FLOW_EXT;
+							multiplierExponent = (vif & 0x07) - 9;
+							unit = DlmsUnit.CUBIC_METRE_PER_SECOND;
+						}
+					}
+					else {
+						// E101
+						if ((vif & 0x08) == 0) {
+							// E101 0
+							description = Description.MASS_FLOW;
+							multiplierExponent = (vif & 0x07) - 3;
+							unit = DlmsUnit.KILOGRAM_PER_HOUR;
+						}
+						else {
+							// E101 1
+							if ((vif & 0x04) == 0) {
+								// E101 10
+								description = Description.FLOW_TEMPERATURE;
+								multiplierExponent = (vif & 0x03) - 3;
+								unit = DlmsUnit.DEGREE_CELSIUS;
+							}
+							else {
+								// E101 11
+								description = Description.RETURN_TEMPERATURE;
+								multiplierExponent = (vif & 0x03) - 3;
+								unit = DlmsUnit.DEGREE_CELSIUS;
+							}
+						}
+					}
+				}
+				else {
+					// E11
+					if ((vif & 0x10) == 0) {
+						// E110
+						if ((vif & 0x08) == 0) {
+							// E110 0
+							if ((vif & 0x04) == 0) {
+								// E110 00
+								description = Description.TEMPERATURE_DIFFERENCE;
+								multiplierExponent = (vif & 0x03) - 3;
+								unit = DlmsUnit.KELVIN;
+							}
+							else {
+								// E110 01
+								description = Description.EXTERNAL_TEMPERATURE;
+								multiplierExponent = (vif & 0x03) - 3;
+								unit = DlmsUnit.DEGREE_CELSIUS;
+							}
+						}
+						else {
+							// E110 1
+							if ((vif & 0x04) == 0) {
+								// E110 10
+								description = Description.PRESSURE;
+								multiplierExponent = (vif & 0x03) - 3;
+								unit = DlmsUnit.BAR;
+							}
+							else {
+								// E110 11
+								if ((vif & 0x02) == 0) {
+									// E110 110
+									if ((vif & 0x01) == 0) {
+										// E110 1100
+										description = Description.DATE;
+										dateTypeG = true;
+									}
+									else {
+										// E110 1101
+										description = Description.DATE_TIME;
+										dateTypeF = true;
+									}
+								}
+								else {
+									// E110 111
+									if ((vif & 0x01) == 0) {
+										// E110 1110
+										description = Description.HCA;
+										unit = DlmsUnit.RESERVED;
+									}
+									else {
+										description = Description.NOT_SUPPORTED;
+									}
+
+								}
+
+							}
+						}
+					}
+					else {
+						// E111
+						if ((vif & 0x08) == 0) {
+							// E111 0
+							if ((vif & 0x04) == 0) {
+								description = Description.AVERAGING_DURATION;
+							}
+							else {
+								description = Description.ACTUALITY_DURATION;
+							}
+							decodeTimeUnit(vif);
+						}
+						else {
+							// E111 1
+							if ((vif & 0x04) == 0) {
+								// E111 10
+								if ((vif & 0x02) == 0) {
+									// E111 100
+									if ((vif & 0x01) == 0) {
+										// E111 1000
+										description = Description.FABRICATION_NO;
+									}
+									else {
+										// E111 1001
+										description = Description.EXTENDED_IDENTIFICATION;
+									}
+								}
+								else {
+									// E111 101
+									if ((vif & 0x01) == 0) {
+										description = Description.ADDRESS;
+									}
+									else {
+										// E111 1011
+										// Codes used with extension indicator 0xFB (table 29 of DIN EN 13757-3:2011)
+										throw new IllegalArgumentException(
+												"Trying to decode a mainVIF even though it is an alternate extended vif");
+									}
+								}
+							}
+							else {
+								// E111 11
+								if ((vif & 0x02) == 0) {
+									// E111 110
+									if ((vif & 0x01) == 0) {
+										// E111 1100
+										// Extension indicator 0xFC: VIF is given in following string
+										description = Description.NOT_SUPPORTED;
+									}
+									else {
+										// E111 1101
+										// Extension indicator 0xFD: main VIFE-code extension table (table 28 of DIN EN
+										// 13757-3:2011)
+										throw new IllegalArgumentException(
+												"Trying to decode a mainVIF even though it is a main extended vif");
+
+									}
+								}
+
+							}
+
+						}
+					}
+				}
+
+			}
+
+		}
+
+		// implements table 28 of DIN EN 13757-3:2011
+		void decodeMainExtendedVif(byte vif) {
+			if ((vif & 0x70) == 0x40) {
+				description = Description.VOLTAGE;
+				multiplierExponent = (vif & 0x0f) - 9;
+				unit = DlmsUnit.VOLT;
+			}
+			else if ((vif & 0x70) == 0x50) {
+				description = Description.CURRENT;
+				multiplierExponent = (vif & 0x0f) - 12;
+				unit = DlmsUnit.AMPERE;
+			}
+			else if ((vif & 0x7c) == 0x6c) {
+				description = Description.OPERATING_TIME_BATTERY;
+				switch (vif & 0x03) {
+				case 0:
+					unit = DlmsUnit.HOUR;
+					break;
+				case 1:
+					unit = DlmsUnit.DAY;
+					break;
+				case 2:
+					unit = DlmsUnit.MONTH;
+					break;
+				case 3:
+					unit = DlmsUnit.YEAR;
+				}
+			}
+			else if ((vif & 0x7f) == 0x0b) {
+				description = Description.PARAMETER_SET_ID;
+			}
+			else if ((vif & 0x7f) == 0x0c) {
+				description = Description.MODEL_VERSION;
+			}
+			else if ((vif & 0x7f) == 0x0d) {
+				description = Description.HARDWARE_VERSION;
+			}
+			else if ((vif & 0x7f) == 0x0e) {
+				description = Description.FIRMWARE_VERSION;
+			}
+			else if ((vif & 0x7f) == 0x11) {
+				description = Description.CUSTOMER;
+			}
+			else if ((vif & 0x7f) == 0x17) {
+				description = Description.ERROR_FLAGS;
+			}
+			else if ((vif & 0x7f) >= 0x77) {
+				description = Description.RESERVED;
+			}
+			else {
+				description = Description.NOT_SUPPORTED;
+			}
+		}
+
+		// implements table 29 of DIN EN 13757-3:2011
+		void decodeAlternateExtendedVif(byte vif) {
+			description = Description.NOT_SUPPORTED; // default value
+
+			if ((vif & 0x40) == 0) {
+				// E0
+				if ((vif & 0x20) == 0) {
+					// E00
+					if ((vif & 0x10) == 0) {
+						// E000
+						if ((vif & 0x08) == 0) {
+							// E000 0
+							if ((vif & 0x04) == 0) {
+								// E000 00
+								if ((vif & 0x02) == 0) {
+									// E000 000
+									description = Description.ENERGY;
+									multiplierExponent = 5 + (vif & 0x01);
+									unit = DlmsUnit.WATT_HOUR;
+								}
+								else {
+									// E000 001
+									description = Description.REACTIVE_ENERGY;
+									multiplierExponent = 3 + (vif & 0x01);
+									unit = DlmsUnit.VAR_HOUR;
+								}
+
+							}
+							else {
+								// E000 01
+								description = Description.NOT_SUPPORTED;
+							}
+						}
+						else {
+							// E000 1
+							if ((vif & 0x04) == 0) {
+								// E000 10
+								if ((vif & 0x02) == 0) {
+									// E000 100
+									description = Description.ENERGY;
+									multiplierExponent = 8 + (vif & 0x01);
+									unit = DlmsUnit.JOULE;
+								}
+								else {
+									// E000 101
+									description = Description.NOT_SUPPORTED;
+								}
+
+							}
+							else {
+								// E000 11
+								description = Description.ENERGY;
+								multiplierExponent = 5 + (vif & 0x03);
+								unit = DlmsUnit.CALORIFIC_VALUE;
+							}
+						}
+					}
+					else {
+						// E001
+						if ((vif & 0x08) == 0) {
+							// E001 0
+							if ((vif & 0x04) == 0) {
+								// E001 00
+								if ((vif & 0x02) == 0) {
+									// E001 000
+									description = Description.VOLUME;
+									multiplierExponent = 2 + (vif & 0x01);
+									unit = DlmsUnit.CUBIC_METRE;
+								}
+								else {
+									// E001 001
+									description = Description.NOT_SUPPORTED;
+								}
+							}
+							else {
+								// E001 01
+								description = Description.REACTIVE_POWER;
+								multiplierExponent = (vif & 0x03);
+								unit = DlmsUnit.VAR;
+							}
+						}
+						else {
+							// E001 1
+							if ((vif & 0x04) == 0) {
+								// E001 10
+								if ((vif & 0x02) == 0) {
+									// E001 100
+									description = Description.MASS;
+									multiplierExponent = 5 + (vif & 0x01);
+									unit = DlmsUnit.KILOGRAM;
+								}
+								else {
+									// E001 101
+									description = Description.REL_HUMIDITY;
+									multiplierExponent = -1 + (vif & 0x01);
+									unit = DlmsUnit.PERCENTAGE;
+								}
+
+							}
+							else {
+								// E001 11
+								description = Description.NOT_SUPPORTED;
+							}
+						}
+
+					}
+				}
+				else {
+					// E01
+					if ((vif & 0x10) == 0) {
+						// E010
+						if ((vif & 0x08) == 0) {
+							// E010 0
+							if ((vif & 0x04) == 0) {
+								// E010 00
+								if ((vif & 0x02) == 0) {
+									// E010 000
+									if ((vif & 0x01) == 0) {
+										// E010 0000
+										description = Description.VOLUME;
+										multiplierExponent = 0;
+										unit = DlmsUnit.CUBIC_FEET;
+									}
+									else {
+										// E010 0001
+										description = Description.VOLUME;
+										multiplierExponent = -1;
+										unit = DlmsUnit.CUBIC_FEET;
+									}
+								}
+								else {
+									// E010 001
+									// outdated value !
+									description = Description.VOLUME;
+									multiplierExponent = -1 + (vif & 0x01);
+									unit = DlmsUnit.US_GALLON;
+								}
+							}
+							else {
+								// E010 01
+								if ((vif & 0x02) == 0) {
+									// E010 010
+									if ((vif & 0x01) == 0) {
+										// E010 0100
+										// outdated value !
+										description = Description.VOLUME_FLOW;
+										multiplierExponent = -3;
+										unit = DlmsUnit.US_GALLON_PER_MINUTE;
+									}
+									else {
+										// E010 0101
+										// outdated value !
+										description = Description.VOLUME_FLOW;
+										multiplierExponent = 0;
+										unit = DlmsUnit.US_GALLON_PER_MINUTE;
+									}
+								}
+								else {
+									// E010 011
+									if ((vif & 0x01) == 0) {
+										// E010 0110
+										// outdated value !
+										description = Description.VOLUME_FLOW;
+										multiplierExponent = 0;
+										unit = DlmsUnit.US_GALLON_PER_HOUR;
+									}
+									else {
+										// E010 0111
+										description = Description.NOT_SUPPORTED;
+									}
+								}
+
+							}
+						}
+						else {
+							// E010 1
+							if ((vif & 0x04) == 0) {
+								// E010 10
+								if ((vif & 0x02) == 0) {
+									// E010 100
+									description = Description.POWER;
+									multiplierExponent = 5 + (vif & 0x01);
+									unit = DlmsUnit.WATT;
+								}
+								else {
+									if ((vif & 0x01) == 0) {
+										// E010 1010
+										description = Description.PHASE;
+										multiplierExponent = -1; // is -1 or 0 correct ??
+										unit = DlmsUnit.DEGREE;
+									}
+									else {
+										// E010 1011
+										description = Description.PHASE;
+										multiplierExponent = -1; // is -1 or 0 correct ??
+										unit = DlmsUnit.DEGREE;
+									}
+								}
+							}
+							else {
+								// E010 11
+								description = Description.FREQUENCY;
+								multiplierExponent = -3 + (vif & 0x03);
+								unit = DlmsUnit.HERTZ;
+							}
+						}
+					}
+					else {
+						// E011
+						if ((vif & 0x08) == 0) {
+							// E011 0
+							if ((vif & 0x04) == 0) {
+								// E011 00
+								if ((vif & 0x02) == 0) {
+									// E011 000
+									description = Description.POWER;
+									multiplierExponent = 8 + (vif & 0x01);
+									unit = DlmsUnit.JOULE_PER_HOUR;
+								}
+								else {
+									// E011 001
+									description = Description.NOT_SUPPORTED;
+								}
+							}
+							else {
+								// E011 01
+								description = Description.NOT_SUPPORTED;
+							}
+						}
+						else {
+							// E011 1
+							description = Description.NOT_SUPPORTED;
+						}
+					}
+				}
+			}
+			else {
+				// E1
+				if ((vif & 0x20) == 0) {
+					// E10
+					if ((vif & 0x10) == 0) {
+						// E100
+						description = Description.NOT_SUPPORTED;
+					}
+					else {
+						// E101
+						if ((vif & 0x08) == 0) {
+							// E101 0
+							description = Description.NOT_SUPPORTED;
+						}
+						else {
+							// E101 1
+							if ((vif & 0x04) == 0) {
+								// E101 10
+								// outdated value !
+								description = Description.FLOW_TEMPERATURE;
+								multiplierExponent = (vif & 0x03) - 3;
+								unit = DlmsUnit.DEGREE_FAHRENHEIT;
+							}
+							else {
+								// E101 11
+								// outdated value !
+								description = Description.RETURN_TEMPERATURE;
+								multiplierExponent = (vif & 0x03) - 3;
+								unit = DlmsUnit.DEGREE_FAHRENHEIT;
+							}
+						}
+					}
+				}
+				else {
+					// E11
+					if ((vif & 0x10) == 0) {
+						// E110
+						if ((vif & 0x08) == 0) {
+							// E110 0
+							if ((vif & 0x04) == 0) {
+								// E110 00
+								// outdated value !
+								description = Description.TEMPERATURE_DIFFERENCE;
+								multiplierExponent = (vif & 0x03) - 3;
+								unit = DlmsUnit.DEGREE_FAHRENHEIT;
+							}
+							else {
+								// E110 01
+								// outdated value !
+								description = Description.FLOW_TEMPERATURE;
+								multiplierExponent = (vif & 0x03) - 3;
+								unit = DlmsUnit.DEGREE_FAHRENHEIT;
+							}
+						}
+						else {
+							// E110 1
+							description = Description.NOT_SUPPORTED;
+						}
+					}
+					else {
+						// E111
+						if ((vif & 0x08) == 0) {
+							// E111 0
+							if ((vif & 0x04) == 0) {
+								// E111 00
+								// outdated value !
+								description = Description.TEMPERATURE_LIMIT;
+								multiplierExponent = (vif & 0x03) - 3;
+								unit = DlmsUnit.DEGREE_FAHRENHEIT;
+							}
+							else {
+								// E111 01
+								description = Description.TEMPERATURE_LIMIT;
+								multiplierExponent = (vif & 0x03) - 3;
+								unit = DlmsUnit.DEGREE_CELSIUS;
+							}
+						}
+						else {
+							// E111 1
+							description = Description.MAX_POWER;
+							multiplierExponent = (vif & 0x07) - 3;
+							unit = DlmsUnit.WATT;
+						}
+					}
+				}
+
+			}
+
+		}
+	}
+
+}
@@ -39,7 +39,7 @@ import Driver.UsbSerialPort;
 public class SerialInputOutputManager implements Runnable {
 
     private static final String TAG = SerialInputOutputManager.class.getSimpleName();
-    private static final boolean DEBUG = true;
+    private static final boolean DEBUG = false;
 
     private static final int READ_WAIT_MILLIS = 200;
     private static final int BUFSIZ = 4096;
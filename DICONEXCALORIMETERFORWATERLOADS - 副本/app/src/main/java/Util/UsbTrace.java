@@ -0,0 +1,274 @@
+package Util;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Records raw USB transfers into a preallocated binary ring buffer, for
+ * debugging without formatting strings on every packet. Tracing is off by
+ * default; while it is off {@link #trace(int, byte[], int, int)} costs a
+ * single volatile read.
+ *
+ * Usage:
+ *
+ * <pre>
+ * UsbTrace.start();
+ * ...
+ * UsbTrace trace = UsbTrace.stop();
+ * Log.d(TAG, trace.dumpHexString());
+ * trace.writePcap(new FileOutputStream(file));
+ * </pre>
+ *
+ * When the buffer is full the oldest transfers are overwritten. Transfers
+ * longer than the max capture length are truncated, their original length is
+ * kept.
+ */
+public class UsbTrace {
+
+    public static final int DIRECTION_IN = 0;
+    public static final int DIRECTION_OUT = 1;
+
+    public static final int DEFAULT_CAPACITY = 256 * 1024;
+    public static final int DEFAULT_MAX_CAPTURE_LENGTH = 512;
+
+    /**
+     * Record header: timestamp (8), direction (1), original length (2),
+     * captured length (2).
+     */
+    private static final int HEADER_LENGTH = 13;
+
+    private static final int PCAP_LINKTYPE_USER0 = 147;
+
+    private static volatile UsbTrace sTrace = null;
+
+    private final byte[] mBuffer;
+    private final int mMask;
+    private final int mMaxCaptureLength;
+    private final long mBaseMicros;
+    private final long mBaseNanos;
+
+    // Synchronized by 'this'
+    private long mStart = 0;
+    // Synchronized by 'this'
+    private long mEnd = 0;
+    // Synchronized by 'this'
+    private int mNumRecords = 0;
+    // Synchronized by 'this'
+    private long mNumOverwritten = 0;
+
+    /**
+     * Creates a trace buffer.
+     *
+     * @param capacity the size of the ring buffer in bytes, rounded up to a
+     *            power of two
+     * @param maxCaptureLength the number of bytes kept of each transfer
+     */
+    public UsbTrace(int capacity, int maxCaptureLength) {
+        if (maxCaptureLength < 0 || maxCaptureLength > 0xffff) {
+            throw new IllegalArgumentException("Invalid max capture length: " + maxCaptureLength);
+        }
+        int size = 1024;
+        while (size < capacity || size < HEADER_LENGTH + maxCaptureLength) {
+            size <<= 1;
+        }
+        mBuffer = new byte[size];
+        mMask = size - 1;
+        mMaxCaptureLength = maxCaptureLength;
+        mBaseMicros = System.currentTimeMillis() * 1000;
+        mBaseNanos = System.nanoTime();
+    }
+
+    /**
+     * Starts tracing into a new buffer of the default size.
+     */
+    public static UsbTrace start() {
+        return start(DEFAULT_CAPACITY, DEFAULT_MAX_CAPTURE_LENGTH);
+    }
+
+    /**
+     * Starts tracing into a new buffer, replacing the active one.
+     *
+     * @return the new buffer
+     */
+    public static UsbTrace start(int capacity, int maxCaptureLength) {
+        final UsbTrace trace = new UsbTrace(capacity, maxCaptureLength);
+        sTrace = trace;
+        return trace;
+    }
+
+    /**
+     * Stops tracing.
+     *
+     * @return the buffer that was active, or null if tracing was off
+     */
+    public static UsbTrace stop() {
+        final UsbTrace trace = sTrace;
+        sTrace = null;
+        return trace;
+    }
+
+    /**
+     * Returns the active buffer, or null if tracing is off.
+     */
+    public static UsbTrace getActive() {
+        return sTrace;
+    }
+
+    /**
+     * Records a transfer into the active buffer, if tracing is on.
+     *
+     * @param direction {@link #DIRECTION_IN} or {@link #DIRECTION_OUT}
+     */
+    public static void trace(int direction, byte[] data, int offset, int length) {
+        final UsbTrace trace = sTrace;
+        if (trace != null) {
+            trace.record(direction, data, offset, length);
+        }
+    }
+
+    /**
+     * Records a transfer.
+     *
+     * @param direction {@link #DIRECTION_IN} or {@link #DIRECTION_OUT}
+     */
+    public void record(int direction, byte[] data, int offset, int length) {
+        if (length < 0) {
+            return;
+        }
+        final long timestamp = mBaseMicros + (System.nanoTime() - mBaseNanos) / 1000;
+        final int captured = Math.min(length, mMaxCaptureLength);
+        final int recordLength = HEADER_LENGTH + captured;
+
+        synchronized (this) {
+            while (mEnd + recordLength - mStart > mBuffer.length) {
+                mStart += HEADER_LENGTH + getShort(mStart + 11);
+                mNumRecords--;
+                mNumOverwritten++;
+            }
+            long p = mEnd;
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                mBuffer[(int) (p++ & mMask)] = (byte) (timestamp >> shift);
+            }
+            mBuffer[(int) (p++ & mMask)] = (byte) direction;
+            putShort(p, Math.min(length, 0xffff));
+            putShort(p + 2, captured);
+            p += 4;
+
+            final int index = (int) (p & mMask);
+            final int first = Math.min(captured, mBuffer.length - index);
+            System.arraycopy(data, offset, mBuffer, index, first);
+            System.arraycopy(data, offset + first, mBuffer, 0, captured - first);
+
+            mEnd = p + captured;
+            mNumRecords++;
+        }
+    }
+
+    private int getShort(long position) {
+        return ((mBuffer[(int) (position & mMask)] & 0xff) << 8)
+                | (mBuffer[(int) ((position + 1) & mMask)] & 0xff);
+    }
+
+    private void putShort(long position, int value) {
+        mBuffer[(int) (position & mMask)] = (byte) (value >> 8);
+        mBuffer[(int) ((position + 1) & mMask)] = (byte) value;
+    }
+
+    public synchronized int getNumberOfRecords() {
+        return mNumRecords;
+    }
+
+    /**
+     * Returns the number of records that were overwritten because the buffer
+     * was full.
+     */
+    public synchronized long getNumberOfOverwritten() {
+        return mNumOverwritten;
+    }
+
+    public synchronized void clear() {
+        mStart = mEnd;
+        mNumRecords = 0;
+        mNumOverwritten = 0;
+    }
+
+    /**
+     * Returns a copy of the records, oldest first.
+     */
+    private synchronized byte[] snapshot() {
+        final byte[] records = new byte[(int) (mEnd - mStart)];
+        final int index = (int) (mStart & mMask);
+        final int first = Math.min(records.length, mBuffer.length - index);
+        System.arraycopy(mBuffer, index, records, 0, first);
+        System.arraycopy(mBuffer, 0, records, first, records.length - first);
+        return records;
+    }
+
+    private static long getTimestamp(byte[] records, int i) {
+        long timestamp = 0;
+        for (int j = 0; j < 8; j++) {
+            timestamp = (timestamp << 8) | (records[i + j] & 0xff);
+        }
+        return timestamp;
+    }
+
+    private static int getShort(byte[] records, int i) {
+        return ((records[i] & 0xff) << 8) | (records[i + 1] & 0xff);
+    }
+
+    /**
+     * Returns the records as text, one transfer per line: timestamp in
+     * microseconds since 1970, direction, original length and the captured
+     * bytes in hex.
+     */
+    public String dumpHexString() {
+        final byte[] records = snapshot();
+        final StringBuilder result = new StringBuilder();
+        int i = 0;
+        while (i < records.length) {
+            final int captured = getShort(records, i + 11);
+            result.append(getTimestamp(records, i));
+            result.append(records[i + 8] == DIRECTION_IN ? " IN  " : " OUT ");
+            result.append(getShort(records, i + 9));
+            result.append(": ");
+            result.append(HexDump.toHexString(records, i + HEADER_LENGTH, captured));
+            result.append('\n');
+            i += HEADER_LENGTH + captured;
+        }
+        return result.toString();
+    }
+
+    /**
+     * Writes the records as a pcap capture file with link type USER0. The
+     * first byte of every packet is the direction ({@link #DIRECTION_IN} or
+     * {@link #DIRECTION_OUT}), followed by the captured bytes of the transfer.
+     * The stream is flushed but not closed.
+     */
+    public void writePcap(OutputStream out) throws IOException {
+        final byte[] records = snapshot();
+        final DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(0xa1b2c3d4);
+        data.writeShort(2);
+        data.writeShort(4);
+        data.writeInt(0);
+        data.writeInt(0);
+        data.writeInt(mMaxCaptureLength + 1);
+        data.writeInt(PCAP_LINKTYPE_USER0);
+
+        int i = 0;
+        while (i < records.length) {
+            final long timestamp = getTimestamp(records, i);
+            final int captured = getShort(records, i + 11);
+            data.writeInt((int) (timestamp / 1000000));
+            data.writeInt((int) (timestamp % 1000000));
+            data.writeInt(captured + 1);
+            data.writeInt(getShort(records, i + 9) + 1);
+            data.writeByte(records[i + 8]);
+            data.write(records, i + HEADER_LENGTH, captured);
+            i += HEADER_LENGTH + captured;
+        }
+        data.flush();
+    }
+
+}
@@ -44,7 +44,7 @@ import Driver.*;
  * When the phone or tablet detects the granted permission it goes in the Broadcast Receiver.
  * The Broadcast Receiver is used to receive data from the Calorimeter.
  * When data is detected it is saved in a text file called MBUS_Data into the repertory named Diconex_water_loads.
- * Then the file is read to provide the needed information to the activity.
+ * The values printed by the activity are extracted directly from the received frame.
  *
  */
  
@@ -81,6 +81,17 @@ public class MainActivity extends AppCompatActivity {
     private ByteBuffer buffer = ByteBuffer.allocate(255);
     private int [] messTab = new int[2];
     private VariableDataStructure variableDataStructure;
+
+    //Binary file writer, kept open while the activity is in the foreground (see WriteBinary())
+    private ReadingEncoder binaryEncoder = null;
+
+    //Values printed on the screen: power, flow, hot temperature and cold temperature
+    private static final RecordQuery DATA_QUERY = new RecordQuery.Builder()
+            .add(DataRecord.Description.POWER)
+            .add(DataRecord.Description.VOLUME_FLOW)
+            .add(DataRecord.Description.FLOW_TEMPERATURE)
+            .add(DataRecord.Description.RETURN_TEMPERATURE)
+            .build();
     
     //Definition of a BroadcastReceiver variable
     private MyBroadcastReceiver mUsbReceiver;
@@ -151,6 +162,19 @@ public class MainActivity extends AppCompatActivity {
         });
     }
 
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        closeBinary();
+    }
+
+    @Override
+    protected void onDestroy() {
+        closeBinary();
+        super.onDestroy();
+    }
+
     
     /**
      * update() is used to call the Broadcast Receiver each 3 seconds to update received data
@@ -320,20 +344,19 @@ public class MainActivity extends AppCompatActivity {
          */
         public void printModification(int messLength){
             try {
-                //Get the received data into a byte array
-                byte[] buf = new byte[messLength];
-                for (int k = 0; k < messLength; k++)
-                    buf[k] = buffer.get(k);
-                
-                //Put the data into a VariableDataStructure to be decoded properly
-                variableDataStructure = new VariableDataStructure(buf, 8, messLength - 8, null, null);
+                //Decode the received data in place, reading() allocates a new buffer for every answer
+                ByteBuffer frame = buffer.duplicate();
+                frame.limit(messLength);
+                frame.position(8);
+                variableDataStructure = VariableDataStructure.wrap(frame, null, null);
                 variableDataStructure.decode();
                 
                 //Converting received data into String
                 String data;
                 data = variableDataStructure.toString();
                 Write(data);
-                String[] myData = findData();
+                WriteBinary(variableDataStructure);
+                String[] myData = findData(variableDataStructure);
                 
                 //Try to modify the layout with the new data
                 try {
@@ -361,86 +384,15 @@ public class MainActivity extends AppCompatActivity {
 
 
 	/**
-     * findData is used to get the right data in the text file which stocks the received frame decoded
+     * findData is used to get the right data out of the received frame
+     * @param variableDataStructure the received frame
      * @return
      */
-    public String[] findData()
+    public String[] findData(VariableDataStructure variableDataStructure) throws DecodingException
     {
-        //Variables that will stock the data searched in the file
-        String flow=new String();
-        String power=new String();
-        String tempH=new String();
-        String tempC=new String();
-        String deltaT=new String();
-
-		//Declare the file which contains the MBUS decoded frame
-        File file = new File(Environment.getExternalStorageDirectory() +
-                File.separator + "Diconex_water_loads","MBUS_data.txt");
-
-        if (file.exists()) {
-            TabFileReader.readTextFile(file.getAbsolutePath(),' ',"");
-            for(int i=0; i<TabFileReader.ncol();i++){
-                //Get flow value
-                if((TabFileReader.words[4][i]!=null) && (TabFileReader.words[4][i].equals("unit:CUBIC_METRE_PER_HOUR"))){
-                    for(int j=0; j<TabFileReader.words[4][i-1].length(); j++){
-                        String mot=TabFileReader.words[4][i-1];
-                        int taille = TabFileReader.words[4][i-1].length();
-                        if(mot.charAt(j)==':'){
-                            flow=mot.substring(j+1,taille-1 );
-                        }
-                    }
-                }
-                
-				//Get power value
-                if((TabFileReader.words[5][i]!=null) && (TabFileReader.words[5][i].equals("unit:WATT"))){
-                    for(int j=0; j<TabFileReader.words[5][i-1].length(); j++){
-                        String mot=TabFileReader.words[5][i-1];
-                        int taille = TabFileReader.words[5][i-1].length();
-                        if(mot.charAt(j)==':'){
-                            power=mot.substring(j+1,taille-1 );
-                        }
-                    }
-                }
-                
-				//Get hot temperature value
-                if((TabFileReader.words[6][i]!=null) && (TabFileReader.words[7][i].equals("unit:DEGREE_CELSIUS"))){
-                    for(int j=0; j<TabFileReader.words[6][i-1].length(); j++){
-                        String mot=TabFileReader.words[6][i-1];
-                        int taille = TabFileReader.words[6][i-1].length();
-                        if(mot.charAt(j)==':'){
-                            tempH=mot.substring(j+1,taille-1);
-                        }
-                    }
-                }
-				
-                //Get cold temperature value
-                if((TabFileReader.words[7][i]!=null) && (TabFileReader.words[7][i].equals("unit:DEGREE_CELSIUS"))){
-                    for(int j=0; j<TabFileReader.words[7][i-1].length(); j++){
-                        String mot=TabFileReader.words[7][i-1];
-                        int taille = TabFileReader.words[7][i-1].length();
-                        if(mot.charAt(j)==':'){
-                            tempC=mot.substring(j+1,taille-1);
-                        }
-                    }
-                }
-
-                /*
-                //Get delta temperature value
-                if((TabFileReader.words[8][i]!=null) && (TabFileReader.words[8][i].equals("unit:KELVIN"))){
-                    for(int j=0; j<TabFileReader.words[8][i-1].length(); j++){
-                        String mot=TabFileReader.words[8][i-1];
-                        int taille = TabFileReader.words[8][i-1].length();
-                        if(mot.charAt(j)==':'){
-                            deltaT=mot.substring(j+1,taille-1);
-                        }
-                    }
-                }
-                */
-            }
-        }
-        else{
-            Toast.makeText(getApplicationContext(), "FICHIER INTROUVABLE", Toast.LENGTH_SHORT).show();
-        }
+        //Only the needed values are decoded
+        double[] values = new double[DATA_QUERY.size()];
+        DATA_QUERY.execute(variableDataStructure, values);
 
         //Define print format
         DecimalFormat powerFormat = new DecimalFormat("00.00");
@@ -449,14 +401,12 @@ public class MainActivity extends AppCompatActivity {
         DecimalFormat coldTempFormat = new DecimalFormat("00.0");
         DecimalFormat deltaTempFormat = new DecimalFormat("00.0");
 
-        //Converting float into double
-        Double dPowerW = Double.parseDouble(power);
-        Double dPowerKW = dPowerW/1000;
-        Double dFlow = Double.parseDouble(flow);
-        Double dHotTemp = Double.parseDouble(tempH);
-        Double dColdTemp = Double.parseDouble(tempC);
-        Double dDeltaTemp = dHotTemp-dColdTemp;
-        
+        double dPowerKW = values[0]/1000;
+        double dFlow = values[1];
+        double dHotTemp = values[2];
+        double dColdTemp = values[3];
+        double dDeltaTemp = dHotTemp-dColdTemp;
+
         //Return data into String array
 		String[] toPrint = new String[5];
 		toPrint[0]=powerFormat.format(dPowerKW);
@@ -464,7 +414,7 @@ public class MainActivity extends AppCompatActivity {
         toPrint[2]=hotTempFormat.format(dHotTemp);
         toPrint[3]=coldTempFormat.format(dColdTemp);
         toPrint[4]=deltaTempFormat.format(dDeltaTemp);
-        
+
 		return toPrint;
     }
 
@@ -640,6 +590,47 @@ public class MainActivity extends AppCompatActivity {
     }
 
 
+    /**
+     * WriteBinary() writes the received data to a binary file, much smaller than the text file
+     * and read back with ReadingDecoder. The file is opened once and every reading is appended,
+     * so the layout of the telegram is only stored once per session
+     * @param variableDataStructure
+     */
+    public void WriteBinary(VariableDataStructure variableDataStructure){
+        try{
+            if (binaryEncoder == null) {
+                //Declare the binary file, the repertory is created by Write()
+                File file = new File(Environment.getExternalStorageDirectory() +
+                        File.separator + "Diconex_water_loads","MBUS_data.bin");
+                //Append to the file, every session starts a new stream
+                binaryEncoder = new ReadingEncoder(new FileOutputStream(file,true));
+            }
+            binaryEncoder.write(variableDataStructure, System.currentTimeMillis());
+            //Flush so that the reading is not lost if the application is killed
+            binaryEncoder.flush();
+        }catch(IOException ioe) {
+            Log.e("TEST1", "ERROR WRITING BINARY FILE");
+            closeBinary();
+        }catch(DecodingException e) {
+            Log.e("TEST1", "ERROR ENCODING DATA : "+e.getMessage());
+        }
+    }
+
+    /**
+     * closeBinary() closes the binary file, it is opened again by the next WriteBinary()
+     */
+    private void closeBinary(){
+        if (binaryEncoder != null) {
+            try {
+                binaryEncoder.close();
+            } catch (IOException ioe) {
+                Log.e("TEST1", "ERROR CLOSING BINARY FILE");
+            }
+            binaryEncoder = null;
+        }
+    }
+
+
      /**
      * show() is called when FirstActivity starts MainActivity.
      * Starts the activity, using the supplied driver instance.
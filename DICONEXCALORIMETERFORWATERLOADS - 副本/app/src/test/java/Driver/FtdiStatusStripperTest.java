@@ -0,0 +1,135 @@
+package Driver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class FtdiStatusStripperTest {
+
+    private static final int MAX_PACKET_SIZE = 8;
+
+    private static final byte MODEM_STATUS = (byte) (0x01 | FtdiStatusStripper.MODEM_STATUS_CTS);
+    private static final byte LINE_STATUS_IDLE = 0x60;
+
+    /**
+     * Builds a transfer of packets with the given payload lengths. The payload
+     * bytes count up from 1.
+     */
+    private static byte[] transfer(int... payloadLengths) {
+        int length = 0;
+        for (int payloadLength : payloadLengths) {
+            length += FtdiStatusStripper.MODEM_STATUS_HEADER_LENGTH + payloadLength;
+        }
+        final byte[] transfer = new byte[length];
+        int i = 0;
+        int value = 1;
+        for (int payloadLength : payloadLengths) {
+            transfer[i++] = MODEM_STATUS;
+            transfer[i++] = LINE_STATUS_IDLE;
+            for (int j = 0; j < payloadLength; j++) {
+                transfer[i++] = (byte) value++;
+            }
+        }
+        return transfer;
+    }
+
+    private static byte[] payload(int length) {
+        final byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) {
+            payload[i] = (byte) (i + 1);
+        }
+        return payload;
+    }
+
+    @Test
+    public void fullLastPacket() {
+        final byte[] buffer = transfer(6, 6);
+        final int n = new FtdiStatusStripper().strip(buffer, 0, buffer.length, MAX_PACKET_SIZE);
+        assertEquals(12, n);
+        assertArrayEquals(payload(12), Arrays.copyOf(buffer, n));
+    }
+
+    @Test
+    public void headerOnlyLastPacket() {
+        final byte[] buffer = transfer(6, 0);
+        final int n = new FtdiStatusStripper().strip(buffer, 0, buffer.length, MAX_PACKET_SIZE);
+        assertEquals(6, n);
+        assertArrayEquals(payload(6), Arrays.copyOf(buffer, n));
+    }
+
+    @Test
+    public void headerOnlyTransfer() {
+        final byte[] buffer = transfer(0);
+        final FtdiStatusStripper stripper = new FtdiStatusStripper();
+        assertEquals(0, stripper.strip(buffer, 0, buffer.length, MAX_PACKET_SIZE));
+        assertEquals(MODEM_STATUS & 0xff, stripper.getModemStatus());
+        assertEquals(LINE_STATUS_IDLE, stripper.getLineStatus());
+    }
+
+    @Test
+    public void truncatedLastPacket() {
+        final byte[] full = transfer(6, 3);
+        // a single byte of the second packet's header
+        final byte[] buffer = Arrays.copyOf(full, MAX_PACKET_SIZE + 1);
+        final int n = new FtdiStatusStripper().strip(buffer, 0, buffer.length, MAX_PACKET_SIZE);
+        assertEquals(6, n);
+        assertArrayEquals(payload(6), Arrays.copyOf(buffer, n));
+
+        assertEquals(0, new FtdiStatusStripper().strip(new byte[] { MODEM_STATUS }, 0, 1,
+                MAX_PACKET_SIZE));
+    }
+
+    @Test
+    public void multiPacketInPlaceAtOffset() {
+        final byte[] transfer = transfer(6, 6, 6, 3);
+        final byte[] buffer = new byte[transfer.length + 5];
+        Arrays.fill(buffer, (byte) 0x55);
+        System.arraycopy(transfer, 0, buffer, 3, transfer.length);
+
+        final int n = new FtdiStatusStripper().strip(buffer, 3, transfer.length, MAX_PACKET_SIZE);
+        assertEquals(21, n);
+        assertArrayEquals(payload(21), Arrays.copyOfRange(buffer, 3, 3 + n));
+        // bytes before the range are untouched
+        assertEquals(0x55, buffer[2]);
+    }
+
+    @Test
+    public void copyToOtherArray() {
+        final byte[] src = transfer(6, 6, 1);
+        final byte[] dest = new byte[20];
+        final int n = new FtdiStatusStripper().strip(src, 0, src.length, dest, 2, MAX_PACKET_SIZE);
+        assertEquals(13, n);
+        assertArrayEquals(payload(13), Arrays.copyOfRange(dest, 2, 2 + n));
+    }
+
+    @Test
+    public void countsLineErrors() {
+        final byte[] buffer = transfer(6, 6, 6, 6);
+        buffer[1] |= FtdiStatusStripper.LINE_STATUS_OVERRUN_ERROR;
+        buffer[MAX_PACKET_SIZE + 1] |= FtdiStatusStripper.LINE_STATUS_PARITY_ERROR
+                | FtdiStatusStripper.LINE_STATUS_FRAMING_ERROR;
+        buffer[2 * MAX_PACKET_SIZE + 1] |= FtdiStatusStripper.LINE_STATUS_BREAK;
+        buffer[3 * MAX_PACKET_SIZE + 1] |= FtdiStatusStripper.LINE_STATUS_OVERRUN_ERROR;
+
+        final FtdiStatusStripper stripper = new FtdiStatusStripper();
+        assertEquals(24, stripper.strip(buffer, 0, buffer.length, MAX_PACKET_SIZE));
+        assertEquals(2, stripper.getNumberOfOverrunErrors());
+        assertEquals(1, stripper.getNumberOfParityErrors());
+        assertEquals(1, stripper.getNumberOfFramingErrors());
+        assertEquals(1, stripper.getNumberOfBreaks());
+        // status of the last packet
+        assertTrue((stripper.getLineStatus() & FtdiStatusStripper.LINE_STATUS_OVERRUN_ERROR) != 0);
+        assertTrue((stripper.getModemStatus() & FtdiStatusStripper.MODEM_STATUS_CTS) != 0);
+        assertFalse((stripper.getModemStatus() & FtdiStatusStripper.MODEM_STATUS_DSR) != 0);
+
+        stripper.resetCounters();
+        assertEquals(0, stripper.getNumberOfOverrunErrors());
+        assertEquals(0, stripper.getNumberOfBreaks());
+    }
+
+}
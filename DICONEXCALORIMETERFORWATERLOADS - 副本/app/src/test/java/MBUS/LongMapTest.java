@@ -0,0 +1,176 @@
+package MBUS;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LongMapTest {
+
+	private static final int CAPACITY = 16;
+
+	// same hash as LongMap
+	private static int slot(long key, int mask) {
+		long hash = key * 0x9E3779B97F4A7C15L;
+		return (int) (hash ^ (hash >>> 32)) & mask;
+	}
+
+	/**
+	 * Returns keys whose home slot in a map of {@link #CAPACITY} is the given slot.
+	 */
+	private static long[] keysWithSlot(int slot, int count, long start) {
+		long[] keys = new long[count];
+		int n = 0;
+		for (long key = start; n < count; key++) {
+			if (slot(key, CAPACITY - 1) == slot) {
+				keys[n++] = key;
+			}
+		}
+		return keys;
+	}
+
+	private static int slotOf(LongMap<?> map, long key) {
+		for (int i = 0; i < map.capacity(); i++) {
+			if (map.valueAt(i) != null && map.keyAt(i) == key) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static void assertContainsAll(LongMap<String> map, List<Long> keys) {
+		assertEquals(keys.size(), map.size());
+		for (long key : keys) {
+			assertEquals(Long.toString(key), map.get(key));
+		}
+	}
+
+	/**
+	 * Fills one probe sequence that starts at slot 14 and wraps around to slot 2: three keys at home 15, one at 14 and
+	 * two at 0.
+	 */
+	private static List<Long> fillWrappingChain(LongMap<String> map) {
+		long[] at15 = keysWithSlot(15, 3, 0);
+		long[] at14 = keysWithSlot(14, 1, 0);
+		long[] at0 = keysWithSlot(0, 2, 0);
+		List<Long> keys = new ArrayList<Long>();
+		keys.add(at15[0]);
+		keys.add(at15[1]);
+		keys.add(at14[0]);
+		keys.add(at15[2]);
+		keys.add(at0[0]);
+		keys.add(at0[1]);
+		for (long key : keys) {
+			map.put(key, Long.toString(key));
+		}
+		return keys;
+	}
+
+	@Test
+	public void collisionsWrapAround() {
+		LongMap<String> map = new LongMap<String>();
+		List<Long> keys = fillWrappingChain(map);
+		assertEquals(CAPACITY, map.capacity());
+		assertContainsAll(map, keys);
+
+		// 15, 0, 14, 1, 2, 3
+		assertEquals(15, slotOf(map, keys.get(0)));
+		assertEquals(0, slotOf(map, keys.get(1)));
+		assertEquals(14, slotOf(map, keys.get(2)));
+		assertEquals(1, slotOf(map, keys.get(3)));
+		assertEquals(2, slotOf(map, keys.get(4)));
+		assertEquals(3, slotOf(map, keys.get(5)));
+	}
+
+	@Test
+	public void removeAtHeadOfWrappingChain() {
+		LongMap<String> map = new LongMap<String>();
+		List<Long> keys = fillWrappingChain(map);
+
+		// the entries after slot 15 shift back across the wrap-around
+		assertEquals(Long.toString(keys.get(0)), map.remove(keys.get(0)));
+		keys.remove(0);
+		assertContainsAll(map, keys);
+		assertNull(map.valueAt(3));
+
+		// the key at home 14 stays where it is
+		assertEquals(14, slotOf(map, keys.get(1)));
+	}
+
+	@Test
+	public void removeInMiddleOfChain() {
+		LongMap<String> map = new LongMap<String>();
+		List<Long> keys = fillWrappingChain(map);
+
+		// slot 0: the entries at slots 1 to 3 shift back by one, each stays reachable from its home slot
+		long removed = keys.remove(1);
+		assertEquals(Long.toString(removed), map.remove(removed));
+		assertContainsAll(map, keys);
+		assertNull(map.get(removed));
+		assertFalse(map.containsKey(removed));
+
+		// remove the rest one by one, in a different order than inserted
+		while (!keys.isEmpty()) {
+			removed = keys.remove(keys.size() / 2);
+			assertEquals(Long.toString(removed), map.remove(removed));
+			assertNull(map.remove(removed));
+			assertContainsAll(map, keys);
+		}
+		assertTrue(map.isEmpty());
+	}
+
+	@Test
+	public void putAfterRemove() {
+		LongMap<String> map = new LongMap<String>();
+		List<Long> keys = fillWrappingChain(map);
+
+		long removed = keys.remove(2);
+		map.remove(removed);
+		removed = keys.remove(0);
+		map.remove(removed);
+
+		// new keys at home 15 and 0 reuse the freed slots without hiding the entries behind them
+		long[] more = { keysWithSlot(15, 4, 0)[3], keysWithSlot(0, 3, 0)[2] };
+		for (long key : more) {
+			assertNull(map.put(key, Long.toString(key)));
+			keys.add(key);
+			assertContainsAll(map, keys);
+		}
+		// re-inserting an existing key replaces its value
+		assertEquals(Long.toString(more[0]), map.put(more[0], "x"));
+		assertEquals("x", map.get(more[0]));
+		assertEquals(keys.size(), map.size());
+	}
+
+	@Test
+	public void matchesHashMap() {
+		Random random = new Random(42);
+		LongMap<Long> map = new LongMap<Long>();
+		Map<Long, Long> expected = new HashMap<Long, Long>();
+		for (int i = 0; i < 20000; i++) {
+			// a small key space, so that removes hit and probe sequences stay long
+			long key = random.nextInt(64) - 32;
+			if (random.nextInt(3) == 0) {
+				assertEquals(expected.remove(key), map.remove(key));
+			}
+			else {
+				Long value = Long.valueOf(i);
+				assertEquals(expected.put(key, value), map.put(key, value));
+			}
+			assertEquals(expected.size(), map.size());
+		}
+		for (long key = -32; key < 32; key++) {
+			assertEquals(expected.get(key), map.get(key));
+			assertEquals(expected.containsKey(key), map.containsKey(key));
+		}
+	}
+
+}
@@ -0,0 +1,156 @@
+package MBUS;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ReadingCodecTest {
+
+	// long header, then: INT32 volume, INT16 -2 temperature, LVAR "CBA", fill bytes, INT48 -2 volume, fill bytes,
+	// manufacturer specific data
+	private static final String TELEGRAM = "72" + "78563412" + "2424" + "40" + "07" + "55" + "00" + "0000"
+			+ "0413" + "10270000" + "025A" + "FEFF" + "0DFD0C" + "03" + "434241" + "2F2F" + "0613" + "FEFFFFFFFFFF"
+			+ "2F2F" + "0F" + "AABB" + "0000";
+
+	// no header, BCD volume between fill bytes, more records follow
+	private static final String OTHER_TELEGRAM = "78" + "2F0C13" + "78563412" + "2F" + "1F" + "0000";
+
+	private static byte[] encode(List<byte[]> telegrams, long[] timestamps) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ReadingEncoder encoder = new ReadingEncoder(out);
+		for (int i = 0; i < telegrams.size(); i++) {
+			byte[] telegram = telegrams.get(i);
+			encoder.write(new VariableDataStructure(telegram, 0, telegram.length, null, null), timestamps[i]);
+		}
+		encoder.close();
+		return out.toByteArray();
+	}
+
+	private static byte[] toBytes(String hex) {
+		return HexConverter.fromShortHexString(hex);
+	}
+
+	private static byte[] current(ReadingDecoder decoder) {
+		VariableDataStructure variableDataStructure = decoder.getVariableDataStructure();
+		int offset = variableDataStructure.getOffset();
+		return Arrays.copyOfRange(variableDataStructure.getBuffer(), offset,
+				offset + variableDataStructure.getLength());
+	}
+
+	@Test
+	public void roundTripRestoresTelegram() throws Exception {
+		byte[] telegram = toBytes(TELEGRAM);
+		byte[] encoded = encode(Arrays.asList(telegram), new long[] { 1234567890123L });
+
+		ReadingDecoder decoder = new ReadingDecoder(new ByteArrayInputStream(encoded));
+		assertTrue(decoder.next());
+		assertArrayEquals(telegram, current(decoder));
+		assertEquals(1234567890123L, decoder.getTimestamp());
+		assertFalse(decoder.next());
+	}
+
+	@Test
+	public void decodedValuesMatch() throws Exception {
+		byte[] telegram = toBytes(TELEGRAM);
+		byte[] encoded = encode(Arrays.asList(telegram), new long[] { 0 });
+
+		VariableDataStructure original = new VariableDataStructure(telegram, 0, telegram.length, null, null);
+		original.decode();
+
+		ReadingDecoder decoder = new ReadingDecoder(new ByteArrayInputStream(encoded));
+		assertTrue(decoder.next());
+		VariableDataStructure variableDataStructure = decoder.getVariableDataStructure();
+		variableDataStructure.decode();
+		List<DataRecord> dataRecords = variableDataStructure.getDataRecords();
+
+		assertEquals(4, dataRecords.size());
+		for (int i = 0; i < dataRecords.size(); i++) {
+			assertEquals(original.getDataRecords().get(i).getDataValue(), dataRecords.get(i).getDataValue());
+		}
+		assertEquals(10000L, dataRecords.get(0).getDataValue());
+		// negative integers survive the zigzag encoding (INT16 is decoded unsigned by DataRecord, its bytes are
+		// checked by roundTripRestoresTelegram)
+		assertEquals(-2L, dataRecords.get(3).getDataValue());
+		assertArrayEquals(toBytes("AABB"), variableDataStructure.getManufacturerData());
+	}
+
+	@Test
+	public void integersAreStoredCompactly() throws Exception {
+		byte[] telegram = toBytes(TELEGRAM);
+		byte[][] telegrams = new byte[100][];
+		long[] timestamps = new long[telegrams.length];
+		for (int i = 0; i < telegrams.length; i++) {
+			telegrams[i] = telegram;
+			timestamps[i] = i * 1000L;
+		}
+		byte[] encoded = encode(Arrays.asList(telegrams), timestamps);
+		byte[] first = encode(Arrays.asList(telegram), new long[] { 0 });
+
+		// the layout is written once, every further reading is smaller than the telegram
+		assertTrue((encoded.length - first.length) / (telegrams.length - 1) < telegram.length);
+	}
+
+	@Test
+	public void layoutChangeMidStream() throws Exception {
+		byte[] telegram = toBytes(TELEGRAM);
+		byte[] other = toBytes(OTHER_TELEGRAM);
+		byte[] changed = toBytes(TELEGRAM);
+		// different data, same layout
+		changed[15] = 0x20;
+		List<byte[]> telegrams = Arrays.asList(telegram, other, changed, other);
+		byte[] encoded = encode(telegrams, new long[] { 10, 5, 20, 20 });
+
+		ReadingDecoder decoder = new ReadingDecoder(new ByteArrayInputStream(encoded));
+		int[] expectedLayoutIds = { 0, 1, 0, 1 };
+		long[] expectedTimestamps = { 10, 5, 20, 20 };
+		for (int i = 0; i < telegrams.size(); i++) {
+			assertTrue(decoder.next());
+			assertEquals(expectedLayoutIds[i], decoder.getLayoutId());
+			assertEquals(expectedTimestamps[i], decoder.getTimestamp());
+			assertArrayEquals(telegrams.get(i), current(decoder));
+		}
+		assertFalse(decoder.next());
+		assertEquals(2, decoder.getNumberOfLayouts());
+
+		VariableDataStructure variableDataStructure = decoder.getVariableDataStructure();
+		variableDataStructure.decode();
+		assertTrue(variableDataStructure.moreRecordsFollow());
+	}
+
+	@Test
+	public void concatenatedStreams() throws Exception {
+		byte[] telegram = toBytes(TELEGRAM);
+		byte[] other = toBytes(OTHER_TELEGRAM);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(encode(Arrays.asList(telegram), new long[] { 100 }));
+		out.write(encode(Arrays.asList(other, telegram), new long[] { 200, 300 }));
+
+		ReadingDecoder decoder = new ReadingDecoder(new ByteArrayInputStream(out.toByteArray()));
+		assertTrue(decoder.next());
+		assertArrayEquals(telegram, current(decoder));
+		assertTrue(decoder.next());
+		assertArrayEquals(other, current(decoder));
+		assertEquals(0, decoder.getLayoutId());
+		assertEquals(200, decoder.getTimestamp());
+		assertTrue(decoder.next());
+		assertArrayEquals(telegram, current(decoder));
+		assertEquals(1, decoder.getLayoutId());
+		assertEquals(300, decoder.getTimestamp());
+		assertFalse(decoder.next());
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsOtherStreams() throws Exception {
+		new ReadingDecoder(new ByteArrayInputStream(new byte[] { 'M', 'B', 'X', 1 }));
+	}
+
+}